@@ -0,0 +1,100 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.FrameDecoder;
+import protocol.FrameHandler;
+import server.SharedBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 消息编解码的基准测试
+ * 1. receive 中的 charset.decode、原来转发时的 charset.encode
+ * 2. 现在转发用的 SharedBuffer.frame 和 FrameDecoder（一次读到 64 个完整帧）
+ * 3. 转发前拼接 "[房间] 客户端 [端口] 消息"
+ * 每个方法的一次调用处理一条消息（decodeFrames64 是一次读到的 64 帧），返回值交给 JMH 消费，不会被当成死代码消除。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-25 10:00 AM
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    static final Charset CHARSET = Charset.forName("UTF-8");
+    static final String MESSAGE = "大家好，这是一条用来测试编解码性能的聊天消息 hello world 0123456789";
+    private static final int FRAMES_PER_READ = 64;
+    private static final int PORTS = 1024;                      // namePrefix 轮流使用的端口数
+
+    private ByteBuffer encoded;
+    private ByteBuffer read;
+    private FrameDecoder decoder;
+    private FrameHandler<Void> handler;
+    private long decodedBytes;
+    private int nextPort;
+
+    @Setup
+    public void setup() throws IOException {
+        encoded = CHARSET.encode(MESSAGE);
+        ByteBuffer payload = CHARSET.encode(MESSAGE);
+        read = ByteBuffer.allocate(FRAMES_PER_READ * FrameCodec.frameSize(payload.remaining()));
+        for (int i = 0; i < FRAMES_PER_READ; i++) {
+            FrameCodec.putFrame(read, Frame.TEXT, payload.duplicate());
+        }
+        read.flip();
+        decoder = new FrameDecoder();
+        handler = (type, frame, attachment) -> decodedBytes += frame.remaining();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeCharset() {
+        return CHARSET.encode(MESSAGE);
+    }
+
+    @Benchmark
+    public int encodeSharedFrame() throws IOException {
+        SharedBuffer shared = SharedBuffer.frame(Frame.TEXT, CHARSET, MESSAGE);
+        int size = shared.size();
+        shared.release();
+        return size;
+    }
+
+    @Benchmark
+    public String decodeCharset() {
+        encoded.rewind();
+        return String.valueOf(CHARSET.decode(encoded));
+    }
+
+    @Benchmark
+    public long decodeFrames64() throws IOException {
+        read.rewind();
+        decoder.decode(read, handler, null);
+        return decodedBytes;
+    }
+
+    @Benchmark
+    public String namePrefix() {
+        // 端口每次不同，避免整个表达式被常量折叠
+        int port = 50000 + (nextPort++ & (PORTS - 1));
+        String clientName = "客户端 [" + port + "] ";
+        return "[" + Frame.DEFAULT_ROOM + "] " + clientName + MESSAGE;
+    }
+}
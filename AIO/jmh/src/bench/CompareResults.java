@@ -0,0 +1,102 @@
+package bench;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 对比两次 JMH 运行的 JSON 结果（-rf json），部署前和上一次提交的结果对比
+ * 按基准名称和参数逐个对比 primaryMetric：吞吐量模式下降、时间模式上升超过阈值，
+ * 并且超出两次结果误差（scoreError，99.9% 置信区间）之和的记为回退，有回退时以状态码 1 退出。
+ *
+ * 用法：java -cp benchmarks.jar bench.CompareResults 基线.json 本次.json [阈值百分比，默认 10]
+ *
+ * @author Hedon Wang
+ * @create 2026-10-25 10:00 AM
+ */
+public class CompareResults {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("用法：java -cp benchmarks.jar bench.CompareResults 基线.json 本次.json [阈值百分比]");
+            System.exit(2);
+        }
+        Map<String, JsonObject> baseline = load(args[0]);
+        Map<String, JsonObject> current = load(args[1]);
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+
+        int regressions = 0;
+        System.out.println("benchmark\tbaseline\tcurrent\tchange\tverdict");
+        for (Map.Entry<String, JsonObject> entry : current.entrySet()) {
+            JsonObject before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.println(entry.getKey() + "\t-\t" + score(entry.getValue()) + "\t-\t新增");
+                continue;
+            }
+            JsonObject after = entry.getValue();
+            double oldScore = score(before);
+            double newScore = score(after);
+            // 吞吐量越大越好，其他模式（avgt、sample、ss）是时间，越小越好
+            boolean higherIsBetter = "thrpt".equals(after.get("mode").getAsString());
+            double change = (newScore - oldScore) / oldScore * 100;
+            double worse = higherIsBetter ? oldScore - newScore : newScore - oldScore;
+            boolean regressed = worse > oldScore * threshold / 100 && worse > error(before) + error(after);
+            if (regressed) {
+                regressions++;
+            }
+            System.out.println(String.format(Locale.ROOT, "%s\t%.3f\t%.3f\t%+.1f%%\t%s",
+                    entry.getKey(), oldScore, newScore, change, regressed ? "回退" : "-"));
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " 个基准回退");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 读取 JMH 的 JSON 结果，键是基准名称加参数，比如 bench.FanOutBenchmark.roomMembers{clients=1000}
+     */
+    private static Map<String, JsonObject> load(String file) throws IOException {
+        Map<String, JsonObject> results = new LinkedHashMap<>();
+        try (Reader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            JsonArray array = JsonParser.parseReader(reader).getAsJsonArray();
+            for (JsonElement element : array) {
+                JsonObject result = element.getAsJsonObject();
+                String key = result.get("benchmark").getAsString();
+                if (result.has("params")) {
+                    // 参数按名称排序，两次运行的顺序不同也能对上
+                    Map<String, String> params = new TreeMap<>();
+                    for (Map.Entry<String, JsonElement> param : result.getAsJsonObject("params").entrySet()) {
+                        params.put(param.getKey(), param.getValue().getAsString());
+                    }
+                    key += params.toString();
+                }
+                results.put(key, result);
+            }
+        }
+        return results;
+    }
+
+    private static double score(JsonObject result) {
+        return result.getAsJsonObject("primaryMetric").get("score").getAsDouble();
+    }
+
+    /**
+     * 只有一轮测量时 JMH 给出的误差是 NaN，按 0 处理
+     */
+    private static double error(JsonObject result) {
+        double error = result.getAsJsonObject("primaryMetric").get("scoreError").getAsDouble();
+        return Double.isNaN(error) ? 0 : error;
+    }
+}
@@ -0,0 +1,141 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import protocol.Frame;
+import protocol.FrameCodec;
+import server.ClientHandler;
+import server.ClientRegistry;
+import server.Room;
+import server.SharedBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 遍历和扇出的基准测试，clients 为客户端数
+ * 1. registryForEach / roomMembers：遍历全部客户端、遍历房间成员
+ * 2. broadcast*：把一条消息写给 clients 个内存中的通道，对比每个接收者各编码一次和只编码一次共享视图
+ * 3. roomJoinLeave：一个客户端进出已有 clients 个成员的房间，不应随 clients 变慢
+ * 除 roomJoinLeave 外，每个方法的一次调用是一次完整的遍历或扇出。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-25 10:00 AM
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @Param({"1000", "10000"})
+    private int clients;
+
+    private ClientRegistry registry;
+    private Room room;
+    private ClientHandler visitor;           // 反复进出房间的客户端
+    private MemoryChannel[] channels;
+
+    @Setup
+    public void setup() {
+        registry = new ClientRegistry();
+        room = new Room(Frame.DEFAULT_ROOM);
+        channels = new MemoryChannel[clients];
+        for (int i = 0; i < clients; i++) {
+            ClientHandler clientHandler = new ClientHandler(null, null, null, null, null, null, null, null);
+            registry.add(clientHandler);
+            room.join(clientHandler);
+            channels[i] = new MemoryChannel();
+        }
+        visitor = new ClientHandler(null, null, null, null, null, null, null, null);
+    }
+
+    @Benchmark
+    public void registryForEach(Blackhole blackhole) {
+        registry.forEach(blackhole::consume);
+    }
+
+    @Benchmark
+    public void roomMembers(Blackhole blackhole) {
+        for (int slot = 0, end = room.highWater(); slot < end; slot++) {
+            ClientHandler clientHandler = room.member(slot);
+            if (clientHandler != null) {
+                blackhole.consume(clientHandler);
+            }
+        }
+    }
+
+    /**
+     * 上线进入大厅、下线离开大厅，与房间成员数无关
+     */
+    @Benchmark
+    public boolean roomJoinLeave() {
+        int slot = room.join(visitor);
+        return room.leave(slot, visitor);
+    }
+
+    /**
+     * 原来的做法：每个接收者各自编码一次
+     */
+    @Benchmark
+    public long broadcastEncodePerRecipient() throws IOException {
+        long written = 0;
+        for (MemoryChannel channel : channels) {
+            written += channel.write(FrameCodec.encode(Frame.TEXT, CodecBenchmark.CHARSET.encode(CodecBenchmark.MESSAGE)));
+        }
+        return written;
+    }
+
+    /**
+     * 现在的做法：编码一次，每个接收者拿一个独立 position 的视图
+     */
+    @Benchmark
+    public long broadcastEncodeOnce() throws IOException {
+        SharedBuffer shared = SharedBuffer.frame(Frame.TEXT, CodecBenchmark.CHARSET, CodecBenchmark.MESSAGE);
+        long written = 0;
+        try {
+            for (MemoryChannel channel : channels) {
+                written += channel.write(shared.duplicate());
+            }
+        } finally {
+            shared.release();
+        }
+        return written;
+    }
+
+    /**
+     * 内存中的通道，写入的数据直接丢弃
+     */
+    private static class MemoryChannel implements WritableByteChannel {
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
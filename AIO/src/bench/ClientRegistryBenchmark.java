@@ -0,0 +1,127 @@
+package bench;
+
+import server.ClientHandler;
+import server.ClientRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * ClientRegistry 并发广播基准测试
+ * 模拟 channel group 中 1 ~ THREAD_POOL_SIZE 个线程同时广播（遍历全部客户端），
+ * 另有一个线程不停地上线、下线客户端，对比：
+ * 1. 全局锁保护的 ArrayList（直接给原来的实现加锁）
+ * 2. ClientRegistry（无锁遍历）
+ * 输出每秒完成的广播次数，线程数翻倍时 ClientRegistry 应该接近线性增长。
+ *
+ * 用法：java bench.ClientRegistryBenchmark [客户端数] [每轮秒数]
+ *
+ * @author Hedon Wang
+ * @create 2026-10-18 11:40 AM
+ */
+public class ClientRegistryBenchmark {
+
+    private static final int THREAD_POOL_SIZE = 8;      // 与 ChatServer 的 channel group 线程数一致
+
+    public static void main(String[] args) throws InterruptedException {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+        System.out.println("clients=" + clients + ", seconds=" + seconds);
+        System.out.println("threads\tlockedList(broadcast/s)\tregistry(broadcast/s)");
+        for (int threads = 1; threads <= THREAD_POOL_SIZE; threads *= 2) {
+            long locked = run(new LockedList(), clients, threads, seconds);
+            long registry = run(new Registry(), clients, threads, seconds);
+            System.out.println(threads + "\t" + locked + "\t" + registry);
+        }
+    }
+
+    /**
+     * 跑一轮，返回每秒广播次数
+     */
+    private static long run(final Target target, int clients, int threads, int seconds) throws InterruptedException {
+        final List<ClientHandler> churn = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            ClientHandler clientHandler = new ClientHandler(null, null, null, null, null, null, null, null);
+            target.add(clientHandler);
+            churn.add(clientHandler);
+        }
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final LongAdder broadcasts = new LongAdder();
+        final CountDownLatch done = new CountDownLatch(threads + 1);
+
+        // 广播线程
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                long[] visited = new long[1];
+                while (running.get()) {
+                    target.forEach(clientHandler -> visited[0]++);
+                    broadcasts.increment();
+                }
+                done.countDown();
+            }).start();
+        }
+        // 上下线线程
+        new Thread(() -> {
+            int i = 0;
+            while (running.get()) {
+                ClientHandler clientHandler = churn.get(i++ % churn.size());
+                target.remove(clientHandler);
+                target.add(clientHandler);
+            }
+            done.countDown();
+        }).start();
+
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        done.await();
+        return broadcasts.sum() / seconds;
+    }
+
+    private interface Target {
+        void add(ClientHandler clientHandler);
+
+        void remove(ClientHandler clientHandler);
+
+        void forEach(Consumer<ClientHandler> action);
+    }
+
+    private static class LockedList implements Target {
+        private final List<ClientHandler> list = new ArrayList<>();
+
+        public synchronized void add(ClientHandler clientHandler) {
+            list.add(clientHandler);
+        }
+
+        public synchronized void remove(ClientHandler clientHandler) {
+            list.remove(clientHandler);
+        }
+
+        public synchronized void forEach(Consumer<ClientHandler> action) {
+            for (ClientHandler clientHandler : list) {
+                action.accept(clientHandler);
+            }
+        }
+    }
+
+    private static class Registry implements Target {
+        private final ClientRegistry registry = new ClientRegistry();
+
+        public void add(ClientHandler clientHandler) {
+            registry.add(clientHandler);
+        }
+
+        public void remove(ClientHandler clientHandler) {
+            registry.remove(clientHandler);
+        }
+
+        public void forEach(Consumer<ClientHandler> action) {
+            registry.forEach(action);
+        }
+    }
+}
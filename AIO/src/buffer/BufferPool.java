@@ -0,0 +1,210 @@
+package buffer;
+
+import log.EventLog;
+import protocol.BufferAllocator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按大小分级的直接内存缓冲区池
+ * 容量按 2 的幂分级（256B ~ 64KB），每一级有两层缓存：
+ * 1. 线程本地缓存：同一个线程申请、归还时不需要任何同步
+ * 2. 共享 arena：线程本地缓存满了或空了时，和其他线程交换缓冲区
+ * 超过最大级别的缓冲区不池化，直接分配。
+ *
+ * 打开 -Dchat.buffer.leakDetection=true 后会记录每个未归还缓冲区的申请位置，
+ * 通过 {@link #reportLeaks()} 写到事件日志；不打开时只统计未归还的数量。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-17 5:10 PM
+ */
+public final class BufferPool implements BufferAllocator {
+
+    public static final BufferPool DEFAULT = new BufferPool();
+
+    private static final int MIN_SHIFT = 8;                     // 最小 256B
+    private static final int MAX_SHIFT = 16;                    // 最大 64KB
+    private static final int SIZE_CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+    private static final int THREAD_CACHE_SIZE = 64;            // 每个线程每一级最多缓存的个数
+    private static final int ARENA_SIZE = 1024;                 // 共享 arena 每一级最多缓存的个数
+
+    private final boolean leakDetection = Boolean.getBoolean("chat.buffer.leakDetection");
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Queue<ByteBuffer>[] arena = new Queue[SIZE_CLASSES];
+    private final AtomicInteger[] arenaCounts = new AtomicInteger[SIZE_CLASSES];
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCaches = new ThreadLocal<ArrayDeque<ByteBuffer>[]>() {
+        @Override
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        protected ArrayDeque<ByteBuffer>[] initialValue() {
+            ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[SIZE_CLASSES];
+            for (int i = 0; i < SIZE_CLASSES; i++) {
+                caches[i] = new ArrayDeque<>(THREAD_CACHE_SIZE);
+            }
+            return caches;
+        }
+    };
+
+    // 统计
+    private final LongAdder threadCacheHits = new LongAdder();
+    private final LongAdder arenaHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();           // 池中没有，新分配
+    private final LongAdder unpooled = new LongAdder();         // 超过最大级别，不池化
+    private final AtomicLong outstanding = new AtomicLong();    // 已申请还未归还的数量
+
+    // 泄漏检测：未归还的缓冲区 -> 申请时的调用栈
+    private final Map<ByteBuffer, Throwable> leakTraces = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    public BufferPool() {
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            arena[i] = new ConcurrentLinkedQueue<>();
+            arenaCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * 申请一个容量不小于 capacity 的直接缓冲区，处于写模式，position 为 0，limit 为容量
+     */
+    @Override
+    public ByteBuffer allocate(int capacity) {
+        int sizeClass = sizeClass(capacity);
+        ByteBuffer buffer;
+        if (sizeClass < 0) {
+            unpooled.increment();
+            buffer = ByteBuffer.allocateDirect(capacity);
+        } else {
+            buffer = threadCaches.get()[sizeClass].pollLast();
+            if (buffer != null) {
+                threadCacheHits.increment();
+            } else if ((buffer = arena[sizeClass].poll()) != null) {
+                arenaCounts[sizeClass].decrementAndGet();
+                arenaHits.increment();
+            } else {
+                misses.increment();
+                buffer = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+            }
+            buffer.clear();
+        }
+        outstanding.incrementAndGet();
+        if (leakDetection) {
+            leakTraces.put(buffer, new Throwable("缓冲区申请位置，capacity=" + buffer.capacity()));
+        }
+        return buffer;
+    }
+
+    /**
+     * 归还缓冲区，归还后调用方不能再使用它
+     */
+    @Override
+    public void free(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (leakDetection && leakTraces.remove(buffer) == null) {
+            EventLog.error("归还了不属于池或已经归还过的缓冲区：{}", buffer.toString(), new IllegalStateException("重复归还"));
+            return;
+        }
+        outstanding.decrementAndGet();
+
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || buffer.isReadOnly() || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass < 0) {
+            return;
+        }
+        ArrayDeque<ByteBuffer> cache = threadCaches.get()[sizeClass];
+        if (cache.size() < THREAD_CACHE_SIZE) {
+            cache.offerLast(buffer);
+        } else if (arenaCounts[sizeClass].incrementAndGet() <= ARENA_SIZE) {
+            arena[sizeClass].offer(buffer);
+        } else {
+            // 池满了，交给 GC
+            arenaCounts[sizeClass].decrementAndGet();
+        }
+    }
+
+    /**
+     * 容量对应的级别，超过最大级别返回 -1
+     */
+    private static int sizeClass(int capacity) {
+        if (capacity <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        if (capacity > (1 << MAX_SHIFT)) {
+            return -1;
+        }
+        // 向上取整到 2 的幂
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * 把所有未归还缓冲区的申请位置写到事件日志，需要打开泄漏检测
+     * @return  未归还的数量
+     */
+    public int reportLeaks() {
+        List<Throwable> traces;
+        synchronized (leakTraces) {
+            traces = new ArrayList<>(leakTraces.values());
+        }
+        for (Throwable trace : traces) {
+            EventLog.warn("未归还的缓冲区：{}", trace.getMessage(), trace);
+        }
+        return traces.size();
+    }
+
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    public long getThreadCacheHits() {
+        return threadCacheHits.sum();
+    }
+
+    public long getArenaHits() {
+        return arenaHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getUnpooled() {
+        return unpooled.sum();
+    }
+
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * 命中率 = 从缓存中拿到的次数 / 总申请次数
+     */
+    public double getHitRate() {
+        long hits = getThreadCacheHits() + getArenaHits();
+        long total = hits + getMisses() + getUnpooled();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{threadCacheHits=" + getThreadCacheHits()
+                + ", arenaHits=" + getArenaHits()
+                + ", misses=" + getMisses()
+                + ", unpooled=" + getUnpooled()
+                + ", outstanding=" + getOutstanding()
+                + ", hitRate=" + String.format("%.2f", getHitRate()) + "}";
+    }
+}
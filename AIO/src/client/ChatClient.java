@@ -1,5 +1,12 @@
 package client;
 
+import buffer.BufferPool;
+import protocol.Command;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.FrameDecoder;
+import protocol.FrameHandler;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -13,7 +20,7 @@ import java.util.concurrent.Future;
  * @author Hedon Wang
  * @create 2021-09-24 4:39 PM
  */
-public class ChatClient {
+public class ChatClient implements FrameHandler<Void> {
     private static final String LOCALHOST = "localhost";
     private static final int DEFAULT_PORT = 8888;
     private static final String QUIT = "quit";
@@ -25,6 +32,7 @@ public class ChatClient {
     private int port;
 
     private AsynchronousSocketChannel clientSocketChannel;
+    private FrameDecoder decoder = new FrameDecoder(BufferPool.DEFAULT);
 
     public ChatClient(){
         this(LOCALHOST, DEFAULT_PORT);
@@ -39,6 +47,7 @@ public class ChatClient {
      * 启动客户端
      */
     public void start(){
+        ByteBuffer buffer = null;
 
         try {
             // 获得一个客户端异步通道
@@ -57,7 +66,7 @@ public class ChatClient {
             new Thread(new UserInputHandler(this)).start();
 
             // 接收其他客户端的消息
-            ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+            buffer = BufferPool.DEFAULT.allocate(BUFFER);
             while (true) {
                 Future<Integer> readFuture = clientSocketChannel.read(buffer);
                 int result = readFuture.get();
@@ -66,7 +75,7 @@ public class ChatClient {
                     break;
                 }
                 buffer.flip();
-                System.out.println(charset.decode(buffer));
+                decoder.decode(buffer, this, null);
                 buffer.clear();
             }
         } catch (IOException e) {
@@ -77,11 +86,26 @@ public class ChatClient {
             e.printStackTrace();
         } finally {
             closeResource(clientSocketChannel);
+            decoder.reset();
+            BufferPool.DEFAULT.free(buffer);
         }
 
     }
 
 
+    /**
+     * 收到服务端转发的一条消息
+     */
+    @Override
+    public void onFrame(byte type, ByteBuffer payload, Void attachment) {
+        if (type == Frame.TEXT) {
+            System.out.println(charset.decode(payload));
+        } else if (type == Frame.PING) {
+            // 服务端的心跳，原样回复
+            writeFrame(Frame.PONG, payload);
+        }
+    }
+
     /**
      * 向服务器发送信息
      */
@@ -89,13 +113,35 @@ public class ChatClient {
         if (msg.isEmpty()) {
             return;
         }
-        Future<Integer> writeFuture = clientSocketChannel.write(charset.encode(msg));
+        // 以 / 开头的是房间命令，其余是发往当前房间的消息
+        Command command = Command.parse(msg);
+        if (command == null) {
+            System.out.println("命令格式：/join 房间名、/leave 房间名、/nick 昵称、/msg 昵称 消息");
+            return;
+        }
+        writeFrame(command.getType(), charset.encode(command.getPayload()));
+    }
+
+    /**
+     * 编码成帧写到服务端
+     * 用户输入线程和收到 PING 的读线程都会写，加锁保证同一时刻只有一个 write
+     */
+    private synchronized void writeFrame(byte type, ByteBuffer payload) {
+        ByteBuffer frame = BufferPool.DEFAULT.allocate(FrameCodec.frameSize(payload.remaining()));
         try {
-            writeFuture.get();
+            FrameCodec.putFrame(frame, type, payload);
+            frame.flip();
+            while (frame.hasRemaining()) {
+                clientSocketChannel.write(frame).get();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
         } catch (InterruptedException e) {
             e.printStackTrace();
         } catch (ExecutionException e) {
             e.printStackTrace();
+        } finally {
+            BufferPool.DEFAULT.free(frame);
         }
     }
 
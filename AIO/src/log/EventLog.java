@@ -0,0 +1,371 @@
+package log;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步的结构化事件日志，代替 IO 线程里的 System.out.println
+ * System.out 是加锁的阻塞写，每条消息打印一次会让所有 IO 线程（AIO 的回调线程）排队等控制台。
+ * 这里 IO 线程只把级别、模板和参数的引用填进预先分配好的环形缓冲区的槽位，不格式化、不加锁、不阻塞：
+ * 1. 多个生产者用 CAS 抢序号，每个槽位有自己的序号，标记它是空的还是已经填好（Vyukov 有界队列）
+ * 2. 缓冲区满了直接丢弃，只累加丢弃计数，后台线程会把丢弃的条数写进日志
+ * 3. 每个级别可以单独设置抽样，MESSAGE 级别的事件量大时只记录 1/N
+ * 后台线程按顺序取出事件，拼成一行写到按大小滚动的文件，缓冲区空了才 flush。
+ * 可以通过系统属性修改：
+ * <pre>
+ * -Dchat.eventlog.file=nio-events.log      日志文件，默认是 服务端类型-events.log
+ * -Dchat.eventlog.level=MESSAGE            最低记录级别
+ * -Dchat.eventlog.sample.message=1         MESSAGE 级别每 N 条记录 1 条，其他级别同理（sample.info 等）
+ * -Dchat.eventlog.bufferSize=8192          环形缓冲区的槽位数，向上取 2 的幂
+ * -Dchat.eventlog.maxBytes=67108864        单个文件的大小上限
+ * -Dchat.eventlog.maxFiles=5               保留的旧文件个数
+ * -Dchat.eventlog.console=false            是否同时输出到控制台（在后台线程中输出）
+ * </pre>
+ * 启动之前记录的事件先留在缓冲区里，启动后再写出。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-22 2:30 PM
+ */
+public final class EventLog {
+
+    private static final int BATCH = 256;                                       // 每取这么多条检查一次丢弃计数
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final Level[] LEVELS = Level.values();
+
+    private static final Level minLevel = Level.valueOf(
+            System.getProperty("chat.eventlog.level", Level.MESSAGE.name()).toUpperCase(Locale.ROOT));
+    private static final int[] sampleEvery = new int[LEVELS.length];           // 每个级别每 N 条记录 1 条
+    private static final int capacity = ceilingPowerOfTwo(Integer.getInteger("chat.eventlog.bufferSize", 8192));
+    private static final int mask = capacity - 1;
+
+    private static final Event[] slots = new Event[capacity];
+    // 槽位的序号：等于 pos 表示空闲，可以被 pos 号生产者填写；等于 pos + 1 表示已填好，可以被消费
+    private static final AtomicLongArray sequences = new AtomicLongArray(capacity);
+    private static final AtomicLong tail = new AtomicLong();                    // 下一个生产者的位置
+    private static long head;                                                   // 下一个要消费的位置，只有后台线程使用
+
+    private static final LongAdder dropped = new LongAdder();                   // 缓冲区满而丢弃的事件数
+    private static final LongAdder sampledOut = new LongAdder();                // 抽样跳过的事件数
+    private static final AtomicLong written = new AtomicLong();                 // 已写出的事件数
+
+    private static volatile Thread drainer;
+    private static volatile boolean running;
+    private static RollingFileWriter writer;
+    private static boolean console;
+
+    static {
+        for (Level level : LEVELS) {
+            sampleEvery[level.ordinal()] = Math.max(1,
+                    Integer.getInteger("chat.eventlog.sample." + level.name().toLowerCase(Locale.ROOT), 1));
+        }
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Event();
+            sequences.set(i, i);
+        }
+    }
+
+    private EventLog() {
+    }
+
+    /**
+     * 打开日志文件，启动后台线程，同一个进程只启动一次
+     * @param engine    服务端类型（BIO、NIO、AIO），用作默认文件名
+     */
+    public static synchronized void start(String engine) {
+        if (drainer != null) {
+            return;
+        }
+        String file = System.getProperty("chat.eventlog.file", engine.toLowerCase(Locale.ROOT) + "-events.log");
+        try {
+            writer = new RollingFileWriter(Paths.get(file),
+                    Long.getLong("chat.eventlog.maxBytes", 64L * 1024 * 1024),
+                    Integer.getInteger("chat.eventlog.maxFiles", 5));
+        } catch (IOException e) {
+            // 文件打不开时退回到控制台
+            e.printStackTrace();
+            writer = null;
+        }
+        console = writer == null || Boolean.getBoolean("chat.eventlog.console");
+        running = true;
+        Thread thread = new Thread(EventLog::drainLoop, "chat-event-log");
+        thread.setDaemon(true);
+        drainer = thread;
+        thread.start();
+        // 进程被杀掉时也把缓冲区里的事件写完
+        Runtime.getRuntime().addShutdownHook(new Thread(EventLog::stop, "chat-event-log-shutdown"));
+        if (writer != null) {
+            System.out.println("事件日志：" + writer.getFile());
+        }
+    }
+
+    /**
+     * 写完缓冲区里的事件，关闭日志文件
+     */
+    public static synchronized void stop() {
+        Thread thread = drainer;
+        if (thread == null || !running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void message(String template, Object arg0, Object arg1) {
+        log(Level.MESSAGE, template, arg0, arg1, null, null);
+    }
+
+    public static void info(String template, Object arg0) {
+        log(Level.INFO, template, arg0, null, null, null);
+    }
+
+    public static void info(String template, Object arg0, Object arg1) {
+        log(Level.INFO, template, arg0, arg1, null, null);
+    }
+
+    public static void warn(String template, Object arg0) {
+        log(Level.WARN, template, arg0, null, null, null);
+    }
+
+    public static void warn(String template, Object arg0, Object arg1) {
+        log(Level.WARN, template, arg0, arg1, null, null);
+    }
+
+    public static void warn(String template, Object arg0, Throwable error) {
+        log(Level.WARN, template, arg0, null, null, error);
+    }
+
+    public static void error(String template, Object arg0, Throwable error) {
+        log(Level.ERROR, template, arg0, null, null, error);
+    }
+
+    /**
+     * 记录一个事件，不阻塞：没有抽中或者缓冲区满了直接返回
+     * 参数只保存引用，由后台线程格式化，所以只能传不会再修改的对象（字符串、数字等）
+     * @param template  消息模板，参数依次替换其中的 {}
+     * @param error     附带的异常，没有时为 null
+     */
+    public static void log(Level level, String template, Object arg0, Object arg1, Object arg2, Throwable error) {
+        if (level.compareTo(minLevel) < 0) {
+            return;
+        }
+        int every = sampleEvery[level.ordinal()];
+        if (every > 1 && ThreadLocalRandom.current().nextInt(every) != 0) {
+            sampledOut.increment();
+            return;
+        }
+        long pos = tail.get();
+        int index;
+        while (true) {
+            index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // 后台线程还没取走一圈之前的事件，缓冲区满了
+                dropped.increment();
+                return;
+            } else {
+                // 被其他生产者抢先了
+                pos = tail.get();
+            }
+        }
+        Event event = slots[index];
+        event.level = level;
+        event.millis = System.currentTimeMillis();
+        event.thread = Thread.currentThread().getName();
+        event.template = template;
+        event.arg0 = arg0;
+        event.arg1 = arg1;
+        event.arg2 = arg2;
+        event.error = error;
+        // 发布：后台线程看到新序号时，上面的字段一定已经可见
+        sequences.lazySet(index, pos + 1);
+    }
+
+    /**
+     * 后台线程：取出事件写到文件，缓冲区空了就 flush 并短暂休眠
+     */
+    private static void drainLoop() {
+        Formatter formatter = new Formatter();
+        long reportedDropped = 0;
+        while (true) {
+            int n = 0;
+            Event event;
+            while (n < BATCH && (event = peek()) != null) {
+                emit(formatter.format(event));
+                consume(event);
+                n++;
+            }
+            long drops = dropped.sum();
+            if (drops > reportedDropped) {
+                emit(formatter.dropped(drops - reportedDropped));
+                reportedDropped = drops;
+            }
+            if (n == 0) {
+                flush();
+                if (!running) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 下一个已经填好的事件，没有时返回 null
+     */
+    private static Event peek() {
+        int index = (int) head & mask;
+        return sequences.get(index) == head + 1 ? slots[index] : null;
+    }
+
+    /**
+     * 释放槽位，等下一圈的生产者使用
+     */
+    private static void consume(Event event) {
+        event.clear();
+        sequences.lazySet((int) head & mask, head + capacity);
+        head++;
+        written.incrementAndGet();
+    }
+
+    private static void emit(String line) {
+        if (console) {
+            System.out.print(line);
+        }
+        if (writer != null) {
+            try {
+                writer.write(line.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void flush() {
+        if (writer != null) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static int ceilingPowerOfTwo(int n) {
+        return n <= 2 ? 2 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    /**
+     * 缓冲区满而丢弃的事件数
+     */
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * 抽样跳过的事件数
+     */
+    public static long getSampledOut() {
+        return sampledOut.sum();
+    }
+
+    /**
+     * 已写出的事件数
+     */
+    public static long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * 环形缓冲区的一个槽位，一直复用，取出之后清掉引用
+     */
+    private static final class Event {
+
+        private Level level;
+        private long millis;
+        private String thread;
+        private String template;
+        private Object arg0;
+        private Object arg1;
+        private Object arg2;
+        private Throwable error;
+
+        void clear() {
+            thread = null;
+            template = null;
+            arg0 = null;
+            arg1 = null;
+            arg2 = null;
+            error = null;
+        }
+    }
+
+    /**
+     * 把事件拼成一行：时间 级别 [线程] 消息，只有后台线程使用
+     */
+    private static final class Formatter {
+
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        private final StringBuilder line = new StringBuilder(256);
+        private final Date date = new Date();
+
+        String format(Event event) {
+            line.setLength(0);
+            date.setTime(event.millis);
+            line.append(dateFormat.format(date)).append(' ').append(event.level.name());
+            for (int i = event.level.name().length(); i < 8; i++) {
+                line.append(' ');
+            }
+            line.append('[').append(event.thread).append("] ");
+            Object[] args = {event.arg0, event.arg1, event.arg2};
+            int arg = 0;
+            String template = event.template;
+            int from = 0;
+            int at;
+            while ((at = template.indexOf("{}", from)) >= 0 && arg < args.length) {
+                line.append(template, from, at).append(args[arg++]);
+                from = at + 2;
+            }
+            line.append(template, from, template.length()).append('\n');
+            if (event.error != null) {
+                StringWriter trace = new StringWriter();
+                event.error.printStackTrace(new PrintWriter(trace));
+                line.append(trace);
+            }
+            return line.toString();
+        }
+
+        String dropped(long count) {
+            date.setTime(System.currentTimeMillis());
+            return dateFormat.format(date) + " WARN    [chat-event-log] 事件缓冲区已满，丢弃了 " + count + " 条事件\n";
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 指标注册表，按注册顺序保存所有指标
+ * 三种指标：
+ * 1. 计数器（counter）：只增不减，用 LongAdder 分段累加，热路径上不争用同一个缓存行，也不分配对象
+ * 2. 仪表（gauge）：当前值，比如队列长度，采集时才调用 LongSupplier 计算
+ * 3. 摘要（summary）：{@link Histogram} 的分布，输出 p50/p90/p99/p999、总和、个数
+ * 注册在启动时完成，之后只有读，采集（Prometheus 文本、JMX 属性）可以和记录同时进行。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-22 9:00 AM
+ */
+public class MetricsRegistry {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] QUANTILE_SUFFIXES = {"_p50", "_p90", "_p99", "_p999"};
+
+    private final Map<String, Metric> metrics = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    /**
+     * 注册一个新的计数器
+     */
+    public LongAdder counter(String name, String help) {
+        LongAdder adder = new LongAdder();
+        counter(name, help, adder::sum);
+        return adder;
+    }
+
+    /**
+     * 把已有的计数注册为计数器
+     */
+    public void counter(String name, String help, LongSupplier value) {
+        register(new Metric(name, help, "counter", value, null));
+    }
+
+    /**
+     * 注册一个仪表，采集时调用 value 计算当前值
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        register(new Metric(name, help, "gauge", value, null));
+    }
+
+    /**
+     * 注册一个新的直方图，按摘要输出
+     */
+    public Histogram histogram(String name, String help) {
+        Histogram histogram = new Histogram();
+        histogram(name, help, histogram);
+        return histogram;
+    }
+
+    /**
+     * 把已有的直方图注册为摘要
+     */
+    public void histogram(String name, String help, Histogram histogram) {
+        register(new Metric(name, help, "summary", null, histogram));
+    }
+
+    private void register(Metric metric) {
+        if (metrics.putIfAbsent(metric.name, metric) != null) {
+            throw new IllegalArgumentException("指标重复注册：" + metric.name);
+        }
+    }
+
+    /**
+     * 按 Prometheus 文本格式（0.0.4）输出所有指标
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Metric metric : snapshotMetrics()) {
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+            if (metric.histogram == null) {
+                out.append(metric.name).append(' ').append(metric.value.getAsLong()).append('\n');
+                continue;
+            }
+            Histogram histogram = metric.histogram;
+            for (double quantile : QUANTILES) {
+                out.append(metric.name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(histogram.percentile(quantile * 100)).append('\n');
+            }
+            out.append(metric.name).append("_sum ").append(histogram.getSum()).append('\n');
+            out.append(metric.name).append("_count ").append(histogram.getCount()).append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * 所有指标的当前值，直方图展开为 _count、_mean、_p50、_p90、_p99、_p999、_max，用作 JMX 属性
+     */
+    public Map<String, Number> values() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (Metric metric : snapshotMetrics()) {
+            if (metric.histogram == null) {
+                values.put(metric.name, metric.value.getAsLong());
+                continue;
+            }
+            Histogram histogram = metric.histogram;
+            values.put(metric.name + "_count", histogram.getCount());
+            values.put(metric.name + "_mean", histogram.getMean());
+            for (int i = 0; i < QUANTILES.length; i++) {
+                values.put(metric.name + QUANTILE_SUFFIXES[i], histogram.percentile(QUANTILES[i] * 100));
+            }
+            values.put(metric.name + "_max", histogram.getMax());
+        }
+        return values;
+    }
+
+    /**
+     * 指标名和说明，直方图展开后的名称和 {@link #values()} 一致
+     */
+    public Map<String, String> descriptions() {
+        Map<String, String> descriptions = new LinkedHashMap<>();
+        for (Map.Entry<String, Number> entry : values().entrySet()) {
+            descriptions.put(entry.getKey(), helpOf(entry.getKey()));
+        }
+        return descriptions;
+    }
+
+    private String helpOf(String attribute) {
+        Metric metric = metrics.get(attribute);
+        if (metric == null) {
+            metric = metrics.get(attribute.substring(0, attribute.lastIndexOf('_')));
+        }
+        return metric == null ? attribute : metric.help;
+    }
+
+    private List<Metric> snapshotMetrics() {
+        synchronized (metrics) {
+            return new ArrayList<>(metrics.values());
+        }
+    }
+
+    /**
+     * 一个指标，计数器和仪表用 value，摘要用 histogram
+     */
+    private static class Metric {
+
+        private final String name;
+        private final String help;
+        private final String type;
+        private final LongSupplier value;
+        private final Histogram histogram;
+
+        Metric(String name, String help, String type, LongSupplier value, Histogram histogram) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.value = value;
+            this.histogram = histogram;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * 帧编码工具
+ *
+ * @author Hedon Wang
+ * @create 2026-10-17 3:40 PM
+ */
+public final class FrameCodec {
+
+    private FrameCodec() {
+    }
+
+    /**
+     * varint 编码 value 需要的字节数
+     */
+    public static int varintSize(int value) {
+        if ((value & (~0 << 7)) == 0) return 1;
+        if ((value & (~0 << 14)) == 0) return 2;
+        if ((value & (~0 << 21)) == 0) return 3;
+        if ((value & (~0 << 28)) == 0) return 4;
+        return 5;
+    }
+
+    /**
+     * 负载长度为 payloadLength 的帧编码后的总字节数
+     */
+    public static int frameSize(int payloadLength) {
+        return varintSize(payloadLength) + 1 + payloadLength;
+    }
+
+    /**
+     * 以 varint 格式写入 value
+     */
+    public static void putVarint(ByteBuffer dst, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    /**
+     * 写入帧头：负载长度 + 类型
+     */
+    public static void putHeader(ByteBuffer dst, byte type, int payloadLength) throws ProtocolException {
+        checkPayloadLength(payloadLength);
+        putVarint(dst, payloadLength);
+        dst.put(type);
+    }
+
+    /**
+     * 把 payload 剩余的数据编码成一个完整帧，写入 dst
+     */
+    public static void putFrame(ByteBuffer dst, byte type, ByteBuffer payload) throws ProtocolException {
+        putHeader(dst, type, payload.remaining());
+        dst.put(payload);
+    }
+
+    /**
+     * 把 payload 剩余的数据编码成一个新的帧，返回的 buffer 处于读模式
+     */
+    public static ByteBuffer encode(byte type, ByteBuffer payload) throws ProtocolException {
+        ByteBuffer frame = ByteBuffer.allocate(frameSize(payload.remaining()));
+        putFrame(frame, type, payload);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * 检查负载长度是否合法
+     */
+    static void checkPayloadLength(int payloadLength) throws ProtocolException {
+        checkPayloadLength(payloadLength, Frame.MAX_PAYLOAD_SIZE);
+    }
+
+    /**
+     * 按指定的上限检查负载长度，给外层包着客户端帧的协议（比如节点间链路）用
+     */
+    public static void checkPayloadLength(int payloadLength, int maxPayloadSize) throws ProtocolException {
+        if (payloadLength < 0 || payloadLength > maxPayloadSize) {
+            throw new ProtocolException("非法的帧长度：" + payloadLength);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package protocol;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * 增量帧解码器，每个连接一个
+ * TCP 是字节流，一次 read 可能读到半个帧，也可能读到好几个帧。
+ * 解码器直接在读缓冲区上解析完整的帧，只有剩下的半个帧才会被复制到连接自己的累积缓冲区里，
+ * 等下次读到更多数据后再拼起来。稳态下（每次读到的都是完整帧）不分配任何对象。
+ * 累积缓冲区从 {@link BufferAllocator} 申请，半个帧拼完后立即归还，空闲连接不占用缓冲区。
+ * 可以限制一次最多解码几个帧，超出的完整帧也留在累积缓冲区里，调用方（比如按预算读取的事件循环）稍后再继续解码。
+ * handler 也可以在回调里 {@link #pause()}（比如超出限速），解码在当前帧之后停下，之后的数据同样留在累积缓冲区里，
+ * {@link #resume()} 之后用 {@link #decodePending} 继续。
+ * handler 在回调里关闭连接时会 {@link #reset()}，解码在当前帧之后停下，之后既不再回调 handler，也不再申请累积缓冲区。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-17 3:40 PM
+ */
+public final class FrameDecoder {
+
+    private static final int INITIAL_CUMULATION = 1024;
+
+    private final BufferAllocator allocator;
+    private final int maxPayloadSize;   // 单帧负载的上限
+    private ByteBuffer cumulation;      // 累积的半个帧，读模式：position ~ limit 之间是还没解码的数据
+    private boolean paused;             // 暂停解码，新数据只追加到累积缓冲区
+    private boolean closed;             // 已经 reset，丢弃之后的所有数据
+
+    public FrameDecoder() {
+        this(BufferAllocator.HEAP);
+    }
+
+    public FrameDecoder(BufferAllocator allocator) {
+        this(allocator, Frame.MAX_PAYLOAD_SIZE);
+    }
+
+    /**
+     * @param maxPayloadSize    单帧负载的上限，超过时抛出 ProtocolException，默认是 {@link Frame#MAX_PAYLOAD_SIZE}
+     */
+    public FrameDecoder(BufferAllocator allocator, int maxPayloadSize) {
+        this.allocator = allocator;
+        this.maxPayloadSize = maxPayloadSize;
+    }
+
+    /**
+     * 解码 in 中剩余的数据，每解出一个完整帧就回调一次 handler
+     * 方法返回后 in 中的数据已经全部被消费（解码或复制到累积缓冲区）
+     * @throws IOException  帧格式非法（ProtocolException）或 handler 抛出异常
+     */
+    public <A> void decode(ByteBuffer in, FrameHandler<A> handler, A attachment) throws IOException {
+        decode(in, handler, attachment, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 最多解码 maxFrames 个帧，超出的数据（可能包含完整的帧）都留在累积缓冲区里，之后用 {@link #decodePending} 继续解码
+     * 方法返回后 in 中的数据已经全部被消费
+     * @return              回调 handler 的次数
+     * @throws IOException  帧格式非法（ProtocolException）或 handler 抛出异常
+     */
+    public <A> int decode(ByteBuffer in, FrameHandler<A> handler, A attachment, int maxFrames) throws IOException {
+        if (closed) {
+            in.position(in.limit());
+            return 0;
+        }
+        if (cumulation == null) {
+            // 快速路径：没有残留数据，直接在 in 上解码
+            int frames = decodeFrames(in, handler, attachment, maxFrames);
+            if (closed) {
+                // handler 关闭了连接，剩下的数据不再保留
+                in.position(in.limit());
+            } else if (in.hasRemaining()) {
+                append(in);
+            }
+            return frames;
+        }
+        // 有残留的数据，先拼起来再解码
+        append(in);
+        return decodePending(handler, attachment, maxFrames);
+    }
+
+    /**
+     * 不读新数据，只解码累积缓冲区里已有的完整帧，最多 maxFrames 个
+     * @return              回调 handler 的次数，只剩半个帧或者没有残留数据时返回 0
+     */
+    public <A> int decodePending(FrameHandler<A> handler, A attachment, int maxFrames) throws IOException {
+        if (cumulation == null) {
+            return 0;
+        }
+        try {
+            return decodeFrames(cumulation, handler, attachment, maxFrames);
+        } finally {
+            // 拼完了就归还
+            if (cumulation != null && !cumulation.hasRemaining()) {
+                release();
+            }
+        }
+    }
+
+    /**
+     * 累积缓冲区中还没解码的字节数
+     */
+    public int pendingBytes() {
+        return cumulation == null ? 0 : cumulation.remaining();
+    }
+
+    /**
+     * 暂停解码：正在回调的帧处理完之后不再回调 handler，剩下的数据都留在累积缓冲区里
+     */
+    public void pause() {
+        paused = true;
+    }
+
+    /**
+     * 恢复解码，累积缓冲区里已有的帧要调用 {@link #decodePending} 才会解码
+     */
+    public void resume() {
+        paused = false;
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * 连接关闭时调用：丢弃残留数据，归还累积缓冲区，之后的 decode 直接丢弃数据
+     * 可以在 handler 的回调里调用，正在进行的解码在当前帧之后停止
+     */
+    public void reset() {
+        closed = true;
+        release();
+    }
+
+    /**
+     * 归还累积缓冲区
+     */
+    private void release() {
+        if (cumulation != null) {
+            ByteBuffer buffer = cumulation;
+            cumulation = null;
+            allocator.free(buffer);
+        }
+    }
+
+    /**
+     * 解码 buf 中的完整帧，最多 maxFrames 个，暂停或者被 reset 时停止，没解码的数据保留在 buf 中
+     * @return  解码的帧数
+     */
+    private <A> int decodeFrames(ByteBuffer buf, FrameHandler<A> handler, A attachment, int maxFrames) throws IOException {
+        // buf 是累积缓冲区时，handler 里的 reset 会把它还给池，之后不能再改它的 position 和 limit
+        boolean pooled = buf == cumulation;
+        int frames = 0;
+        while (frames < maxFrames && !paused && !closed && buf.hasRemaining()) {
+            int start = buf.position();
+            int available = buf.remaining();
+
+            // 解析 varint 长度
+            int payloadLength = 0;
+            int headerSize = 0;
+            for (;;) {
+                if (headerSize == available) {
+                    return frames;
+                }
+                byte b = buf.get(start + headerSize);
+                payloadLength |= (b & 0x7F) << (7 * headerSize);
+                headerSize++;
+                if (b >= 0) {
+                    break;
+                }
+                if (headerSize == 5) {
+                    throw new ProtocolException("帧长度的 varint 超过 5 字节");
+                }
+            }
+            FrameCodec.checkPayloadLength(payloadLength, maxPayloadSize);
+
+            // 加上类型字节，判断整帧是否已经到齐
+            if (available < headerSize + 1 + payloadLength) {
+                return frames;
+            }
+            byte type = buf.get(start + headerSize);
+            int payloadStart = start + headerSize + 1;
+            int end = payloadStart + payloadLength;
+
+            // 把 buf 的 position/limit 限定在负载上交给 handler，不复制
+            int limit = buf.limit();
+            buf.limit(end);
+            buf.position(payloadStart);
+            frames++;
+            try {
+                handler.onFrame(type, buf, attachment);
+            } finally {
+                if (!(pooled && closed)) {
+                    buf.limit(limit);
+                    buf.position(end);
+                }
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * 把 in 中剩余的数据追加到累积缓冲区，必要时扩容
+     */
+    private void append(ByteBuffer in) {
+        if (cumulation == null) {
+            cumulation = allocator.allocate(Math.max(INITIAL_CUMULATION, in.remaining()));
+            cumulation.flip();
+        }
+        cumulation.compact();
+        if (cumulation.remaining() < in.remaining()) {
+            int required = cumulation.position() + in.remaining();
+            ByteBuffer bigger = allocator.allocate(Math.max(required, cumulation.capacity() * 2));
+            cumulation.flip();
+            bigger.put(cumulation);
+            allocator.free(cumulation);
+            cumulation = bigger;
+        }
+        cumulation.put(in);
+        cumulation.flip();
+    }
+}
@@ -1,10 +1,13 @@
 package server;
 
+import buffer.BufferPool;
+import log.EventLog;
+import metrics.ChatMetrics;
+
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
-import java.util.List;
 
 /**
  * 客户端连接完成后要做的回调
@@ -17,11 +20,25 @@ public class AcceptHandler implements CompletionHandler<AsynchronousSocketChanne
     private static final int BUFFER = 1024;
 
     private AsynchronousServerSocketChannel serverSocketChannel;
-    private List<ClientHandler> connectedClients;
+    private ClientRegistry connectedClients;
+    private RoomRegistry rooms;
+    private NicknameRegistry<ClientHandler> nicknames;
+    private SlowConsumerPolicy slowConsumers;
+    private IdleMonitor idleMonitor;
+    private ChatMetrics metrics;
+    private RateLimits rateLimits;
 
-    public AcceptHandler(AsynchronousServerSocketChannel serverSocketChannel, List<ClientHandler> connectedClients) {
+    public AcceptHandler(AsynchronousServerSocketChannel serverSocketChannel, ClientRegistry connectedClients,
+                         RoomRegistry rooms, NicknameRegistry<ClientHandler> nicknames, SlowConsumerPolicy slowConsumers,
+                         IdleMonitor idleMonitor, ChatMetrics metrics, RateLimits rateLimits) {
         this.serverSocketChannel = serverSocketChannel;
         this.connectedClients = connectedClients;
+        this.rooms = rooms;
+        this.nicknames = nicknames;
+        this.slowConsumers = slowConsumers;
+        this.idleMonitor = idleMonitor;
+        this.metrics = metrics;
+        this.rateLimits = rateLimits;
     }
 
     /**
@@ -35,12 +52,13 @@ public class AcceptHandler implements CompletionHandler<AsynchronousSocketChanne
         }
 
         if (clientChannel != null && clientChannel.isOpen()) {
-            ClientHandler clientHandler = new ClientHandler(clientChannel, this.connectedClients);
+            ClientHandler clientHandler = new ClientHandler(clientChannel, this.connectedClients, this.rooms, this.nicknames,
+                    this.slowConsumers, this.idleMonitor, this.metrics, this.rateLimits);
             // 添加新客户端
             clientHandler.addClient(clientHandler);
 
-            // 接收客户端发来的信息
-            ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+            // 接收客户端发来的信息，读缓冲区从缓冲池申请，客户端下线时归还
+            ByteBuffer buffer = BufferPool.DEFAULT.allocate(BUFFER);
             // 参数1：把客户端发来的信息读要 buffer 缓冲区中
             // 参数2：将 buffer 作为附加对象传给回调对象
             // 参数3：回调对象，每个客户端对应一个自己的 ClientHandler
@@ -53,6 +71,6 @@ public class AcceptHandler implements CompletionHandler<AsynchronousSocketChanne
      */
     @Override
     public void failed(Throwable exc, Object attachment) {
-        System.out.println("AcceptHandler 发生异常了，exception: " + exc + "，attachment: " + attachment);
+        EventLog.warn("AcceptHandler 发生异常了，exception: {}，attachment: {}", exc, attachment);
     }
 }
@@ -1,12 +1,16 @@
 package server;
 
+import buffer.BufferPool;
+import log.EventLog;
+import metrics.ChatMetrics;
+import metrics.Histogram;
+import metrics.MetricsRegistry;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -23,7 +27,13 @@ public class ChatServer {
     private AsynchronousChannelGroup channelGroup;                  // 自定义 asyncChannelGroup
     private AsynchronousServerSocketChannel serverSocketChannel;    // 服务端异步通道
 
-    private List<ClientHandler> connectedClients;
+    private ClientRegistry connectedClients;
+    private RoomRegistry rooms;                                     // 房间名 -> 房间
+    private NicknameRegistry<ClientHandler> nicknames;              // 昵称 -> 客户端
+    private SlowConsumerPolicy slowConsumers;                       // 慢消费者处理策略和统计
+    private IdleMonitor idleMonitor;                                // 心跳和空闲超时
+    private ChatMetrics metrics;                                    // 指标，通过 JMX 和 Prometheus 端点暴露
+    private RateLimits rateLimits;                                  // 入站限速，可以通过 JMX 在运行时修改
     private int port;
 
     public ChatServer(){
@@ -32,7 +42,13 @@ public class ChatServer {
 
     public ChatServer(int port){
         this.port = port;
-        this.connectedClients = new ArrayList<>();
+        this.connectedClients = new ClientRegistry();
+        this.rooms = new RoomRegistry();
+        this.nicknames = new NicknameRegistry<>();
+        this.slowConsumers = SlowConsumerPolicy.fromSystemProperties();
+        this.idleMonitor = new IdleMonitor(IdleConfig.fromSystemProperties());
+        this.metrics = new ChatMetrics();
+        this.rateLimits = RateLimits.fromSystemProperties();
     }
 
     /**
@@ -43,6 +59,8 @@ public class ChatServer {
         ExecutorService executorService = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
 
         try {
+            // 先打开事件日志，启动失败的原因也能记下来
+            EventLog.start("AIO");
             // 自定义 asyncChannelGroup
             channelGroup = AsynchronousChannelGroup.withThreadPool(executorService);
             // 开一个服务端通道
@@ -50,26 +68,114 @@ public class ChatServer {
             // 绑定端口
             serverSocketChannel.bind(new InetSocketAddress(LOCALHOST, this.port));
             System.out.println("启动服务端，监听端口：" + this.port + "...");
+            // 启动推进时间轮的线程（空闲检查和限速恢复）
+            idleMonitor.start();
+            registerMetrics();
+            metrics.start("AIO", this.port);
+            rateLimits.register("AIO", this.port);
 
             // 监听客户端的连接请求
             while (true) {
                 // 参数1：附带对象
                 // 参数2：客户端连接后要进行的回调
-                serverSocketChannel.accept(null, new AcceptHandler(this.serverSocketChannel, this.connectedClients));
+                serverSocketChannel.accept(null, new AcceptHandler(this.serverSocketChannel, this.connectedClients, this.rooms, this.nicknames, this.slowConsumers,
+                        this.idleMonitor, this.metrics, this.rateLimits));
                 // 阻塞一下，避免一直循环。
                 // accept 后，read 前可以做其他一些操作，因为是异步非阻塞的
                 System.in.read();
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            EventLog.error("服务器异常退出，端口 {}", this.port, e);
         } finally {
             closeResource(serverSocketChannel);
+            idleMonitor.shutdown();
+            reportBufferLeaks();
+            metrics.stop();
+            EventLog.stop();
             if (channelGroup != null) {
                 channelGroup.shutdown();
             }
         }
     }
 
+    /**
+     * 打开了泄漏检测（-Dchat.buffer.leakDetection=true）时，打印关闭时还没归还的缓冲区的申请位置
+     * worker 的读缓冲区这类在关闭过程中才归还的缓冲区也可能出现在报告里
+     */
+    private void reportBufferLeaks() {
+        BufferPool pool = BufferPool.DEFAULT;
+        if (!pool.isLeakDetection()) {
+            return;
+        }
+        int leaks = pool.reportLeaks();
+        if (leaks > 0) {
+            EventLog.warn("关闭时有 {} 个缓冲区未归还：{}", leaks, pool);
+        } else {
+            EventLog.info("关闭时所有缓冲区都已归还：{}", pool);
+        }
+    }
+
+    /**
+     * 注册 AIO 服务端特有的指标
+     */
+    private void registerMetrics() {
+        MetricsRegistry registry = metrics.getRegistry();
+        registry.gauge("chat_rooms", "房间数", () -> rooms.size());
+        registry.gauge("chat_outbound_queue_bytes", "所有连接发送队列中积压的字节数", () -> {
+            long[] bytes = new long[1];
+            connectedClients.forEach(clientHandler -> bytes[0] += clientHandler.getWritePipeline().getQueuedBytes());
+            return bytes[0];
+        });
+        registry.gauge("chat_outbound_queue_messages", "所有连接发送队列中积压的消息数", () -> {
+            long[] messages = new long[1];
+            connectedClients.forEach(clientHandler -> messages[0] += clientHandler.getWritePipeline().getQueueDepth());
+            return messages[0];
+        });
+        registry.histogram("chat_write_batch_size", "每次聚集写的消息数", WritePipeline.getBatchSizes());
+        registry.counter("chat_ratelimit_throttled_total", "超出限速暂停读取的次数", rateLimits::getThrottledCount);
+        registry.counter("chat_ratelimit_throttled_millis_total", "超出限速暂停读取的总毫秒数", rateLimits::getThrottledMillis);
+        registry.counter("chat_slow_consumer_lagging_total", "连接积压超过高水位的次数", slowConsumers::getLaggingCount);
+        registry.counter("chat_slow_consumer_recovered_total", "连接积压回落到低水位以下的次数", slowConsumers::getRecoveredCount);
+        registry.counter("chat_slow_consumer_skipped_total", "积压期间跳过的不重要消息数", slowConsumers::getSkippedMessages);
+        registry.counter("chat_slow_consumer_evictions_total", "断开的慢消费者数", slowConsumers::getEvictions);
+        BufferPool pool = BufferPool.DEFAULT;
+        registry.counter("chat_buffer_pool_hits_total", "从线程本地缓存或共享 arena 拿到缓冲区的次数",
+                () -> pool.getThreadCacheHits() + pool.getArenaHits());
+        registry.counter("chat_buffer_pool_misses_total", "池中没有、新分配直接缓冲区的次数", pool::getMisses);
+        registry.counter("chat_buffer_pool_unpooled_total", "超过最大级别、不池化直接分配的次数", pool::getUnpooled);
+        registry.gauge("chat_buffer_pool_outstanding", "已申请还未归还的缓冲区数", pool::getOutstanding);
+        registry.counter("chat_eventlog_dropped_total", "事件日志缓冲区满而丢弃的事件数", EventLog::getDropped);
+        registry.counter("chat_eventlog_sampled_out_total", "事件日志抽样跳过的事件数", EventLog::getSampledOut);
+    }
+
+    /**
+     * 指标
+     */
+    public ChatMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 入站限速
+     */
+    public RateLimits getRateLimits() {
+        return rateLimits;
+    }
+
+    /**
+     * 慢消费者的统计和最近的断开事件
+     */
+    public SlowConsumerPolicy getSlowConsumers() {
+        return slowConsumers;
+    }
+
+    /**
+     * 每次聚集写的消息数分布
+     */
+    public Histogram getBatchSizes() {
+        return WritePipeline.getBatchSizes();
+    }
+
     /**
      * 释放资源
      */
@@ -78,7 +184,7 @@ public class ChatServer {
             try {
                 closeable.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                EventLog.warn("关闭 {} 失败", closeable.toString(), e);
             }
         }
     }
@@ -1,13 +1,25 @@
 package server;
 
+import buffer.BufferPool;
+import log.EventLog;
+import metrics.ChatMetrics;
+import timer.TimingWheel;
+import protocol.Frame;
+import protocol.FrameDecoder;
+import protocol.FrameHandler;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
 import java.nio.charset.Charset;
-import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 收到客户端发来的信息后，IO 完成后要做的回调
@@ -15,58 +27,301 @@ import java.util.List;
  * @param   '<V>'     The result type of the I/O operation                      这里是从客户端读到了多少数据，所以是 Integer
  * @param   '<A>'     The type of the object attached to the I/O operation      附加对象的类型，这里是 ByteBuffer
  */
-public class ClientHandler implements CompletionHandler<Integer, ByteBuffer> {
+public class ClientHandler implements CompletionHandler<Integer, ByteBuffer>, FrameHandler<Void> {
 
     private static final String QUIT = "quit";
 
     private Charset charset = Charset.forName("UTF-8");
 
     private AsynchronousSocketChannel clientChannel;
-    private List<ClientHandler> connectedClients;
+    private ClientRegistry connectedClients;
+    private RoomRegistry rooms;
+    private NicknameRegistry<ClientHandler> nicknames;
+    private FrameDecoder decoder = new FrameDecoder(BufferPool.DEFAULT);    // 拼接半包的解码器，同一时刻只有一个 read 回调在用
+    private WritePipeline writePipeline;                    // 发往该客户端的消息都经过这条管道
+    private IdleMonitor idleMonitor;                        // 心跳和空闲超时
+    private ChatMetrics metrics;                            // 指标
+    private RateLimits rateLimits;                          // 入站限速
+    private boolean quitting;                               // 客户端已发送退出命令
+
+    // 加入的房间及在房间中的槽位（连接 -> 房间索引），读回调和写失败下线可能在不同线程里访问
+    private final ConcurrentHashMap<Room, Integer> joinedRooms = new ConcurrentHashMap<>();
+    private volatile Room currentRoom;                      // 聊天消息发往的房间
+    private volatile String nickname;                       // 昵称，没有设置时为 null
+
+    // 空闲检查：读回调只更新时间戳，由时间轮线程到期时检查
+    private volatile long lastReadNanos = System.nanoTime();    // 最近一次读到数据的时间
+    private volatile boolean pingSent;                      // 本次读空闲期间是否已经发过 PING
+    private TimingWheel.Timeout idleTimeout;                // 空闲检查的定时任务，只在时间轮线程中访问
+
+    // 入站限速：超出限制时暂停解码，不发起下一次 read，由时间轮线程在令牌补足后恢复
+    private final RateLimiter rateLimiter = new RateLimiter();
+    private long throttleNanos;                             // 本次要暂停读取的纳秒数
+    private ByteBuffer pausedBuffer;                        // 暂停期间保管读缓冲区
+    private TimingWheel.Timeout throttleTimeout;            // 恢复读取的定时任务，只在时间轮线程中访问
 
-    public ClientHandler(AsynchronousSocketChannel clientChannel, List<ClientHandler> connectedClients) {
+    int registryIndex = -1;                                 // 在 ClientRegistry 中的槽位，由 ClientRegistry 维护
+
+    public ClientHandler(AsynchronousSocketChannel clientChannel, ClientRegistry connectedClients,
+                         RoomRegistry rooms, NicknameRegistry<ClientHandler> nicknames, SlowConsumerPolicy slowConsumers,
+                         IdleMonitor idleMonitor, ChatMetrics metrics, RateLimits rateLimits) {
         this.clientChannel = clientChannel;
         this.connectedClients = connectedClients;
+        this.rooms = rooms;
+        this.nicknames = nicknames;
+        this.writePipeline = new WritePipeline(clientChannel, this, slowConsumers, metrics);
+        this.idleMonitor = idleMonitor;
+        this.metrics = metrics;
+        this.rateLimits = rateLimits;
     }
 
     /**
-     * IO 正常完成后要做的回调： 将客户端发来的消息转发给其他客户端
+     * 读 IO 正常完成后要做的回调： 将客户端发来的消息转发给其他客户端
+     * 写操作由 {@link WritePipeline} 负责，不再回调到这里
      */
     @Override
     public void completed(Integer result, ByteBuffer attachment) {
 
         ByteBuffer buffer = attachment;
 
-        // 如果 attachment 为空，则表示之前服务器刚刚对 buffer 完成了读操作（即已经转发了），不需要额外的操作
-        if (buffer == null) {
+        // 客户端异常
+        if (result <= 0) {
+            close(buffer);
+            return;
+        }
+        metrics.getBytesIn().add(result);
+        // 收到数据，读空闲重新计时
+        lastReadNanos = System.nanoTime();
+        pingSent = false;
+        // 将 buffer 从写模式切换为读模式
+        buffer.flip();
+        // 解码出完整的帧，逐个转发，半个帧留在解码器里等下次读
+        try {
+            decoder.decode(buffer, this, null);
+        } catch (IOException e) {
+            // 帧格式错误，断开客户端
+            EventLog.warn("{}发来的帧格式错误，断开连接", getClientName(clientChannel), e);
+            close(buffer);
+            return;
+        }
+        buffer.clear();
+        continueReading(buffer);
+    }
+
+    /**
+     * 处理完读到的数据之后：退出、超出限速暂停读取，或者继续监听客户端信息
+     */
+    private void continueReading(ByteBuffer buffer) {
+        if (quitting) {
+            // 退出，移除客户端
+            close(buffer);
+        } else if (decoder.isPaused()) {
+            // 超出限速，不发起下一次 read，数据留在内核里，背压传回发送者
+            pausedBuffer = buffer;
+            idleMonitor.scheduleResume(this, TimeUnit.NANOSECONDS.toMillis(throttleNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+        } else {
+            // 不退出，继续监听客户端信息
+            clientChannel.read(buffer, buffer, this);
+        }
+    }
+
+    /**
+     * 令牌补足，恢复读取：先处理留在解码器里的帧，再发起下一次 read，在时间轮线程中执行
+     * 暂停期间没有读数据不算读空闲，空闲计时从头开始
+     */
+    void resumeReading() {
+        ByteBuffer buffer = pausedBuffer;
+        pausedBuffer = null;
+        // 暂停期间被其他线程断开了，没有正在进行的 read，由这里归还缓冲区
+        if (!clientChannel.isOpen()) {
+            close(buffer);
+            return;
+        }
+        lastReadNanos = System.nanoTime();
+        decoder.resume();
+        try {
+            decoder.decodePending(this, null, Integer.MAX_VALUE);
+        } catch (IOException e) {
+            EventLog.warn("{}发来的帧格式错误，断开连接", getClientName(clientChannel), e);
+            close(buffer);
+            return;
+        }
+        continueReading(buffer);
+    }
 
+    /**
+     * 按客户端和当前房间的限速扣令牌，超出时暂停解码，本帧照常处理
+     */
+    private void throttle(byte type, int bytes) {
+        Room room = type == Frame.TEXT ? currentRoom : null;
+        long delayNanos = rateLimits.acquire(rateLimiter, room == null ? null : room.getRateLimiter(), bytes);
+        if (delayNanos > 0) {
+            decoder.pause();
+            throttleNanos = delayNanos;
         }
-        // 如果 attachment 不为空，则表示服务器刚刚对 buffer 完成了写操作（即还没转发），现在可以来读取它
-        else {
-            // 客户端异常
-            if (result <= 0) {
-                removeClient(this);
+    }
+
+    /**
+     * 解码出一个完整帧后的回调
+     */
+    @Override
+    public void onFrame(byte type, ByteBuffer payload, Void attachment) throws IOException {
+        // 客户端已经退出，同一次读到的后续帧直接丢弃
+        if (quitting) {
+            return;
+        }
+        metrics.getMessagesIn().increment();
+        throttle(type, payload.remaining());
+        // 获取客户端发来的消息
+        String text = receive(payload);
+        switch (type) {
+            case Frame.TEXT:
+                String clientName = getClientName(clientChannel);
+                EventLog.message("{}：{}", clientName, text);
+                Room room = currentRoom;
+                if (room == null) {
+                    sendNotice("你不在任何房间中，请先用 /join 房间名 加入房间");
+                } else {
+                    // 转发给当前房间的其他成员
+                    publish(room, "[" + room.getName() + "] " + clientName + text, true);
+                }
+                quitting = readyToQuit(text);
+                break;
+            case Frame.JOIN:
+                joinRoom(text);
+                break;
+            case Frame.LEAVE:
+                Room joined = rooms.get(text);
+                if (joined == null || !leaveRoom(joined)) {
+                    sendNotice("你不在房间 [" + text + "] 中");
+                }
+                break;
+            case Frame.NICK:
+                changeNickname(text);
+                break;
+            case Frame.MSG:
+                onDirectMessage(text);
+                break;
+            case Frame.PING:
+                // 原样回复，客户端可以用来测往返时延
+                SharedBuffer pong = SharedBuffer.frame(Frame.PONG, charset, text);
+                try {
+                    writePipeline.send(pong);
+                } finally {
+                    pong.release();
+                }
+                break;
+            case Frame.PONG:
+                // 读到数据时已经重置了空闲计时，这里不需要处理
+                break;
+            default:
+                throw new ProtocolException("未知的帧类型：" + type);
+        }
+    }
+
+    /**
+     * 设置或修改昵称，昵称被占用时保留原来的昵称
+     */
+    private void changeNickname(String newNickname) {
+        if (!NicknameRegistry.isValid(newNickname)) {
+            sendNotice("昵称不能为空、不能包含空白字符，且不超过 " + NicknameRegistry.MAX_LENGTH + " 个字符");
+        } else if (nicknames.register(newNickname, this, nickname)) {
+            nickname = newNickname;
+            // 写失败的下线可能已经释放过昵称，这里自己释放，避免索引里留下已关闭的客户端
+            if (!clientChannel.isOpen()) {
+                nicknames.unregister(newNickname, this);
                 return;
             }
-            // 将 buffer 从写模式切换为读模式
-            buffer.flip();
-            // 获取客户端发来的消息
-            String fwdMsg = receive(buffer);
-            System.out.println(getClientName(this.clientChannel) + "：" + fwdMsg);
-            // 转发
-            forwardMessage(clientChannel, fwdMsg);
-            buffer.clear();
-
-            // 判断用户是否要退出
-            if (readyToQuit(fwdMsg)) {
-                // 退出，移除客户端
-                removeClient(this);
-            } else {
-                // 不退出，继续监听客户端信息
-                clientChannel.read(buffer, buffer, this);
+            sendNotice("昵称已设置为：" + newNickname);
+        } else {
+            sendNotice("昵称 " + newNickname + " 已被占用");
+        }
+    }
+
+    /**
+     * 私聊：按昵称查到接收者，只放进它一个人的写管道
+     */
+    private void onDirectMessage(String text) throws ProtocolException {
+        int space = text.indexOf(' ');
+        if (space <= 0) {
+            throw new ProtocolException("私聊格式错误：" + text);
+        }
+        String targetNickname = text.substring(0, space);
+        ClientHandler target = nicknames.get(targetNickname);
+        if (target == null) {
+            sendNotice("用户 " + targetNickname + " 不在线");
+            return;
+        }
+        SharedBuffer shared = SharedBuffer.frame(Frame.TEXT, charset,
+                "[私聊] " + getClientName(clientChannel) + text.substring(space + 1));
+        try {
+            target.writePipeline.send(shared);
+        } finally {
+            shared.release();
+        }
+    }
+
+    /**
+     * 按房间名加入房间，名称不合法或者房间数已达上限时只回复提示
+     */
+    private void joinRoom(String name) {
+        if (!RoomRegistry.isValidName(name)) {
+            sendNotice("房间名不能为空，只能包含字母、数字、下划线和连字符，且不超过 " + RoomRegistry.MAX_NAME_LENGTH + " 个字符");
+            return;
+        }
+        Room room = rooms.acquire(name);
+        if (room == null) {
+            sendNotice("房间数已达上限，无法创建房间 [" + name + "]");
+            return;
+        }
+        joinRoom(room);
+    }
+
+    /**
+     * 加入房间并把它作为当前房间，同时更新房间 -> 成员、连接 -> 房间两个索引
+     * 房间已经用 {@link RoomRegistry#acquire} 占用，已经在房间中时放开这次占用
+     */
+    private void joinRoom(Room room) {
+        currentRoom = room;
+        // 只有读回调会加入房间，已经在房间中就不会被并发加入
+        if (joinedRooms.containsKey(room)) {
+            rooms.release(room);
+        } else {
+            int slot = room.join(this);
+            joinedRooms.put(room, slot);
+            // 写失败的下线可能已经遍历完 joinedRooms，这里自己退出，避免房间里留下已关闭的成员
+            if (!clientChannel.isOpen()) {
+                if (room.leave(slot, this)) {
+                    rooms.release(room);
+                }
+                return;
             }
+            publish(room, "[" + room.getName() + "] " + getClientName(clientChannel) + "加入了房间", false);
         }
+        sendNotice("当前房间：[" + room.getName() + "]");
+    }
 
+    /**
+     * 离开房间并通知房间里的其他成员，离开的是当前房间时，另一个已加入的房间成为当前房间
+     * @return  之前在房间中返回 true
+     */
+    private boolean leaveRoom(Room room) {
+        Integer slot = joinedRooms.remove(room);
+        if (slot == null) {
+            return false;
+        }
+        if (room.leave(slot, this)) {
+            rooms.release(room);
+        }
+        if (currentRoom == room) {
+            Iterator<Room> remaining = joinedRooms.keySet().iterator();
+            currentRoom = remaining.hasNext() ? remaining.next() : null;
+        }
+        publish(room, "[" + room.getName() + "] " + getClientName(clientChannel) + "离开了房间", false);
+        Room current = currentRoom;
+        sendNotice("已离开房间 [" + room.getName() + "]，当前房间："
+                + (current == null ? "无" : "[" + current.getName() + "]"));
+        return true;
     }
 
     /**
@@ -74,7 +329,18 @@ public class ClientHandler implements CompletionHandler<Integer, ByteBuffer> {
      */
     @Override
     public void failed(Throwable exc, ByteBuffer attachment) {
-        System.out.println("ClientHandler 发生异常了，exception: " + exc + "，attachment: " + attachment);
+        EventLog.warn("ClientHandler 发生异常了，exception: {}，attachment: {}", exc, attachment);
+        close(attachment);
+    }
+
+    /**
+     * 移除客户端，并把读缓冲区和解码器中的缓冲区归还给缓冲池
+     * 只能在 read 回调中调用，此时没有正在进行的 read 在使用 buffer
+     */
+    private void close(ByteBuffer buffer) {
+        removeClient(this);
+        decoder.reset();
+        BufferPool.DEFAULT.free(buffer);
     }
 
     /**
@@ -88,12 +354,17 @@ public class ClientHandler implements CompletionHandler<Integer, ByteBuffer> {
      * 构建客户端名称
      */
     private String getClientName(AsynchronousSocketChannel socketChannel) {
+        // 设置了昵称时使用昵称
+        String nickname = this.nickname;
+        if (nickname != null) {
+            return nickname + " ";
+        }
         String port = "UNKNOWN_CLIENT";
         try {
             InetSocketAddress remoteAddress = (InetSocketAddress)clientChannel.getRemoteAddress();
             port = "" + remoteAddress.getPort();
         } catch (IOException e) {
-            e.printStackTrace();
+            EventLog.warn("获取客户端地址失败：{}", e.toString(), e);
         }
         return "客户端 [" + port + "] ";
     }
@@ -113,7 +384,7 @@ public class ClientHandler implements CompletionHandler<Integer, ByteBuffer> {
             try {
                 closeable.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                EventLog.warn("关闭 {} 失败", closeable.toString(), e);
             }
         }
     }
@@ -121,36 +392,147 @@ public class ClientHandler implements CompletionHandler<Integer, ByteBuffer> {
     /**
      * 添加新客户端
      */
-    public synchronized void addClient(ClientHandler clientHandler) {
+    public void addClient(ClientHandler clientHandler) {
         this.connectedClients.add(clientHandler);
-        System.out.println(getClientName(clientHandler.clientChannel) + "上线");
+        metrics.getConnectionsOpened().increment();
+        EventLog.info("{}上线", getClientName(clientHandler.clientChannel));
+        // 开始心跳和空闲检查
+        idleMonitor.register(clientHandler);
+        // 新客户端默认进入大厅
+        clientHandler.joinRoom(rooms.acquire(Frame.DEFAULT_ROOM));
+    }
+
+    /**
+     * 断开积压太久或太多的慢消费者，由写管道调用
+     */
+    void evict(String reason) {
+        writePipeline.getGuard().getPolicy().onEvicted(getClientName(clientChannel).trim(), reason);
+        removeClient(this);
+    }
+
+    /**
+     * 断开读超时或写超时的客户端，由时间轮线程调用
+     */
+    void closeIdle(String reason) {
+        EventLog.info("{}{}，断开连接", getClientName(clientChannel), reason);
+        removeClient(this);
     }
 
     /**
      * 移除异常客户端
      */
-    public synchronized void removeClient(ClientHandler clientHandler) {
-        this.connectedClients.remove(clientHandler);
-        System.out.println(getClientName(clientHandler.clientChannel) + "下线");
+    public void removeClient(ClientHandler clientHandler) {
+        // 读失败和写失败可能同时触发下线，只处理一次
+        if (!this.connectedClients.remove(clientHandler)) {
+            return;
+        }
+        metrics.getConnectionsClosed().increment();
+        EventLog.info("{}下线", getClientName(clientHandler.clientChannel));
+        idleMonitor.unregister(clientHandler);
         closeResource(clientHandler.clientChannel);
+        clientHandler.writePipeline.close();
+        // 从所有加入的房间中移除
+        for (Map.Entry<Room, Integer> joined : clientHandler.joinedRooms.entrySet()) {
+            Room room = joined.getKey();
+            if (room.leave(joined.getValue(), clientHandler)) {
+                rooms.release(room);
+            }
+        }
+        clientHandler.joinedRooms.clear();
+        clientHandler.currentRoom = null;
+        // 释放昵称
+        nicknames.unregister(clientHandler.nickname, clientHandler);
     }
 
     /**
-     * 转发 self 的消息给 connectedClients 中其他的信息
+     * 转发消息给房间中除自己之外的成员
+     * @param critical  是否是重要消息，上下线提示这类不重要的消息不会发给积压超过高水位的成员
      */
-    private synchronized void forwardMessage(AsynchronousSocketChannel self, String fwdMsg) {
-        for (ClientHandler clientHandler: this.connectedClients) {
-            // 不转发给自身
-            if (clientHandler.clientChannel.equals(self)) {
-                continue;
-            }
-            // 转发给其他客户端
-            try {
-                clientHandler.clientChannel.write(charset.encode(getClientName(self) + fwdMsg), null, clientHandler);
-            }catch (Exception e){
-                // 捕获异常是为了避免某个客户端出意外而导致整个系统瘫痪
-                e.printStackTrace();
+    private void publish(Room room, String fwdMsg, boolean critical) {
+        // 只编码一次，每个接收者拿到一个独立 position 的视图
+        SharedBuffer shared;
+        try {
+            shared = SharedBuffer.frame(Frame.TEXT, charset, fwdMsg);
+        } catch (ProtocolException e) {
+            EventLog.warn("房间 {} 的消息太长，无法转发", room.getName(), e);
+            return;
+        }
+        int recipients = 0;
+        try {
+            // 按槽位遍历成员，不加锁，多个线程的转发和成员变化可以同时进行
+            for (int slot = 0, end = room.highWater(); slot < end; slot++) {
+                ClientHandler clientHandler = room.member(slot);
+                // 跳过空槽，不转发给自身
+                if (clientHandler == null || clientHandler == this) {
+                    continue;
+                }
+                recipients++;
+                // 放进该客户端的写管道，由管道保证同一时刻只有一个 write
+                try {
+                    clientHandler.writePipeline.send(shared, critical);
+                }catch (Exception e){
+                    // 捕获异常是为了避免某个客户端出意外而导致整个系统瘫痪
+                    EventLog.warn("转发给{}失败", getClientName(clientHandler.clientChannel), e);
+                }
             }
+        } finally {
+            metrics.getFanOut().record(recipients);
+            metrics.recordForward(shared.getCreatedNanos());
+            shared.release();
+        }
+    }
+
+    /**
+     * 给当前客户端发送一条系统提示
+     */
+    private void sendNotice(String msg) {
+        SharedBuffer shared;
+        try {
+            shared = SharedBuffer.frame(Frame.TEXT, charset, msg);
+        } catch (ProtocolException e) {
+            EventLog.warn("发给{}的提示太长", getClientName(clientChannel), e);
+            return;
         }
+        try {
+            writePipeline.send(shared);
+        } finally {
+            shared.release();
+        }
+    }
+
+    boolean isOpen() {
+        return clientChannel.isOpen();
+    }
+
+    long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    boolean isPingSent() {
+        return pingSent;
+    }
+
+    void setPingSent(boolean pingSent) {
+        this.pingSent = pingSent;
+    }
+
+    TimingWheel.Timeout getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    void setIdleTimeout(TimingWheel.Timeout idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    TimingWheel.Timeout getThrottleTimeout() {
+        return throttleTimeout;
+    }
+
+    void setThrottleTimeout(TimingWheel.Timeout throttleTimeout) {
+        this.throttleTimeout = throttleTimeout;
+    }
+
+    WritePipeline getWritePipeline() {
+        return writePipeline;
     }
 }
@@ -0,0 +1,118 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * 在线客户端登记表，为"读多写少"的广播场景设计
+ * 客户端放在一个槽位数组里，每个 ClientHandler 记住自己的槽位下标：
+ * 1. 广播遍历不加锁：读一次 volatile 的数组引用和高水位，逐个槽位读取，空槽跳过
+ * 2. 上线：优先复用空闲链表里的槽位，没有就追加到末尾，数组满了翻倍扩容，均摊 O(1)
+ * 3. 下线：把自己的槽位置空并放回空闲链表，O(1)
+ * 写操作之间用一把锁互斥，但不会阻塞广播。
+ * 遍历期间并发上线的客户端可能收不到这一条广播，并发下线的客户端可能还会被遍历到（其写管道已关闭，消息会被丢弃）。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-18 11:00 AM
+ */
+public class ClientRegistry {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final ReentrantLock writeLock = new ReentrantLock();   // 上线、下线之间互斥
+
+    private volatile AtomicReferenceArray<ClientHandler> slots = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    private volatile int highWater;                 // 用过的最大槽位 + 1，遍历到这里为止
+    private volatile int size;                      // 在线客户端数
+
+    // 空闲槽位栈，只在持有 writeLock 时访问
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+    private int freeCount;
+
+    /**
+     * 登记客户端
+     */
+    public void add(ClientHandler clientHandler) {
+        writeLock.lock();
+        try {
+            if (clientHandler.registryIndex >= 0) {
+                return;
+            }
+            int index;
+            if (freeCount > 0) {
+                index = freeSlots[--freeCount];
+            } else {
+                index = highWater;
+                if (index == slots.length()) {
+                    grow();
+                }
+            }
+            clientHandler.registryIndex = index;
+            slots.set(index, clientHandler);
+            if (index == highWater) {
+                highWater = index + 1;
+            }
+            size++;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 注销客户端
+     * @return  客户端之前是否在表中，重复注销返回 false
+     */
+    public boolean remove(ClientHandler clientHandler) {
+        writeLock.lock();
+        try {
+            int index = clientHandler.registryIndex;
+            if (index < 0 || slots.get(index) != clientHandler) {
+                return false;
+            }
+            slots.set(index, null);
+            clientHandler.registryIndex = -1;
+            if (freeCount == freeSlots.length) {
+                int[] bigger = new int[freeSlots.length * 2];
+                System.arraycopy(freeSlots, 0, bigger, 0, freeCount);
+                freeSlots = bigger;
+            }
+            freeSlots[freeCount++] = index;
+            size--;
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 无锁遍历所有在线客户端
+     */
+    public void forEach(Consumer<? super ClientHandler> action) {
+        AtomicReferenceArray<ClientHandler> current = slots;
+        int end = Math.min(highWater, current.length());
+        for (int i = 0; i < end; i++) {
+            ClientHandler clientHandler = current.get(i);
+            if (clientHandler != null) {
+                action.accept(clientHandler);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 槽位数组翻倍扩容，只在持有 writeLock 时调用
+     * 正在遍历旧数组的广播不受影响，遍历完旧数组即可
+     */
+    private void grow() {
+        AtomicReferenceArray<ClientHandler> old = slots;
+        AtomicReferenceArray<ClientHandler> bigger = new AtomicReferenceArray<>(old.length() * 2);
+        for (int i = 0; i < old.length(); i++) {
+            bigger.lazySet(i, old.get(i));
+        }
+        slots = bigger;
+    }
+}
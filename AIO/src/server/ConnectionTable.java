@@ -0,0 +1,118 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 以连接 ID（int）为键的连接表
+ * 连接 ID 就是槽位数组的下标，由本表分配：优先复用空闲链表中的 ID，没有就追加，所以 ID 总是稠密的。
+ * 1. 查找：直接按下标取，不需要装箱 Integer，也不会像端口号那样在不同主机之间冲突
+ * 2. 遍历：顺序扫描数组到高水位为止，空槽跳过，不分配任何对象
+ * 3. 增删：O(1)（扩容时均摊），互相之间用一把锁互斥，但不阻塞查找和遍历
+ *
+ * @param <T>   连接对象的类型
+ *
+ * @author Hedon Wang
+ * @create 2026-10-18 4:20 PM
+ */
+public class ConnectionTable<T> {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final ReentrantLock writeLock = new ReentrantLock();   // 增删之间互斥
+
+    private volatile AtomicReferenceArray<T> slots = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+    private volatile int highWater;                 // 用过的最大 ID + 1，遍历到这里为止
+    private volatile int size;                      // 连接数
+
+    // 空闲 ID 栈，只在持有 writeLock 时访问
+    private int[] freeIds = new int[INITIAL_CAPACITY];
+    private int freeCount;
+
+    /**
+     * 加入一个连接，返回分配给它的连接 ID
+     */
+    public int add(T connection) {
+        writeLock.lock();
+        try {
+            int id;
+            if (freeCount > 0) {
+                id = freeIds[--freeCount];
+            } else {
+                id = highWater;
+                if (id == slots.length()) {
+                    grow();
+                }
+            }
+            slots.set(id, connection);
+            if (id == highWater) {
+                highWater = id + 1;
+            }
+            size++;
+            return id;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 移除连接，只有 id 对应的仍然是 connection 时才移除，避免误删复用了同一个 ID 的新连接
+     * @return  是否移除成功
+     */
+    public boolean remove(int id, T connection) {
+        writeLock.lock();
+        try {
+            if (id < 0 || id >= highWater || slots.get(id) != connection) {
+                return false;
+            }
+            slots.set(id, null);
+            if (freeCount == freeIds.length) {
+                int[] bigger = new int[freeIds.length * 2];
+                System.arraycopy(freeIds, 0, bigger, 0, freeCount);
+                freeIds = bigger;
+            }
+            freeIds[freeCount++] = id;
+            size--;
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 按连接 ID 查找，不存在时返回 null
+     */
+    public T get(int id) {
+        AtomicReferenceArray<T> current = slots;
+        return id >= 0 && id < current.length() ? current.get(id) : null;
+    }
+
+    /**
+     * 遍历上限，配合 {@link #get(int)} 做无分配的遍历：
+     * <pre>
+     * for (int id = 0, end = table.highWater(); id < end; id++) {
+     *     T connection = table.get(id);
+     *     if (connection != null) { ... }
+     * }
+     * </pre>
+     */
+    public int highWater() {
+        return highWater;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 槽位数组翻倍扩容，只在持有 writeLock 时调用
+     */
+    private void grow() {
+        AtomicReferenceArray<T> old = slots;
+        AtomicReferenceArray<T> bigger = new AtomicReferenceArray<>(old.length() * 2);
+        for (int i = 0; i < old.length(); i++) {
+            bigger.lazySet(i, old.get(i));
+        }
+        slots = bigger;
+    }
+}
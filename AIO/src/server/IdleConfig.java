@@ -0,0 +1,88 @@
+package server;
+
+/**
+ * 心跳和空闲超时的配置
+ * 可以通过系统属性修改（时间都是毫秒，不大于 0 表示关闭对应的功能）：
+ * <pre>
+ * -Dchat.heartbeat.intervalMs=15000    多久没有收到客户端的数据就发一个 PING
+ * -Dchat.idle.readTimeoutMs=45000      多久没有收到客户端的数据（包括 PONG）就断开连接
+ * -Dchat.idle.writeTimeoutMs=30000     有数据待发送，但多久一个字节也写不出去就断开连接
+ * -Dchat.timer.tickMs=100              时间轮每个 tick 的长度，也是超时的精度
+ * </pre>
+ *
+ * @author Hedon Wang
+ * @create 2026-10-20 4:40 PM
+ */
+public class IdleConfig {
+
+    private final long heartbeatMs;
+    private final long readTimeoutMs;
+    private final long writeTimeoutMs;
+    private final long tickMs;
+
+    public IdleConfig(long heartbeatMs, long readTimeoutMs, long writeTimeoutMs, long tickMs) {
+        if (tickMs <= 0) {
+            throw new IllegalArgumentException("tickMs 必须大于 0：" + tickMs);
+        }
+        this.heartbeatMs = heartbeatMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.writeTimeoutMs = writeTimeoutMs;
+        this.tickMs = tickMs;
+    }
+
+    /**
+     * 从系统属性读取配置，没有设置的使用默认值
+     */
+    public static IdleConfig fromSystemProperties() {
+        return new IdleConfig(
+                Long.getLong("chat.heartbeat.intervalMs", 15_000L),
+                Long.getLong("chat.idle.readTimeoutMs", 45_000L),
+                Long.getLong("chat.idle.writeTimeoutMs", 30_000L),
+                Long.getLong("chat.timer.tickMs", 100L)
+        );
+    }
+
+    /**
+     * 是否需要为每个连接安排空闲检查
+     */
+    public boolean isEnabled() {
+        return heartbeatMs > 0 || readTimeoutMs > 0 || writeTimeoutMs > 0;
+    }
+
+    /**
+     * 下一次检查距离现在的毫秒数：取心跳、读超时、写超时中最早到期的那个
+     * @param readIdleMs        已经多久没有读到数据
+     * @param writeStallMs      有数据待发送时已经多久没有写出数据，没有待发送的数据时为 -1
+     * @param pingSent          本次读空闲期间是否已经发过 PING
+     */
+    public long nextCheckMillis(long readIdleMs, long writeStallMs, boolean pingSent) {
+        long next = Long.MAX_VALUE;
+        if (heartbeatMs > 0) {
+            // 已经发过 PING 的，过一个心跳间隔再看 PONG 有没有回来、要不要发下一个
+            next = Math.min(next, pingSent ? heartbeatMs : heartbeatMs - readIdleMs);
+        }
+        if (readTimeoutMs > 0) {
+            next = Math.min(next, readTimeoutMs - readIdleMs);
+        }
+        if (writeTimeoutMs > 0) {
+            next = Math.min(next, writeStallMs < 0 ? writeTimeoutMs : writeTimeoutMs - writeStallMs);
+        }
+        return Math.max(tickMs, next);
+    }
+
+    public long getHeartbeatMs() {
+        return heartbeatMs;
+    }
+
+    public long getReadTimeoutMs() {
+        return readTimeoutMs;
+    }
+
+    public long getWriteTimeoutMs() {
+        return writeTimeoutMs;
+    }
+
+    public long getTickMs() {
+        return tickMs;
+    }
+}
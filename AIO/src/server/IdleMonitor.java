@@ -0,0 +1,176 @@
+package server;
+
+import log.EventLog;
+import protocol.Frame;
+import timer.TimingWheel;
+
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 心跳和空闲超时
+ * 所有客户端共用一个时间轮，由一个专门的线程推进；每个客户端只有一个反复使用的定时任务，
+ * 读写回调里只更新时间戳，到期时再根据时间戳决定发 PING、断开还是重新排期。
+ * 超出限速的客户端暂停读取后，也由这个时间轮在令牌补足时恢复读取，所以没有开启空闲检查时时间轮线程也要启动。
+ * 时间轮不是线程安全的，其他线程添加、取消定时任务都投递到队列里，由时间轮线程执行。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-20 5:20 PM
+ */
+public class IdleMonitor implements Runnable {
+
+    private static final int TIMING_WHEEL_SIZE = 512;       // 时间轮的槽数
+
+    private final IdleConfig config;
+    private final TimingWheel timingWheel;
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();     // 其他线程投递过来的添加、取消操作
+
+    private volatile boolean running = true;
+
+    public IdleMonitor(IdleConfig config) {
+        this.config = config;
+        this.timingWheel = new TimingWheel(config.getTickMs(), TIMING_WHEEL_SIZE);
+    }
+
+    /**
+     * 启动时间轮线程
+     */
+    public void start() {
+        Thread thread = new Thread(this, "aio-idle-timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 时间轮线程：每个 tick 执行投递过来的操作，再推进时间轮
+     */
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(timingWheel.millisToNextTick(System.nanoTime()));
+            } catch (InterruptedException e) {
+                return;
+            }
+            Runnable operation;
+            while ((operation = pending.poll()) != null) {
+                // 一个操作出错不能让线程退出，否则之后的心跳、空闲检查和限速恢复都不会再执行
+                try {
+                    operation.run();
+                } catch (RuntimeException e) {
+                    EventLog.error("{} 执行投递的操作失败", Thread.currentThread().getName(), e);
+                }
+            }
+            timingWheel.advance(System.nanoTime());
+        }
+    }
+
+    /**
+     * 客户端上线，开始空闲检查
+     */
+    public void register(final ClientHandler clientHandler) {
+        if (!config.isEnabled()) {
+            return;
+        }
+        pending.offer(() -> scheduleCheck(clientHandler, 0, -1));
+    }
+
+    /**
+     * 客户端下线，取消空闲检查和限速恢复
+     * 连上就断开的客户端，register 投递的操作执行时已经关闭，不会创建空闲检查的定时任务
+     */
+    public void unregister(final ClientHandler clientHandler) {
+        pending.offer(() -> {
+            TimingWheel.Timeout idleTimeout = clientHandler.getIdleTimeout();
+            if (idleTimeout != null) {
+                timingWheel.cancel(idleTimeout);
+            }
+            TimingWheel.Timeout throttleTimeout = clientHandler.getThrottleTimeout();
+            if (throttleTimeout != null && throttleTimeout.isScheduled()) {
+                timingWheel.cancel(throttleTimeout);
+                // 暂停中的读缓冲区由恢复读取归还，连接已经关闭，这里直接执行一次
+                clientHandler.resumeReading();
+            }
+        });
+    }
+
+    /**
+     * 客户端超出限速，delayMillis 毫秒后在时间轮线程中恢复读取
+     */
+    public void scheduleResume(final ClientHandler clientHandler, final long delayMillis) {
+        pending.offer(() -> {
+            // 已经下线，unregister 可能先执行了，不再排期；暂停中的读缓冲区由 unregister 或者这里归还
+            if (!clientHandler.isOpen()) {
+                clientHandler.resumeReading();
+                return;
+            }
+            TimingWheel.Timeout timeout = clientHandler.getThrottleTimeout();
+            if (timeout == null) {
+                timeout = new TimingWheel.Timeout(clientHandler::resumeReading);
+                clientHandler.setThrottleTimeout(timeout);
+            }
+            timingWheel.schedule(timeout, delayMillis);
+        });
+    }
+
+    /**
+     * 空闲检查到期：读超时、写超时就移除客户端，读空闲超过心跳间隔就发一个 PING，否则重新排期
+     * 在时间轮线程中执行
+     */
+    private void check(ClientHandler clientHandler) {
+        if (!clientHandler.isOpen()) {
+            return;
+        }
+        long now = System.nanoTime();
+        long readIdleMs = TimeUnit.NANOSECONDS.toMillis(now - clientHandler.getLastReadNanos());
+        long writeStallNanos = clientHandler.getWritePipeline().getWriteStallNanos(now);
+        long writeStallMs = writeStallNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(writeStallNanos);
+        if (config.getReadTimeoutMs() > 0 && readIdleMs >= config.getReadTimeoutMs()) {
+            clientHandler.closeIdle("读超时（" + readIdleMs + " 毫秒没有收到数据）");
+            return;
+        }
+        if (config.getWriteTimeoutMs() > 0 && writeStallMs >= config.getWriteTimeoutMs()) {
+            clientHandler.closeIdle("写超时（" + writeStallMs + " 毫秒没有写出数据）");
+            return;
+        }
+        if (config.getHeartbeatMs() > 0 && readIdleMs >= config.getHeartbeatMs() && !clientHandler.isPingSent()) {
+            clientHandler.setPingSent(true);
+            try {
+                SharedBuffer ping = SharedBuffer.frame(Frame.PING, StandardCharsets.UTF_8, "");
+                try {
+                    clientHandler.getWritePipeline().send(ping);
+                } finally {
+                    ping.release();
+                }
+            } catch (ProtocolException e) {
+                EventLog.error("{} 编码 PING 失败", Thread.currentThread().getName(), e);
+            }
+        }
+        scheduleCheck(clientHandler, readIdleMs, writeStallMs);
+    }
+
+    /**
+     * 按心跳、读超时、写超时中最早到期的那个安排下一次空闲检查，在时间轮线程中执行
+     */
+    private void scheduleCheck(final ClientHandler clientHandler, long readIdleMs, long writeStallMs) {
+        if (!clientHandler.isOpen()) {
+            return;
+        }
+        TimingWheel.Timeout timeout = clientHandler.getIdleTimeout();
+        if (timeout == null) {
+            timeout = new TimingWheel.Timeout(() -> check(clientHandler));
+            clientHandler.setIdleTimeout(timeout);
+        }
+        timingWheel.schedule(timeout, config.nextCheckMillis(readIdleMs, writeStallMs, clientHandler.isPingSent()));
+    }
+
+    /**
+     * 停止时间轮线程
+     */
+    public void shutdown() {
+        running = false;
+    }
+}
@@ -0,0 +1,52 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一对令牌桶：每秒消息数和每秒字节数，每个连接一个，每个房间一个
+ * 用 GCRA（虚拟调度）实现，每个桶只有一个时间戳：桶里的令牌刚好用完的时刻。
+ * 取令牌就是把这个时刻往后推 cost / rate 秒，推过了 now + 突发容量对应的时长，说明令牌不够了。
+ * 令牌不够时也照样扣（允许欠账），返回欠账还清还要等多久，由调用方停止读取这么久，
+ * 这样已经解码出来的帧不需要退回去，平均速率仍然不会超过限制。
+ * 速率每次由调用方传进来，运行时修改 {@link RateLimits} 立即生效。
+ * 房间的桶会被多个线程同时使用，时间戳用 CAS 更新。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-23 3:10 PM
+ */
+public class RateLimiter {
+
+    private static final double NANOS_PER_SECOND = 1_000_000_000d;
+
+    private final AtomicLong messagesEmptyAt = new AtomicLong(System.nanoTime());  // 消息桶的令牌用完的时刻
+    private final AtomicLong bytesEmptyAt = new AtomicLong(System.nanoTime());     // 字节桶的令牌用完的时刻
+
+    /**
+     * 取一条消息、bytes 个字节的令牌
+     * @param messagesPerSecond     每秒消息数，不大于 0 表示不限制
+     * @param bytesPerSecond        每秒字节数，不大于 0 表示不限制
+     * @param burstNanos            突发容量，按速率折算成时长
+     * @param now                   System.nanoTime()
+     * @return                      还要等多少纳秒才能继续读，0 表示没有超出限制
+     */
+    long acquire(int bytes, long messagesPerSecond, long bytesPerSecond, long burstNanos, long now) {
+        long messageDelay = acquire(messagesEmptyAt, 1, messagesPerSecond, burstNanos, now);
+        long byteDelay = acquire(bytesEmptyAt, bytes, bytesPerSecond, burstNanos, now);
+        return Math.max(messageDelay, byteDelay);
+    }
+
+    private static long acquire(AtomicLong emptyAt, long cost, long ratePerSecond, long burstNanos, long now) {
+        if (ratePerSecond <= 0) {
+            return 0;
+        }
+        long increment = (long) (cost * NANOS_PER_SECOND / ratePerSecond);
+        for (;;) {
+            long current = emptyAt.get();
+            // 令牌早就攒满了，从现在开始算
+            long next = (current - now < 0 ? now : current) + increment;
+            if (emptyAt.compareAndSet(current, next)) {
+                return Math.max(0, next - now - burstNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package server;
+
+import log.EventLog;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 入站限速的配置和统计，一个服务端一份，所有连接共用
+ * 每个连接有每秒消息数、每秒字节数（帧负载）两个令牌桶，每个房间也有一对，聊天消息同时扣发送者和当前房间的令牌，
+ * 其他帧（加入、昵称、PING 等）只扣发送者的。令牌在解码出帧时扣，超出限制后停止从这个连接读取，
+ * 等令牌补足再继续：数据留在内核的接收缓冲区里，对方的 TCP 窗口缩小，发得再快也只能按限速进来，
+ * 服务端不会替它缓存，也不会把它的消息成倍地广播出去。
+ * 所有限制默认关闭，可以通过系统属性设置，也可以在运行时通过 JMX（chat:type=RateLimits）修改：
+ * <pre>
+ * -Dchat.ratelimit.clientMessagesPerSecond=0   每个连接每秒最多的消息数，不大于 0 表示不限制
+ * -Dchat.ratelimit.clientBytesPerSecond=0      每个连接每秒最多的字节数
+ * -Dchat.ratelimit.roomMessagesPerSecond=0     每个房间每秒最多的聊天消息数
+ * -Dchat.ratelimit.roomBytesPerSecond=0        每个房间每秒最多的聊天消息字节数
+ * -Dchat.ratelimit.burstMillis=1000            突发容量：令牌桶最多攒多少毫秒的令牌
+ * </pre>
+ *
+ * @author Hedon Wang
+ * @create 2026-10-23 3:30 PM
+ */
+public class RateLimits implements RateLimitsMBean {
+
+    private volatile long clientMessagesPerSecond;
+    private volatile long clientBytesPerSecond;
+    private volatile long roomMessagesPerSecond;
+    private volatile long roomBytesPerSecond;
+    private volatile long burstMillis;
+
+    // 统计
+    private final LongAdder throttledCount = new LongAdder();      // 因为超出限制暂停读取的次数
+    private final LongAdder throttledNanos = new LongAdder();      // 暂停读取的总时长
+
+    public RateLimits(long clientMessagesPerSecond, long clientBytesPerSecond,
+                      long roomMessagesPerSecond, long roomBytesPerSecond, long burstMillis) {
+        setClientMessagesPerSecond(clientMessagesPerSecond);
+        setClientBytesPerSecond(clientBytesPerSecond);
+        setRoomMessagesPerSecond(roomMessagesPerSecond);
+        setRoomBytesPerSecond(roomBytesPerSecond);
+        setBurstMillis(burstMillis);
+    }
+
+    /**
+     * 从系统属性读取配置，没有设置的使用默认值
+     */
+    public static RateLimits fromSystemProperties() {
+        return new RateLimits(
+                Long.getLong("chat.ratelimit.clientMessagesPerSecond", 0L),
+                Long.getLong("chat.ratelimit.clientBytesPerSecond", 0L),
+                Long.getLong("chat.ratelimit.roomMessagesPerSecond", 0L),
+                Long.getLong("chat.ratelimit.roomBytesPerSecond", 0L),
+                Long.getLong("chat.ratelimit.burstMillis", 1000L)
+        );
+    }
+
+    /**
+     * 注册到平台 MBeanServer，对象名为 chat:type=RateLimits,engine=引擎名,port=端口
+     */
+    public void register(String engine, int port) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("chat:type=RateLimits,engine=" + engine + ",port=" + port);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (Exception e) {
+            EventLog.warn("注册 {} 的限速 MBean 失败", engine, e);
+        }
+    }
+
+    /**
+     * 解码出一个帧后扣令牌
+     * @param client    发送者的令牌桶
+     * @param room      聊天消息发往的房间的令牌桶，其他帧为 null
+     * @param bytes     帧负载的字节数
+     * @return          还要等多少纳秒才能继续读这个连接，0 表示没有超出限制
+     */
+    long acquire(RateLimiter client, RateLimiter room, int bytes) {
+        long clientMessages = clientMessagesPerSecond;
+        long clientBytes = clientBytesPerSecond;
+        long roomMessages = room == null ? 0 : roomMessagesPerSecond;
+        long roomBytes = room == null ? 0 : roomBytesPerSecond;
+        if (clientMessages <= 0 && clientBytes <= 0 && roomMessages <= 0 && roomBytes <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long burstNanos = TimeUnit.MILLISECONDS.toNanos(burstMillis);
+        long delay = client.acquire(bytes, clientMessages, clientBytes, burstNanos, now);
+        if (room != null) {
+            delay = Math.max(delay, room.acquire(bytes, roomMessages, roomBytes, burstNanos, now));
+        }
+        if (delay > 0) {
+            throttledCount.increment();
+            throttledNanos.add(delay);
+        }
+        return delay;
+    }
+
+    private static long checkRate(String name, long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException(name + " 不能小于 0：" + value);
+        }
+        return value;
+    }
+
+    @Override
+    public long getClientMessagesPerSecond() {
+        return clientMessagesPerSecond;
+    }
+
+    @Override
+    public void setClientMessagesPerSecond(long clientMessagesPerSecond) {
+        this.clientMessagesPerSecond = checkRate("clientMessagesPerSecond", clientMessagesPerSecond);
+    }
+
+    @Override
+    public long getClientBytesPerSecond() {
+        return clientBytesPerSecond;
+    }
+
+    @Override
+    public void setClientBytesPerSecond(long clientBytesPerSecond) {
+        this.clientBytesPerSecond = checkRate("clientBytesPerSecond", clientBytesPerSecond);
+    }
+
+    @Override
+    public long getRoomMessagesPerSecond() {
+        return roomMessagesPerSecond;
+    }
+
+    @Override
+    public void setRoomMessagesPerSecond(long roomMessagesPerSecond) {
+        this.roomMessagesPerSecond = checkRate("roomMessagesPerSecond", roomMessagesPerSecond);
+    }
+
+    @Override
+    public long getRoomBytesPerSecond() {
+        return roomBytesPerSecond;
+    }
+
+    @Override
+    public void setRoomBytesPerSecond(long roomBytesPerSecond) {
+        this.roomBytesPerSecond = checkRate("roomBytesPerSecond", roomBytesPerSecond);
+    }
+
+    @Override
+    public long getBurstMillis() {
+        return burstMillis;
+    }
+
+    @Override
+    public void setBurstMillis(long burstMillis) {
+        this.burstMillis = checkRate("burstMillis", burstMillis);
+    }
+
+    @Override
+    public long getThrottledCount() {
+        return throttledCount.sum();
+    }
+
+    @Override
+    public long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.sum());
+    }
+
+    @Override
+    public String toString() {
+        return "clientMessagesPerSecond=" + clientMessagesPerSecond + ", clientBytesPerSecond=" + clientBytesPerSecond
+                + ", roomMessagesPerSecond=" + roomMessagesPerSecond + ", roomBytesPerSecond=" + roomBytesPerSecond
+                + ", burstMillis=" + burstMillis + ", throttled=" + getThrottledCount();
+    }
+}
@@ -0,0 +1,74 @@
+package server;
+
+/**
+ * 聊天房间
+ * 成员放在一张 {@link ConnectionTable} 里，和 {@link ClientRegistry} 一样按槽位存放：
+ * 1. 加入：复用空闲槽位或追加到末尾，返回槽位下标，由成员自己记住（{@link ClientHandler} 的 joinedRooms），O(1)
+ * 2. 离开：按成员记住的槽位置空并放回空闲链表，O(1)
+ * 3. 转发：不加锁，顺序扫描到高水位为止，空槽跳过
+ * 每个连接都会进入大厅，所以上下线不能是 O(房间成员数)，也不能在一个数组引用上 CAS 重试。
+ * 遍历期间并发加入的成员可能收不到这一条消息，并发离开的成员可能还会被遍历到（其写管道已关闭，消息会被丢弃）。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-19 11:10 AM
+ */
+public class Room {
+
+    private final String name;
+    private final ConnectionTable<ClientHandler> members = new ConnectionTable<>();
+    private final RateLimiter rateLimiter = new RateLimiter();     // 房间的入站限速，所有成员共用
+    int pins;                                                       // 被占用的次数，只在 RoomRegistry 的 rooms.compute 中访问
+
+    public Room(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 加入房间，调用方要保证 clientHandler 还不在房间中
+     * @return  成员的槽位，离开时要原样传回
+     */
+    public int join(ClientHandler clientHandler) {
+        return members.add(clientHandler);
+    }
+
+    /**
+     * 离开房间
+     * @param slot  加入时返回的槽位
+     * @return      槽位上仍然是 clientHandler 时返回 true，重复离开返回 false
+     */
+    public boolean leave(int slot, ClientHandler clientHandler) {
+        return members.remove(slot, clientHandler);
+    }
+
+    /**
+     * 遍历上限，配合 {@link #member(int)} 遍历成员：
+     * <pre>
+     * for (int slot = 0, end = room.highWater(); slot < end; slot++) {
+     *     ClientHandler member = room.member(slot);
+     *     if (member != null) { ... }
+     * }
+     * </pre>
+     */
+    public int highWater() {
+        return members.highWater();
+    }
+
+    /**
+     * 槽位上的成员，空槽返回 null
+     */
+    public ClientHandler member(int slot) {
+        return members.get(slot);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public int size() {
+        return members.size();
+    }
+}
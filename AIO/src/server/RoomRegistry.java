@@ -0,0 +1,84 @@
+package server;
+
+import protocol.Frame;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 房间名到房间的索引
+ * 房间由客户端随意命名，所以名称要校验，房间数有上限（-Dchat.rooms.max，默认 1024），没人的房间要删掉，
+ * 否则不断加入新房间就能让索引无限增长。
+ * 加入房间之前用 {@link #acquire} 占住房间，离开之后用 {@link #release} 放开，最后一个成员离开时删除房间；
+ * 两者都在 rooms.compute 中进行，正在被占用的房间不会被删掉，删掉之后再加入的是一个新房间。
+ * 大厅一直保留，也不占上限。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-19 11:10 AM
+ */
+public class RoomRegistry {
+
+    public static final int MAX_NAME_LENGTH = 32;       // 房间名最大长度
+    private static final int MAX_ROOMS = Integer.getInteger("chat.rooms.max", 1024);
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final AtomicInteger count = new AtomicInteger();    // 大厅之外的房间数
+
+    /**
+     * 占用房间，不存在时创建，之后要调用一次 {@link #release}
+     * @return  房间数已达上限、需要新建时返回 null
+     */
+    public Room acquire(String name) {
+        return rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                if (!Frame.DEFAULT_ROOM.equals(key) && count.incrementAndGet() > MAX_ROOMS) {
+                    count.decrementAndGet();
+                    return null;
+                }
+                room = new Room(key);
+            }
+            room.pins++;
+            return room;
+        });
+    }
+
+    /**
+     * 放开房间，没人占用时删除房间，大厅除外
+     */
+    public void release(Room room) {
+        rooms.computeIfPresent(room.getName(), (key, current) -> {
+            if (current != room || --current.pins > 0 || Frame.DEFAULT_ROOM.equals(key)) {
+                return current;
+            }
+            count.decrementAndGet();
+            return null;
+        });
+    }
+
+    /**
+     * 获取房间，不存在时返回 null
+     */
+    public Room get(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * 房间名是否合法：非空、不超过最大长度、只包含字母、数字、下划线和连字符
+     */
+    public static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        return rooms.size();
+    }
+}
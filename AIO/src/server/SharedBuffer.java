@@ -0,0 +1,149 @@
+package server;
+
+import buffer.BufferPool;
+import protocol.Frame;
+import protocol.FrameCodec;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 广播用的共享缓冲区
+ * 一条消息只编码一次，放到只读的直接内存中，每个接收者通过 {@link #duplicate()} 拿到一个
+ * 拥有独立 position/limit 的视图，扇出的开销只是一次指针复制。
+ * 使用引用计数管理生命周期：每个持有者先 {@link #retain()}，写完后 {@link #release()}，
+ * 最后一个持有者释放后底层的直接缓冲区归还给 {@link BufferPool}。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-17 2:20 PM
+ */
+public final class SharedBuffer {
+
+    private static final ThreadLocal<CharsetEncoder> ENCODER = new ThreadLocal<>();
+
+    private final ByteBuffer pooled;                                // 从池中申请的缓冲区，释放时归还
+    private final ByteBuffer buffer;                                // 只读视图，只包含消息本身
+    private final AtomicInteger refCnt = new AtomicInteger(1);      // 创建者持有一个引用
+    private final long createdNanos = System.nanoTime();            // 编码完成的时间，用来统计转发耗时
+
+    private SharedBuffer(ByteBuffer pooled, int start, int end) {
+        this.pooled = pooled;
+        ByteBuffer view = pooled.duplicate();
+        view.limit(end);
+        view.position(start);
+        this.buffer = view.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * 把消息编码成一个完整的帧，生成共享缓冲区，引用计数为 1
+     * 负载直接编码到池化的直接缓冲区中，帧头写在负载前面预留的空间里，不产生中间缓冲区
+     */
+    public static SharedBuffer frame(byte type, Charset charset, String msg) throws ProtocolException {
+        CharsetEncoder encoder = encoder(charset);
+        int maxPayload = (int) Math.ceil(msg.length() * (double) encoder.maxBytesPerChar());
+        ByteBuffer pooled = BufferPool.DEFAULT.allocate(Frame.MAX_HEADER_SIZE + maxPayload);
+        try {
+            // 先在预留的帧头空间之后编码负载
+            pooled.position(Frame.MAX_HEADER_SIZE);
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(msg), pooled, true);
+            encoder.flush(pooled);
+            int end = pooled.position();
+            int payloadLength = end - Frame.MAX_HEADER_SIZE;
+
+            // 再把帧头紧贴着负载写在前面
+            int start = Frame.MAX_HEADER_SIZE - FrameCodec.varintSize(payloadLength) - 1;
+            pooled.position(start);
+            FrameCodec.putHeader(pooled, type, payloadLength);
+            return new SharedBuffer(pooled, start, end);
+        } catch (ProtocolException | RuntimeException e) {
+            BufferPool.DEFAULT.free(pooled);
+            throw e;
+        }
+    }
+
+    /**
+     * 把 src 中剩余的数据复制到池化的直接缓冲区中，生成共享缓冲区，引用计数为 1
+     */
+    public static SharedBuffer copyOf(ByteBuffer src) {
+        int length = src.remaining();
+        ByteBuffer pooled = BufferPool.DEFAULT.allocate(length);
+        pooled.put(src);
+        return new SharedBuffer(pooled, 0, length);
+    }
+
+    /**
+     * 当前线程缓存的编码器，CharsetEncoder 不是线程安全的
+     */
+    private static CharsetEncoder encoder(Charset charset) {
+        CharsetEncoder encoder = ENCODER.get();
+        if (encoder == null || !encoder.charset().equals(charset)) {
+            encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            ENCODER.set(encoder);
+        }
+        return encoder;
+    }
+
+    /**
+     * 增加一个引用
+     */
+    public SharedBuffer retain() {
+        for (;;) {
+            int cnt = refCnt.get();
+            if (cnt <= 0) {
+                throw new IllegalStateException("SharedBuffer 已经被释放");
+            }
+            if (refCnt.compareAndSet(cnt, cnt + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * 释放一个引用
+     * @return  是否是最后一个引用
+     */
+    public boolean release() {
+        int cnt = refCnt.decrementAndGet();
+        if (cnt < 0) {
+            throw new IllegalStateException("SharedBuffer 被重复释放");
+        }
+        if (cnt == 0) {
+            BufferPool.DEFAULT.free(pooled);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 给一个接收者使用的视图，position 从消息开头开始
+     */
+    public ByteBuffer duplicate() {
+        return buffer.duplicate();
+    }
+
+    /**
+     * 编码完成的时间（System.nanoTime）
+     */
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    /**
+     * 消息字节数
+     */
+    public int size() {
+        return buffer.limit();
+    }
+
+    public int refCnt() {
+        return refCnt.get();
+    }
+}
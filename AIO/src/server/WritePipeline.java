@@ -0,0 +1,243 @@
+package server;
+
+import log.EventLog;
+import metrics.ChatMetrics;
+import metrics.Histogram;
+import protocol.Frame;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 每个客户端一条的写管道
+ * AsynchronousSocketChannel 同一时刻只允许有一个 write 在进行，否则会抛出 WritePendingException。
+ * 任何线程都可以通过 {@link #send(SharedBuffer)} 把消息放进无锁队列；
+ * 同一时刻只有抢到 writing 标志的线程发起 write，write 完成的回调里再接着发起下一次，
+ * 每次用聚集写（gathering write）把队列里的多条消息一次写出去。
+ * 这本身就是自适应的写合并：空闲时一条消息马上写，不加延迟；
+ * 消息来得比写得快时，上一次 write 进行期间入队的消息会攒成一批，由下一次聚集写一起写出去。
+ * 每批的消息数记录在 {@link #getBatchSizes()} 中。
+ * 积压字节数由 {@link SlowConsumerGuard} 按高低水位检测，积压太久或太多时断开连接。
+ *
+ * @param   '<V>'     The result type of the I/O operation                      聚集写写出的字节数，所以是 Long
+ * @param   '<A>'     The type of the object attached to the I/O operation      不需要附加对象
+ *
+ * @author Hedon Wang
+ * @create 2026-10-18 9:30 AM
+ */
+public class WritePipeline implements CompletionHandler<Long, Void> {
+
+    private static final int MAX_GATHER = 64;           // 一次聚集写最多的消息数
+    private static final Histogram BATCH_SIZES = new Histogram();  // 所有客户端每次聚集写的消息数
+
+    private final AsynchronousSocketChannel channel;
+    private final ClientHandler clientHandler;
+    private final SlowConsumerGuard guard;                          // 慢消费者检测
+    private final ChatMetrics metrics;
+
+    private final Queue<SharedBuffer> outboundQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writing = new AtomicBoolean();      // 是否有 write 正在进行
+    private final AtomicInteger queueDepth = new AtomicInteger();   // 还没写完的消息数（含正在写的）
+    private final AtomicLong queuedBytes = new AtomicLong();        // 还没写完的字节数（含正在写的）
+    private volatile long lastWriteNanos;                           // 最近一次写出数据（或队列由空变为非空）的时间
+    private volatile boolean closed;
+
+    // 正在写的一批消息，只有持有 writing 标志的线程才能访问
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+    private final SharedBuffer[] batchOwners = new SharedBuffer[MAX_GATHER];
+    private int batchSize;
+
+    public WritePipeline(AsynchronousSocketChannel channel, ClientHandler clientHandler, SlowConsumerPolicy slowConsumers,
+                         ChatMetrics metrics) {
+        this.channel = channel;
+        this.clientHandler = clientHandler;
+        this.guard = new SlowConsumerGuard(slowConsumers);
+        this.metrics = metrics;
+    }
+
+    /**
+     * 发送重要消息（聊天消息、私聊、系统提示）
+     * @see #send(SharedBuffer, boolean)
+     */
+    public void send(SharedBuffer shared) {
+        send(shared, true);
+    }
+
+    /**
+     * 把消息放入发送队列，会持有 shared 的一个引用，写完后释放
+     * 可以在任意线程中调用
+     * @param critical  是否是重要消息，积压超过高水位后不重要的消息（上下线提示）直接跳过
+     */
+    public void send(SharedBuffer shared, boolean critical) {
+        if (closed) {
+            return;
+        }
+        SlowConsumerGuard.Action action = guard.admit(queuedBytes.get(), critical);
+        if (action == SlowConsumerGuard.Action.EVICT) {
+            clientHandler.evict(guard.getEvictReason());
+            return;
+        }
+        if (action == SlowConsumerGuard.Action.SEND) {
+            enqueue(shared);
+        }
+        // 积压了一段时间，提醒客户端一次
+        if (guard.takeNotice()) {
+            try {
+                SharedBuffer notice = SharedBuffer.frame(Frame.TEXT, StandardCharsets.UTF_8, guard.noticeText(queuedBytes.get()));
+                try {
+                    enqueue(notice);
+                } finally {
+                    notice.release();
+                }
+            } catch (ProtocolException e) {
+                EventLog.warn("{} 编码积压提示失败", Thread.currentThread().getName(), e);
+            }
+        }
+    }
+
+    /**
+     * 入队，持有 shared 的一个引用，没有 write 在进行时由当前线程发起
+     */
+    private void enqueue(SharedBuffer shared) {
+        outboundQueue.offer(shared.retain());
+        if (queueDepth.incrementAndGet() == 1) {
+            // 从空闲变为有数据待发送，写超时从现在开始计算
+            lastWriteNanos = System.nanoTime();
+        }
+        queuedBytes.addAndGet(shared.size());
+        if (closed) {
+            // 入队的同时管道被关闭了，自己把队列清掉
+            close();
+        } else if (writing.compareAndSet(false, true)) {
+            writeNext();
+        }
+    }
+
+    /**
+     * 把队列里的消息凑成一批，发起一次聚集写
+     * 只能由持有 writing 标志的线程调用
+     */
+    private void writeNext() {
+        for (;;) {
+            // 上一批没写完的留在数组前面，后面从队列里补
+            SharedBuffer shared;
+            while (batchSize < MAX_GATHER && (shared = outboundQueue.poll()) != null) {
+                batch[batchSize] = shared.duplicate();
+                batchOwners[batchSize] = shared;
+                batchSize++;
+            }
+            if (batchSize > 0) {
+                BATCH_SIZES.record(batchSize);
+                try {
+                    channel.write(batch, 0, batchSize, 0L, TimeUnit.MILLISECONDS, null, this);
+                } catch (RuntimeException e) {
+                    // 通道已关闭等情况，按写失败处理
+                    failed(e, null);
+                }
+                return;
+            }
+            // 队列空了，放掉 writing 标志；放掉之后如果又有新消息进来并且没人在写，就继续写
+            writing.set(false);
+            if (outboundQueue.isEmpty() || !writing.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 一次聚集写完成：释放写完的消息，没写完的留到下一次
+     */
+    @Override
+    public void completed(Long result, Void attachment) {
+        if (result > 0) {
+            lastWriteNanos = System.nanoTime();
+            metrics.getBytesOut().add(result);
+        }
+        guard.onDrained(queuedBytes.addAndGet(-result));
+        int done = 0;
+        while (done < batchSize && !batch[done].hasRemaining()) {
+            batchOwners[done].release();
+            done++;
+        }
+        queueDepth.addAndGet(-done);
+        metrics.getMessagesOut().add(done);
+        // 把没写完的挪到数组前面
+        int remaining = batchSize - done;
+        System.arraycopy(batch, done, batch, 0, remaining);
+        System.arraycopy(batchOwners, done, batchOwners, 0, remaining);
+        for (int i = remaining; i < batchSize; i++) {
+            batch[i] = null;
+            batchOwners[i] = null;
+        }
+        batchSize = remaining;
+        writeNext();
+    }
+
+    /**
+     * 写失败：释放所有消息并移除客户端，writing 标志不再放掉，管道就此关闭
+     */
+    @Override
+    public void failed(Throwable exc, Void attachment) {
+        for (int i = 0; i < batchSize; i++) {
+            queuedBytes.addAndGet(-batch[i].remaining());
+            batchOwners[i].release();
+            batch[i] = null;
+            batchOwners[i] = null;
+        }
+        queueDepth.addAndGet(-batchSize);
+        batchSize = 0;
+        close();
+        if (channel.isOpen()) {
+            clientHandler.removeClient(clientHandler);
+        }
+    }
+
+    /**
+     * 关闭管道，释放还在队列中的消息，客户端下线时调用
+     * 正在写的那一批由写失败的回调释放
+     */
+    public void close() {
+        closed = true;
+        SharedBuffer shared;
+        while ((shared = outboundQueue.poll()) != null) {
+            queueDepth.decrementAndGet();
+            queuedBytes.addAndGet(-shared.size());
+            shared.release();
+        }
+    }
+
+    /**
+     * 每次聚集写的消息数分布，均值接近 1 说明负载低，消息基本都是马上写出去的
+     */
+    public static Histogram getBatchSizes() {
+        return BATCH_SIZES;
+    }
+
+    /**
+     * 有数据待发送时，距离最近一次写出数据已经多少纳秒，没有待发送的数据时返回 -1
+     */
+    public long getWriteStallNanos(long now) {
+        return queueDepth.get() == 0 ? -1 : now - lastWriteNanos;
+    }
+
+    SlowConsumerGuard getGuard() {
+        return guard;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+}
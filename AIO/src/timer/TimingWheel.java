@@ -0,0 +1,177 @@
+package timer;
+
+import log.EventLog;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 哈希时间轮（hashed timing wheel）
+ * 轮上有 2 的幂个槽，每个槽是一条定时任务的双向链表，指针每个 tick 前进一格。
+ * 定时任务按到期的 tick 数取模放进对应的槽，超过一圈的记下还要转几圈（rounds）：
+ * 1. 添加、取消都是 O(1)：定时任务本身就是链表节点，不需要额外分配对象
+ * 2. 每个 tick 只处理当前槽，rounds 大于 0 的减一，等于 0 的到期执行
+ * 到期时间的精度是一个 tick，适合空闲超时、心跳这类大量、粗粒度、经常被取消的定时任务。
+ *
+ * 不是线程安全的，只能在一个线程中使用，由使用者定期调用 {@link #advance(long)} 推进。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-20 4:00 PM
+ */
+public class TimingWheel {
+
+    private final long tickNanos;
+    private final int mask;
+    private final Timeout[] wheel;          // 每个槽是一条链表的头节点
+
+    private long currentTick;               // 指针当前指向的 tick，该 tick 的槽已经处理过
+    private final long startNanos;          // 第 0 个 tick 的时间
+    private int size;                       // 轮上的定时任务数
+
+    /**
+     * @param tickMillis    每个 tick 的毫秒数
+     * @param wheelSize     槽数，向上取到 2 的幂
+     */
+    public TimingWheel(long tickMillis, int wheelSize) {
+        if (tickMillis <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tickMillis、wheelSize 必须大于 0：" + tickMillis + ", " + wheelSize);
+        }
+        int slots = Integer.highestOneBit(wheelSize);
+        if (slots < wheelSize) {
+            slots <<= 1;
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.mask = slots - 1;
+        this.wheel = new Timeout[slots];
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * 添加定时任务，已经在轮上的先取消再重新添加
+     * @param delayMillis   多少毫秒后到期，至少一个 tick
+     */
+    public void schedule(Timeout timeout, long delayMillis) {
+        cancel(timeout);
+        // 按当前时间算到期的 tick，指针可能因为很久没有推进而落后于当前时间
+        long elapsed = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        long deadlineTick = Math.max(currentTick + 1, (elapsed + tickNanos - 1) / tickNanos);
+        long ticks = deadlineTick - currentTick;
+        int slot = (int) (deadlineTick & mask);
+        timeout.rounds = (ticks - 1) / wheel.length;
+        timeout.slot = slot;
+        // 插到链表头
+        Timeout head = wheel[slot];
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        wheel[slot] = timeout;
+        size++;
+    }
+
+    /**
+     * 取消定时任务，不在轮上时什么都不做
+     */
+    public void cancel(Timeout timeout) {
+        if (timeout.slot < 0) {
+            return;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            wheel[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = -1;
+        size--;
+    }
+
+    /**
+     * 把指针推进到 now 对应的 tick，执行沿途到期的定时任务
+     * 定时任务的回调里可以重新添加或取消定时任务
+     * @return  执行的定时任务数
+     */
+    public int advance(long now) {
+        long targetTick = (now - startNanos) / tickNanos;
+        int expired = 0;
+        while (currentTick < targetTick) {
+            currentTick++;
+            if (size == 0) {
+                // 轮上没有任务，直接跳到目标 tick
+                currentTick = targetTick;
+                break;
+            }
+            // 先把到期的摘下来串成一条链，遍历完这个槽再执行，回调里修改时间轮不会影响遍历
+            Timeout expiredHead = null;
+            Timeout timeout = wheel[(int) (currentTick & mask)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                } else {
+                    cancel(timeout);
+                    timeout.nextExpired = expiredHead;
+                    expiredHead = timeout;
+                }
+                timeout = next;
+            }
+            while (expiredHead != null) {
+                timeout = expiredHead;
+                expiredHead = timeout.nextExpired;
+                timeout.nextExpired = null;
+                // 前面的回调可能已经把它重新加回轮上
+                if (timeout.isScheduled()) {
+                    continue;
+                }
+                expired++;
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    EventLog.error("{} 执行到期的定时任务失败", Thread.currentThread().getName(), e);
+                }
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * 距离下一个 tick 还有多少毫秒，用作 select 的超时时间，至少 1 毫秒
+     */
+    public long millisToNextTick(long now) {
+        long nextTickNanos = startNanos + (currentTick + 1) * tickNanos;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextTickNanos - now + 999_999));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 定时任务，同时是时间轮链表的节点，可以反复添加、取消
+     */
+    public static class Timeout {
+
+        private final Runnable task;
+        private Timeout prev;
+        private Timeout next;
+        private Timeout nextExpired;        // 同一个 tick 到期的任务串成的链
+        private long rounds;                // 还要转几圈才到期
+        private int slot = -1;              // 所在的槽，不在轮上时为 -1
+
+        public Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        public boolean isScheduled() {
+            return slot >= 0;
+        }
+    }
+}
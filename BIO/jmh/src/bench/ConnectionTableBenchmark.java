@@ -0,0 +1,84 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import server.ConnectionTable;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 广播遍历基准测试：HashMap&lt;Integer, ?&gt;（原来按端口存储的方式） vs ConnectionTable
+ * 每次调用是一次广播遍历（跳过发送者），分别在 1 万、10 万连接下测量；
+ * 加上 -prof gc 运行可以看到每次广播分配的字节数（gc.alloc.rate.norm），ConnectionTable 应该是 0。
+ *
+ * 用法：java -jar BIO/jmh/target/benchmarks.jar ConnectionTableBenchmark -prof gc
+ *
+ * @author Hedon Wang
+ * @create 2026-10-18 5:00 PM
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionTableBenchmark {
+
+    @Param({"10000", "100000"})
+    private int connections;
+
+    private HashMap<Integer, Object> map;
+    private ConnectionTable<Object> table;
+    private int senderPort;
+    private Object sender;
+
+    @Setup
+    public void setup() {
+        map = new HashMap<>();
+        table = new ConnectionTable<>();
+        for (int i = 0; i < connections; i++) {
+            Object connection = new Object();
+            // 端口号在 1024 ~ 65535 之间，超过后不同主机的连接会用到相同的端口，这里用递增的整数模拟
+            map.put(1024 + i, connection);
+            table.add(connection);
+        }
+        senderPort = 1024 + connections / 2;
+        sender = map.get(senderPort);
+    }
+
+    /**
+     * 原来的遍历方式：遍历端口集合，再按端口查一次
+     */
+    @Benchmark
+    public void hashMap(Blackhole blackhole) {
+        for (Integer port : map.keySet()) {
+            if (!port.equals(senderPort)) {
+                blackhole.consume(map.get(port));
+            }
+        }
+    }
+
+    /**
+     * ConnectionTable 的遍历方式：按连接 ID 顺序扫描
+     */
+    @Benchmark
+    public void connectionTable(Blackhole blackhole) {
+        for (int id = 0, end = table.highWater(); id < end; id++) {
+            Object connection = table.get(id);
+            if (connection != null && connection != sender) {
+                blackhole.consume(connection);
+            }
+        }
+    }
+}
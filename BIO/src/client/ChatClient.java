@@ -1,21 +1,35 @@
 package client;
 
+import protocol.Command;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.FrameDecoder;
+import protocol.FrameHandler;
+
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 
 /**
  * @author Hedon Wang
  * @create 2021-09-18 10:11 PM
  */
-public class ChatClient {
+public class ChatClient implements FrameHandler<Void> {
 
     private final String DEFAULT_SERVER_HOST = "127.0.0.1";     // 服务端主机
     private final int DEFAULT_SERVER_PORT = 8888;               // 服务端端口
     private final String QUIT = "quit";                         // 客户端退出命令
+    private final int BUFFER = 1024;
 
     private Socket socket;  // 客户端 socket
-    private BufferedReader reader;
-    private BufferedWriter writer;
+    private InputStream reader;
+    private OutputStream writer;
+    private Charset charset = Charset.forName("UTF-8");
+    private FrameDecoder decoder = new FrameDecoder();
+    private ByteBuffer rBuffer = ByteBuffer.allocate(BUFFER);
+    private ArrayDeque<String> received = new ArrayDeque<>();   // 已解码还没被取走的消息
 
     /**
      * 发送消息
@@ -23,24 +37,62 @@ public class ChatClient {
     public void sendMessage(String message) throws IOException {
         if (socket != null && !socket.isOutputShutdown()) {
             if (writer != null) {
-                writer.write(message + "\n");
-                writer.flush();
+                // 以 / 开头的是房间命令，其余是发往当前房间的消息
+                Command command = Command.parse(message);
+                if (command == null) {
+                    System.out.println("命令格式：/join 房间名、/leave 房间名、/nick 昵称、/msg 昵称 消息");
+                    return;
+                }
+                writeFrame(command.getType(), charset.encode(command.getPayload()));
             }
         }
     }
 
+    /**
+     * 编码成帧写到服务端
+     * 用户输入线程和收到 PING 的读线程都会写，加锁保证帧不交错
+     */
+    private synchronized void writeFrame(byte type, ByteBuffer payload) throws IOException {
+        ByteBuffer frame = FrameCodec.encode(type, payload);
+        writer.write(frame.array(), 0, frame.limit());
+        writer.flush();
+    }
+
     /**
      * 接收消息
      */
     public String receiveMessage() throws IOException {
         if (socket != null && !socket.isInputShutdown()) {
             if (reader != null) {
-                return reader.readLine();
+                // 一次读可能读到多条消息，也可能只读到半条
+                while (received.isEmpty()) {
+                    int read = reader.read(rBuffer.array());
+                    if (read < 0) {
+                        return null;
+                    }
+                    rBuffer.clear();
+                    rBuffer.limit(read);
+                    decoder.decode(rBuffer, this, null);
+                }
+                return received.poll();
             }
         }
         return null;
     }
 
+    /**
+     * 收到服务端转发的一条消息
+     */
+    @Override
+    public void onFrame(byte type, ByteBuffer payload, Void attachment) throws IOException {
+        if (type == Frame.TEXT) {
+            received.offer(String.valueOf(charset.decode(payload)));
+        } else if (type == Frame.PING) {
+            // 服务端的心跳，原样回复
+            writeFrame(Frame.PONG, payload);
+        }
+    }
+
     /**
      * 检查用户是否准备退出
      */
@@ -57,8 +109,8 @@ public class ChatClient {
             socket = new Socket(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT);
 
             // 创建 IO 流
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            reader = socket.getInputStream();
+            writer = new BufferedOutputStream(socket.getOutputStream());
 
             // 处理用户输入
             new Thread(new UserInputHandler(this)).start();
@@ -0,0 +1,61 @@
+package metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 按 Prometheus 文本格式输出指标的 HTTP 端点，只监听本机：GET http://127.0.0.1:端口/metrics
+ * 用 JDK 自带的 com.sun.net.httpserver，单线程处理请求，不引入额外依赖。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-22 10:00 AM
+ */
+public class MetricsHttpServer {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+
+    public MetricsHttpServer(MetricsRegistry registry, int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/metrics", exchange -> handle(exchange, registry));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private static void handle(HttpExchange exchange, MetricsRegistry registry) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = registry.toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
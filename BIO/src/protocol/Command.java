@@ -0,0 +1,59 @@
+package protocol;
+
+/**
+ * 客户端输入的命令
+ * 以 / 开头的输入被解析成对应类型的帧，其余的输入都是发往当前房间的聊天消息：
+ * <pre>
+ * /join 房间名      加入房间，并把它作为当前房间
+ * /leave 房间名     离开房间
+ * /nick 昵称        设置或修改昵称
+ * /msg 昵称 消息    私聊
+ * </pre>
+ *
+ * @author Hedon Wang
+ * @create 2026-10-19 10:00 AM
+ */
+public final class Command {
+
+    private final byte type;            // 帧类型
+    private final String payload;       // 帧负载
+
+    private Command(byte type, String payload) {
+        this.type = type;
+        this.payload = payload;
+    }
+
+    /**
+     * 解析用户输入，命令格式不对时返回 null
+     */
+    public static Command parse(String input) {
+        if (!input.startsWith("/")) {
+            return new Command(Frame.TEXT, input);
+        }
+        int space = input.indexOf(' ');
+        String name = space < 0 ? input : input.substring(0, space);
+        String argument = space < 0 ? "" : input.substring(space + 1).trim();
+        switch (name) {
+            case "/join":
+                return argument.isEmpty() ? null : new Command(Frame.JOIN, argument);
+            case "/leave":
+                return argument.isEmpty() ? null : new Command(Frame.LEAVE, argument);
+            case "/nick":
+                return argument.isEmpty() || argument.indexOf(' ') >= 0 ? null : new Command(Frame.NICK, argument);
+            case "/msg":
+                // 昵称和消息之间至少一个空格，消息不能为空
+                return argument.indexOf(' ') > 0 ? new Command(Frame.MSG, argument) : null;
+            default:
+                // 不认识的命令当作普通消息
+                return new Command(Frame.TEXT, input);
+        }
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+}
@@ -0,0 +1,33 @@
+package protocol;
+
+/**
+ * 帧格式定义
+ * BIO、NIO、AIO 的客户端和服务端使用同一套二进制帧格式：
+ * <pre>
+ * +----------------------+-----------+------------------+
+ * | 负载长度 (varint)     | 类型 (1B) | 负载 (UTF-8 等)   |
+ * +----------------------+-----------+------------------+
+ * </pre>
+ * 长度使用 varint 编码（每字节低 7 位有效，最高位表示后面还有字节），只计算负载本身的长度。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-17 3:40 PM
+ */
+public final class Frame {
+
+    public static final int MAX_PAYLOAD_SIZE = 1 << 20;     // 单帧负载最大 1MB
+    public static final int MAX_HEADER_SIZE = 5 + 1;        // varint 最多 5 字节 + 1 字节类型
+
+    public static final byte TEXT = 1;                      // 聊天消息，客户端发往当前房间；服务端发给客户端的消息和通知
+    public static final byte JOIN = 2;                      // 加入房间，负载为房间名
+    public static final byte LEAVE = 3;                     // 离开房间，负载为房间名
+    public static final byte NICK = 4;                      // 设置或修改昵称，负载为昵称
+    public static final byte MSG = 5;                       // 私聊，负载为 "昵称 消息"
+    public static final byte PING = 6;                      // 心跳，收到的一方回一个负载相同的 PONG
+    public static final byte PONG = 7;                      // 心跳回复
+
+    public static final String DEFAULT_ROOM = "lobby";      // 客户端上线后自动加入的房间
+
+    private Frame() {
+    }
+}
@@ -0,0 +1,24 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 解码出一个完整帧后的回调
+ *
+ * @param   <A>     附加对象的类型，一般是对应的连接
+ *
+ * @author Hedon Wang
+ * @create 2026-10-17 3:40 PM
+ */
+public interface FrameHandler<A> {
+
+    /**
+     * 收到一个完整帧
+     * @param type          帧类型
+     * @param payload       负载，position 到 limit 之间就是负载内容，只在本次回调内有效，不能保存引用
+     * @param attachment    附加对象
+     * @throws IOException  处理帧时可能抛出 IOException
+     */
+    void onFrame(byte type, ByteBuffer payload, A attachment) throws IOException;
+}
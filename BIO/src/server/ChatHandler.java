@@ -1,18 +1,41 @@
 package server;
 
-import java.io.BufferedReader;
+import log.EventLog;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.FrameDecoder;
+import protocol.FrameHandler;
+import store.RoomLog;
+
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Hedon Wang
  * @create 2021-09-18 10:10 PM
  */
-public class ChatHandler implements Runnable{
+public class ChatHandler implements Runnable, FrameHandler<Void> {
+
+    private static final int BUFFER = 1024;
 
     private ChatServer chatServer;          // 服务端
     private Socket socket;                  // 客户端
+    private ClientWriter writer;            // 客户端的输出端
+    private Charset charset = Charset.forName("UTF-8");
+    private FrameDecoder decoder = new FrameDecoder();      // 拼接半包的解码器
+    private boolean quitting;               // 客户端已发送退出命令
+    private Map<Room, Integer> rooms = new LinkedHashMap<>();  // 加入的所有房间及在房间中的槽位，按加入顺序，只在本线程中访问
+    private Room currentRoom;               // 聊天消息发往的房间
+    private String nickname;                // 昵称，没有设置时为 null
+    private final RateLimiter rateLimiter = new RateLimiter();      // 入站限速的令牌桶
+    private long throttleNanos;             // 本次超出限速要暂停读取的纳秒数
 
     public ChatHandler(ChatServer chatServer, Socket socket) {
         this.chatServer = chatServer;
@@ -23,36 +46,251 @@ public class ChatHandler implements Runnable{
     public void run() {
         try {
             // 存储新上线的客户端
-            chatServer.addClient(socket);
-            System.out.println("添加客户端 [" + socket.getPort() + "] 成功！");
-
-            // 读取用户发送的信息
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(socket.getInputStream())
-            );
-            String msg = null;
-            while ((msg = reader.readLine()) != null) {
+            writer = chatServer.addClient(socket);
+            EventLog.info("添加客户端 [{}] 成功！", socket.getPort());
+            // 新客户端默认进入大厅
+            joinRoom(chatServer.getRooms().acquire(Frame.DEFAULT_ROOM));
+
+            // 读取用户发送的信息，解码出完整的帧后逐个处理
+            InputStream in = socket.getInputStream();
+            ByteBuffer rBuffer = ByteBuffer.allocate(BUFFER);
+            int read;
+            while (!quitting && (read = in.read(rBuffer.array())) > 0) {
+                rBuffer.clear();
+                rBuffer.limit(read);
+                chatServer.getMetrics().getBytesIn().add(read);
+                decoder.decode(rBuffer, this, null);
+                awaitTokens();
+            }
+        } catch (IOException e) {
+            EventLog.warn("添加客户端 [{}] 失败...", socket.getPort(), e);
+        } finally {
+            // 从所有加入的房间中移除
+            for (Map.Entry<Room, Integer> joined : rooms.entrySet()) {
+                Room room = joined.getKey();
+                if (room.leave(joined.getValue(), writer)) {
+                    chatServer.getRooms().release(room);
+                }
+            }
+            rooms.clear();
+            // 释放昵称
+            chatServer.getNicknames().unregister(nickname, writer);
+            // 移除客户端
+            chatServer.removeClient(writer);
+        }
+    }
+
+    /**
+     * 超出限速时本线程睡到令牌补足，期间不读 socket，数据留在内核里，背压传回发送者
+     * 醒来后先处理留在解码器里的帧，可能又超出限速
+     */
+    private void awaitTokens() throws IOException {
+        while (decoder.isPaused() && !quitting) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(throttleNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                quitting = true;
+                return;
+            }
+            decoder.resume();
+            decoder.decodePending(this, null, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * 按客户端和当前房间的限速扣令牌，超出时暂停解码，本帧照常处理
+     */
+    private void throttle(byte type, int bytes) {
+        Room room = type == Frame.TEXT ? currentRoom : null;
+        long delayNanos = chatServer.getRateLimits().acquire(rateLimiter, room == null ? null : room.getRateLimiter(), bytes);
+        if (delayNanos > 0) {
+            decoder.pause();
+            throttleNanos = delayNanos;
+        }
+    }
+
+    /**
+     * 解码出一个完整帧后的回调
+     */
+    @Override
+    public void onFrame(byte type, ByteBuffer payload, Void attachment) throws IOException {
+        // 客户端已经退出，同一次读到的后续帧直接丢弃
+        if (quitting) {
+            return;
+        }
+        chatServer.getMetrics().getMessagesIn().increment();
+        throttle(type, payload.remaining());
+        String msg = String.valueOf(charset.decode(payload));
+        switch (type) {
+            case Frame.TEXT:
                 // 检查用户是否是退出命令
                 if (chatServer.readyToQuit(msg.trim())) {
-                    break;
+                    quitting = true;
+                    return;
+                }
+                if (currentRoom == null) {
+                    chatServer.sendTo(writer, "你不在任何房间中，请先用 /join 房间名 加入房间");
+                    return;
                 }
+                // 转发消息到当前房间的其他成员
+                chatServer.publish(currentRoom, writer, "[" + currentRoom.getName() + "] " + getDisplayName() + "： " + msg, true);
+                break;
+            case Frame.JOIN:
+                joinRoom(msg);
+                break;
+            case Frame.LEAVE:
+                Room room = chatServer.getRooms().get(msg);
+                if (room == null || !leaveRoom(room)) {
+                    chatServer.sendTo(writer, "你不在房间 [" + msg + "] 中");
+                }
+                break;
+            case Frame.NICK:
+                changeNickname(msg);
+                break;
+            case Frame.MSG:
+                onDirectMessage(msg);
+                break;
+            case Frame.PING:
+                // 原样回复，客户端可以用来测往返时延
+                writer.send(FrameCodec.encode(Frame.PONG, charset.encode(msg)));
+                break;
+            case Frame.PONG:
+                // 每个连接有自己的读线程，不需要服务端心跳，这里不需要处理
+                break;
+            default:
+                throw new ProtocolException("未知的帧类型：" + type);
+        }
+    }
 
-                // 转发消息到其他在线的客户端
-                chatServer.forwardMessage(socket, "客户端 [" + socket.getPort() + "]： " + msg + "\n");
+    /**
+     * 设置或修改昵称，昵称被占用时保留原来的昵称
+     */
+    private void changeNickname(String newNickname) throws IOException {
+        if (!NicknameRegistry.isValid(newNickname)) {
+            chatServer.sendTo(writer, "昵称不能为空、不能包含空白字符，且不超过 " + NicknameRegistry.MAX_LENGTH + " 个字符");
+        } else if (chatServer.getNicknames().register(newNickname, writer, nickname)) {
+            nickname = newNickname;
+            chatServer.sendTo(writer, "昵称已设置为：" + newNickname);
+        } else {
+            chatServer.sendTo(writer, "昵称 " + newNickname + " 已被占用");
+        }
+    }
 
-            }
-        } catch (IOException e) {
-            System.out.println("添加客户端 [" + socket.getPort() + "] 失败...");
-            e.printStackTrace();
-        } finally {
+    /**
+     * 私聊：按昵称查到接收者，只放进它一个人的发送队列
+     */
+    private void onDirectMessage(String text) throws IOException {
+        int space = text.indexOf(' ');
+        if (space <= 0) {
+            throw new ProtocolException("私聊格式错误：" + text);
+        }
+        String targetNickname = text.substring(0, space);
+        ClientWriter target = chatServer.getNicknames().get(targetNickname);
+        if (target == null) {
+            chatServer.sendTo(writer, "用户 " + targetNickname + " 不在线");
+            return;
+        }
+        chatServer.sendTo(target, "[私聊] " + getDisplayName() + "： " + text.substring(space + 1));
+    }
+
+    /**
+     * 显示名称，设置了昵称时使用昵称
+     */
+    private String getDisplayName() {
+        return nickname != null ? nickname : "客户端 [" + socket.getPort() + "]";
+    }
+
+    /**
+     * 按房间名加入房间，名称不合法或者房间数已达上限时只回复提示
+     */
+    private void joinRoom(String name) throws IOException {
+        if (!RoomRegistry.isValidName(name)) {
+            chatServer.sendTo(writer, "房间名不能为空，只能包含字母、数字、下划线和连字符，且不超过 " + RoomRegistry.MAX_NAME_LENGTH + " 个字符");
+            return;
+        }
+        Room room = chatServer.getRooms().acquire(name);
+        if (room == null) {
+            chatServer.sendTo(writer, "房间数已达上限，无法创建房间 [" + name + "]");
+            return;
+        }
+        joinRoom(room);
+    }
+
+    /**
+     * 加入房间并把它作为当前房间，同时更新房间 -> 成员、连接 -> 房间两个索引
+     * 房间已经用 {@link RoomRegistry#acquire} 占用，已经在房间中时放开这次占用
+     */
+    private void joinRoom(Room room) throws IOException {
+        currentRoom = room;
+        if (!rooms.containsKey(room)) {
+            joinAndReplay(room);
+            chatServer.publish(room, writer, "[" + room.getName() + "] " + getDisplayName() + " 加入了房间");
+        } else {
+            chatServer.getRooms().release(room);
+        }
+        chatServer.sendTo(writer, "当前房间：[" + room.getName() + "]");
+    }
+
+    /**
+     * 加入房间，并回放房间最近的历史消息，再无缝衔接实时消息
+     * 转发消息的线程先分配偏移、再遍历成员，而且不经过本线程，所以加入房间和取分界点要在房间日志的 appendLock 里一起完成：
+     * 偏移小于分界点的消息从日志回放，它们的发送者即使看到了新成员，也一定能看到回放结束偏移，不会再实时转发；
+     * 偏移不小于分界点的消息在加入之后才分配，一定会实时转发过来。
+     */
+    private void joinAndReplay(Room room) {
+        RoomLog log = room.getLog();
+        if (log == null) {
+            rooms.put(room, room.join(writer));
+            return;
+        }
+        // 加入之后实时消息就会进入发送队列，先占好回放的位置，让它们排在历史消息后面
+        writer.beginReplay();
+        long end = log.atOffset(offset -> {
+            writer.setReplayCursor(room, offset);
+            rooms.put(room, room.join(writer));
+        });
+        long start = log.replayStart(end);
+        if (start >= end) {
+            // 没有历史消息，让出占好的位置
+            writer.replay(null);
+            return;
+        }
+        // 分界点之前的消息可能还在日志写线程的队列里，写进文件之后再交给写线程发送
+        log.awaitWritten(end, () -> {
             try {
-                // 移除客户端
-                chatServer.removeClient(socket);
+                // 写入失败或等待超时时放弃回放，写线程不再等它，只发实时消息
+                writer.replay(log.getWrittenOffset() >= end ? log.read(start, end) : null);
             } catch (IOException e) {
-                System.out.println("客户端 [" + socket.getPort() + "] 下线异常...");
-                e.printStackTrace();
+                EventLog.warn("读取房间 {} 的历史消息失败，只收实时消息", room.getName(), e);
+                writer.replay(null);
+            }
+        });
+    }
+
+    /**
+     * 离开房间并通知房间里的其他成员，离开的是当前房间时，最近加入的另一个房间成为当前房间
+     * @return  之前在房间中返回 true
+     */
+    private boolean leaveRoom(Room room) throws IOException {
+        Integer slot = rooms.remove(room);
+        if (slot == null) {
+            return false;
+        }
+        if (room.leave(slot, writer)) {
+            chatServer.getRooms().release(room);
+        }
+        writer.removeReplayCursor(room);
+        if (currentRoom == room) {
+            currentRoom = null;
+            for (Room joined : rooms.keySet()) {
+                currentRoom = joined;
             }
         }
+        chatServer.publish(room, writer, "[" + room.getName() + "] " + getDisplayName() + " 离开了房间");
+        chatServer.sendTo(writer, "已离开房间 [" + room.getName() + "]，当前房间："
+                + (currentRoom == null ? "无" : "[" + currentRoom.getName() + "]"));
+        return true;
     }
 
 }
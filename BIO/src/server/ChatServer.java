@@ -1,92 +1,257 @@
 package server;
 
-import java.io.BufferedWriter;
+import log.EventLog;
+import metrics.ChatMetrics;
+import metrics.Histogram;
+import metrics.MetricsRegistry;
+import protocol.Frame;
+import protocol.FrameCodec;
+import store.LogConfig;
+import store.MessageStore;
+
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executor;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.Charset;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 /**
+ * 支持两种线程模式：
+ * 1. 固定大小线程池（默认）：一个客户端占用一个平台线程，超过线程数的客户端要排队
+ * 2. 虚拟线程：每个客户端一个虚拟线程，保持阻塞 IO 的写法，同时支撑大量并发连接（需要 JDK 21+）
+ * 虚拟线程在 synchronized 中阻塞会钉住载体线程，所以这里不使用 synchronized。
+ *
  * @author Hedon Wang
  * @create 2021-09-18 10:10 PM
  */
 public class ChatServer {
 
     private int DEFAULT_PORT = 8888;                                // 默认端口
+    private final int THREAD_POOL_SIZE = 10;                        // 固定线程池大小
     private final String QUIT = "quit";                             // 客户端退出命令
 
     private ServerSocket serverSocket;                              // socket
 
-    private ExecutorService executorService;                        // 线程池
-    private HashMap<Integer, Writer> connectedClients;              // 端口：写对象
+    private final int DEFAULT_SEND_QUEUE_CAPACITY = 1024;           // 每个客户端发送队列的默认容量
+
+    private ExecutorService executorService;                        // 线程池，执行 ChatHandler
+    private ExecutorService writerExecutorService;                  // 线程池，执行每个客户端的 ClientWriter
+    private ConnectionTable<ClientWriter> connectedClients;         // 连接 ID：输出端
+    private RoomRegistry rooms;                                     // 房间名：房间
+    private MessageStore store;                                     // 消息日志，没有开启时为 null
+    private NicknameRegistry<ClientWriter> nicknames;               // 昵称：输出端
+    private Charset charset = Charset.forName("UTF-8");
+    private int sendQueueCapacity;                                  // 每个客户端发送队列的容量
+    private OverflowPolicy overflowPolicy;                          // 发送队列满了的默认处理策略
+    private final Histogram batchSizes = new Histogram();           // 所有客户端每次 flush 的消息数
+    private final SlowConsumerPolicy slowConsumers = SlowConsumerPolicy.fromSystemProperties();    // 慢消费者处理策略和统计
+    private final ChatMetrics metrics = new ChatMetrics();          // 指标，通过 JMX 和 Prometheus 端点暴露
+    private final RateLimits rateLimits = RateLimits.fromSystemProperties();    // 入站限速，可以通过 JMX 在运行时修改
 
     public ChatServer() {
-        connectedClients = new HashMap<>();
-        executorService = Executors.newFixedThreadPool(10);
+        this(false);
+    }
+
+    /**
+     * @param virtualThreads    是否每个客户端使用一个虚拟线程
+     */
+    public ChatServer(boolean virtualThreads) {
+        this(virtualThreads, 0, OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * @param virtualThreads    是否每个客户端使用一个虚拟线程
+     * @param sendQueueCapacity 每个客户端发送队列的容量，不大于 0 时使用默认值
+     * @param overflowPolicy    发送队列满了的默认处理策略
+     */
+    public ChatServer(boolean virtualThreads, int sendQueueCapacity, OverflowPolicy overflowPolicy) {
+        connectedClients = new ConnectionTable<>();
+        nicknames = new NicknameRegistry<>();
+        ExecutorService virtualThreadExecutor = virtualThreads ? newVirtualThreadExecutor() : null;
+        if (virtualThreadExecutor != null) {
+            // ChatHandler 和写线程都用虚拟线程
+            executorService = virtualThreadExecutor;
+            writerExecutorService = virtualThreadExecutor;
+        } else {
+            // 写线程单独占平台线程，不和 ChatHandler 抢固定线程池
+            executorService = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+            writerExecutorService = Executors.newCachedThreadPool();
+        }
+        this.sendQueueCapacity = sendQueueCapacity > 0 ? sendQueueCapacity : DEFAULT_SEND_QUEUE_CAPACITY;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * 创建每个任务一个虚拟线程的线程池
+     * 项目按 JDK 8 编译，虚拟线程的 API 通过反射调用，JDK 不支持时返回 null
+     */
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("当前 JDK 不支持虚拟线程，使用固定大小线程池...");
+            return null;
+        }
     }
 
     /**
      * 客户端上线
      * @param socket        accept 到的客户端 socket
+     * @return              该客户端的输出端，下线和转发时用它来标识客户端
      * @throws IOException  获取 socket 的 outputStream 时可能抛出 IOException
      */
-    public synchronized void addClient(Socket socket) throws IOException{
-        if (socket != null) {
-            int port = socket.getPort();
-            BufferedWriter writer = new BufferedWriter(
-                    new OutputStreamWriter(socket.getOutputStream())
-            );
-            // 添加
-            connectedClients.put(port, writer);
-            // 日志
-            System.out.println("客户端 [" + port + "] 已连接到服务器");
-        }
+    public ClientWriter addClient(Socket socket) throws IOException{
+        ClientWriter writer = new ClientWriter(socket, sendQueueCapacity, overflowPolicy, batchSizes, slowConsumers, metrics);
+        // 启动该客户端的写线程
+        writerExecutorService.execute(writer);
+        // 添加，分配连接 ID
+        writer.setId(connectedClients.add(writer));
+        metrics.getConnectionsOpened().increment();
+        // 日志
+        EventLog.info("客户端 [{}] 已连接到服务器，连接 ID：{}", writer.getPort(), writer.getId());
+        return writer;
     }
 
     /**
      * 客户端下线
-     * @param socket        accept 到的客户端 socket
-     * @throws IOException  关闭 socket 的 outputStream 时可能抛出 IOException
-     */
-    public synchronized void removeClient(Socket socket) throws IOException {
-        if (socket != null){
-            int port = socket.getPort();
-            if (connectedClients.containsKey(port)) {
-                // 关闭 writer 对象
-                connectedClients.get(port).close();
-                // 移除
-                connectedClients.remove(port);
-                // 日志
-                System.out.println("客户端 [" + socket.getPort() + "] 已下线");
-            }
+     * @param writer        addClient 返回的输出端
+     */
+    public void removeClient(ClientWriter writer) {
+        if (writer != null && connectedClients.remove(writer.getId(), writer)) {
+            metrics.getConnectionsClosed().increment();
+            // 关闭 writer 对象
+            writer.close();
+            // 日志
+            EventLog.info("客户端 [{}] 已下线", writer.getPort());
         }
     }
 
     /**
-     * 服务端转发信息给除发送者之外的所有客户端
-     * @param socket        发送者
+     * 服务端转发信息给房间中除发送者之外的成员
+     * 只把消息放入各个客户端的发送队列，真正的写操作由各自的写线程完成
+     * @param room          房间
+     * @param sender        发送者的输出端
      * @param message       消息
-     * @throws IOException  向 socket 的 outputStream 进行写操作时可能抛出 IOException
-     */
-    public synchronized void forwardMessage(Socket socket, String message) throws IOException {
-        if (socket != null && !message.isEmpty()) {
-            for (Integer port: connectedClients.keySet()) {
-                if (!port.equals(socket.getPort())) {
-                    Writer writer = connectedClients.get(port);
-                    writer.write(message);
-                    writer.flush();
+     * @throws IOException  消息超过帧长度上限时抛出 ProtocolException
+     */
+    public void publish(Room room, ClientWriter sender, String message) throws IOException {
+        publish(room, sender, message, false);
+    }
+
+    /**
+     * 服务端转发信息给房间中除发送者之外的成员
+     * @param persist       是否同时写入房间的消息日志；写入日志的聊天消息是重要消息，
+     *                      不写入的上下线提示在成员积压超过高水位时会被跳过
+     * @throws IOException  消息超过帧长度上限时抛出 ProtocolException
+     */
+    public void publish(Room room, ClientWriter sender, String message, boolean persist) throws IOException {
+        if (sender != null && !message.isEmpty()) {
+            // 只编码一次
+            ByteBuffer frame = FrameCodec.encode(Frame.TEXT, charset.encode(message));
+            long encodedNanos = System.nanoTime();
+            // 写入消息日志只是入队，不阻塞当前线程
+            long offset = persist && room.getLog() != null ? room.getLog().append(frame) : -1;
+            // 按槽位遍历成员，不加锁，空槽跳过；已经包含在回放中的不再转发
+            int recipients = 0;
+            for (int slot = 0, end = room.highWater(); slot < end; slot++) {
+                ClientWriter writer = room.member(slot);
+                if (writer != null && writer != sender && (offset < 0 || offset >= writer.getReplayCursor(room))) {
+                    writer.send(frame, persist);
+                    recipients++;
                 }
             }
+            metrics.getFanOut().record(recipients);
+            metrics.recordForward(encodedNanos);
         }
     }
 
+    /**
+     * 给单个客户端发送一条消息（私聊或系统提示）
+     * @throws IOException  消息超过帧长度上限时抛出 ProtocolException
+     */
+    public void sendTo(ClientWriter writer, String message) throws IOException {
+        writer.send(FrameCodec.encode(Frame.TEXT, charset.encode(message)));
+    }
+
+    public RoomRegistry getRooms() {
+        return rooms;
+    }
+
+    public NicknameRegistry<ClientWriter> getNicknames() {
+        return nicknames;
+    }
+
+    /**
+     * 入站限速
+     */
+    public RateLimits getRateLimits() {
+        return rateLimits;
+    }
+
+    /**
+     * 慢消费者的统计和最近的断开事件
+     */
+    public SlowConsumerPolicy getSlowConsumers() {
+        return slowConsumers;
+    }
+
+    /**
+     * 每次 flush 的消息数分布，均值接近 1 说明写合并基本没有生效（负载低）
+     */
+    public Histogram getBatchSizes() {
+        return batchSizes;
+    }
+
+    /**
+     * 指标
+     */
+    public ChatMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 注册 BIO 服务端特有的指标
+     */
+    private void registerMetrics() {
+        MetricsRegistry registry = metrics.getRegistry();
+        registry.gauge("chat_rooms", "房间数", () -> rooms.size());
+        registry.gauge("chat_outbound_queue_bytes", "所有连接发送队列中积压的字节数", () -> {
+            long bytes = 0;
+            for (int id = 0; id < connectedClients.highWater(); id++) {
+                ClientWriter writer = connectedClients.get(id);
+                if (writer != null) {
+                    bytes += writer.getQueuedBytes();
+                }
+            }
+            return bytes;
+        });
+        registry.gauge("chat_outbound_queue_messages", "所有连接发送队列中积压的消息数", () -> {
+            long messages = 0;
+            for (int id = 0; id < connectedClients.highWater(); id++) {
+                ClientWriter writer = connectedClients.get(id);
+                if (writer != null) {
+                    messages += writer.getQueueDepth();
+                }
+            }
+            return messages;
+        });
+        registry.histogram("chat_write_batch_size", "每次 flush 的消息数", batchSizes);
+        registry.counter("chat_ratelimit_throttled_total", "超出限速暂停读取的次数", rateLimits::getThrottledCount);
+        registry.counter("chat_ratelimit_throttled_millis_total", "超出限速暂停读取的总毫秒数", rateLimits::getThrottledMillis);
+        registry.counter("chat_slow_consumer_lagging_total", "连接积压超过高水位的次数", slowConsumers::getLaggingCount);
+        registry.counter("chat_slow_consumer_recovered_total", "连接积压回落到低水位以下的次数", slowConsumers::getRecoveredCount);
+        registry.counter("chat_slow_consumer_skipped_total", "积压期间跳过的不重要消息数", slowConsumers::getSkippedMessages);
+        registry.counter("chat_slow_consumer_evictions_total", "断开的慢消费者数", slowConsumers::getEvictions);
+        registry.counter("chat_eventlog_dropped_total", "事件日志缓冲区满而丢弃的事件数", EventLog::getDropped);
+        registry.counter("chat_eventlog_sampled_out_total", "事件日志抽样跳过的事件数", EventLog::getSampledOut);
+    }
+
     /**
      * 检查用户是否准备退出
      */
@@ -102,37 +267,75 @@ public class ChatServer {
      */
     public void start(){
         try {
+            // 先打开事件日志，启动失败的原因也能记下来
+            EventLog.start("BIO");
+            // 打开消息日志
+            LogConfig logConfig = LogConfig.fromSystemProperties();
+            store = logConfig.isEnabled() ? new MessageStore(logConfig) : null;
+            rooms = new RoomRegistry(store);
             // 绑定监听端口
-            serverSocket = new ServerSocket(DEFAULT_PORT);
+            // JDK 13+ 用阻塞模式的 ServerSocketChannel 接收连接，这样客户端 socket 带有 channel，回放历史消息时可以零拷贝；
+            // 更早的 JDK 上这种 socket 的输入流和输出流共用 channel 的 blockingLock，读线程阻塞在 read 时写线程写不出去，
+            // 只能用普通的 ServerSocket，回放时经过堆内存复制
+            ServerSocketChannel serverSocketChannel = null;
+            if (channelStreamsIndependent()) {
+                serverSocketChannel = ServerSocketChannel.open();
+                serverSocket = serverSocketChannel.socket();
+                serverSocketChannel.bind(new InetSocketAddress(DEFAULT_PORT));
+            } else {
+                serverSocket = new ServerSocket(DEFAULT_PORT);
+            }
             System.out.println("启动服务器，监听端口：" + DEFAULT_PORT + "...");
+            registerMetrics();
+            metrics.start("BIO", DEFAULT_PORT);
+            rateLimits.register("BIO", DEFAULT_PORT);
             // 监听客户端请求
             Socket accept;
             while (true) {
                 // 等待客户端连接
-                accept = serverSocket.accept();
+                accept = serverSocketChannel != null ? serverSocketChannel.accept().socket() : serverSocket.accept();
                 // 创建 ChatHandler 线程
                 executorService.execute(new ChatHandler(this, accept));
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            EventLog.error("服务器异常退出，端口 {}", DEFAULT_PORT, e);
         } finally {
             close();
         }
 
     }
 
+    /**
+     * 由 channel 得到的 socket，输入流和输出流能否同时阻塞
+     * JDK 13 重新实现了 socket（JEP 353），之前的版本上两个流都要拿 channel 的 blockingLock
+     */
+    private static boolean channelStreamsIndependent() {
+        String version = System.getProperty("java.specification.version", "1.8");
+        try {
+            // 1.8 及以前是 "1.x"，之后是主版本号
+            return !version.startsWith("1.") && Integer.parseInt(version.split("\\.")[0]) >= 13;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
     /**
      * 关闭服务器
      */
-    private synchronized void close(){
+    private void close(){
+        metrics.stop();
+        if (store != null) {
+            store.close();
+        }
         if (serverSocket != null){
             try {
                 serverSocket.close();
-                System.out.println("服务器正常退出...");
+                EventLog.info("服务器正常退出，端口 {}", DEFAULT_PORT);
             }catch (IOException e) {
-                System.out.println("服务器退出异常...");
-                e.printStackTrace();
+                EventLog.warn("服务器退出异常，端口 {}", DEFAULT_PORT, e);
             }
         }
+        // 最后关闭事件日志，上面的事件也能写出去
+        EventLog.stop();
     }
 }
@@ -7,7 +7,14 @@ package server;
 public class ChatServerStarter {
 
     public static void main(String[] args) {
-        ChatServer chatServer = new ChatServer();
+        // -Dchat.virtualThreads=true 开启虚拟线程模式
+        // -Dchat.sendQueueCapacity=1024 每个客户端发送队列的容量
+        // -Dchat.overflowPolicy=DROP_OLDEST|DROP_NEWEST|DISCONNECT 发送队列满了的处理策略
+        ChatServer chatServer = new ChatServer(
+                Boolean.getBoolean("chat.virtualThreads"),
+                Integer.getInteger("chat.sendQueueCapacity", 0),
+                OverflowPolicy.valueOf(System.getProperty("chat.overflowPolicy", OverflowPolicy.DROP_OLDEST.name()))
+        );
         chatServer.start();
     }
 }
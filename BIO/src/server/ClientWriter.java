@@ -0,0 +1,351 @@
+package server;
+
+import log.EventLog;
+import metrics.ChatMetrics;
+import metrics.Histogram;
+import protocol.Frame;
+import protocol.FrameCodec;
+import store.LogRegion;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 一个客户端的输出端
+ * 每个客户端有一个有界发送队列和一个专门的写线程（虚拟线程模式下是虚拟线程）：
+ * 转发消息的线程只负责入队，不会因为某个客户端的 TCP 窗口满了而被阻塞；
+ * 写线程把队列里现有的消息都写出去之后再 flush 一次，退出时关闭 socket。
+ * 队列满了按 {@link OverflowPolicy} 处理，每个客户端可以单独设置。
+ * 队列积压的字节数由 {@link SlowConsumerGuard} 按高低水位检测，积压太久或太多时断开连接。
+ * 加入房间时回放的历史消息先于之后入队的消息发送，JDK 13+ 上用 transferTo 从日志文件直接写到 socket。
+ *
+ * 写合并：距离上一次 flush 不到合并时间窗口又来了消息，说明消息来得很密，
+ * 写线程把队列写空之后再等一会儿，窗口到期或攒够阈值字节数再 flush，一次 write 写出一整批；
+ * 空闲时来的消息不等待，马上 flush。
+ * <pre>
+ * -Dchat.coalesce.delayMicros=200      合并时间窗口，0 表示关闭写合并，队列写空就 flush
+ * -Dchat.coalesce.maxBytes=16384       攒够这么多字节立即 flush，也是输出缓冲区的大小
+ * </pre>
+ *
+ * @author Hedon Wang
+ * @create 2026-10-18 2:10 PM
+ */
+public class ClientWriter implements Runnable {
+
+    private static final ByteBuffer POISON = ByteBuffer.allocate(0);   // 通知写线程退出
+    private static final ByteBuffer WAKEUP = ByteBuffer.allocate(0);   // 通知写线程有历史消息要发
+    private static final long COALESCE_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("chat.coalesce.delayMicros", 200L));
+    private static final int COALESCE_MAX_BYTES = Integer.getInteger("chat.coalesce.maxBytes", 16 * 1024);
+
+    private final Socket socket;                                    // 客户端 socket
+    private final int port;                                         // 客户端端口
+    private final OutputStream out;                                 // 输出流，只有写线程使用
+    private final BlockingQueue<ByteBuffer> sendQueue;              // 发送队列，元素是多个客户端共享的帧，不能修改
+    private final AtomicLong droppedMessages = new AtomicLong();    // 因队列满而丢弃的消息数
+    private final AtomicLong queuedBytes = new AtomicLong();        // 队列中还没写出的字节数
+    private final SlowConsumerGuard guard;                          // 慢消费者检测
+    private final AtomicReference<ByteBuffer> lagNotice = new AtomicReference<>();     // 等待插队发送的积压提示
+    private final WritableByteChannel target;                      // 发送历史消息用，只有写线程使用
+    private final BlockingQueue<LogRegion> replays = new LinkedBlockingQueue<>();  // 已经可以发送的历史消息
+    private final AtomicInteger pendingReplays = new AtomicInteger();              // 还没发完的历史消息段数
+    private final ConcurrentHashMap<Room, Long> replayCursors = new ConcurrentHashMap<>();  // 房间 -> 回放的结束偏移
+    private final Histogram batchSizes;                             // 每次 flush 的消息数，多个客户端共用
+    private final ChatMetrics metrics;
+
+    private volatile OverflowPolicy overflowPolicy;                 // 队列满了的处理策略
+    private volatile boolean closed;
+    private volatile int id = -1;                                   // 在 ConnectionTable 中的连接 ID
+
+    public ClientWriter(Socket socket, int queueCapacity, OverflowPolicy overflowPolicy, Histogram batchSizes,
+                        SlowConsumerPolicy slowConsumers, ChatMetrics metrics) throws IOException {
+        this.socket = socket;
+        this.port = socket.getPort();
+        // 缓冲区和合并阈值一样大，攒够一批正好写一次
+        this.out = new BufferedOutputStream(socket.getOutputStream(), COALESCE_MAX_BYTES);
+        // 由 ServerSocketChannel 接收的 socket（JDK 13+）可以零拷贝发送，否则经过输出缓冲区复制，和普通消息一起 flush
+        this.target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(out);
+        this.sendQueue = new ArrayBlockingQueue<>(queueCapacity);
+        this.overflowPolicy = overflowPolicy;
+        this.batchSizes = batchSizes;
+        this.guard = new SlowConsumerGuard(slowConsumers);
+        this.metrics = metrics;
+    }
+
+    /**
+     * 发送重要消息（聊天消息、私聊、系统提示）
+     * @see #send(ByteBuffer, boolean)
+     */
+    public boolean send(ByteBuffer frame) {
+        return send(frame, true);
+    }
+
+    /**
+     * 把一个完整的帧放入发送队列，不阻塞
+     * @param frame     读模式的帧，多个客户端共享，只读不改
+     * @param critical  是否是重要消息，积压超过高水位后不重要的消息（上下线提示）直接跳过
+     * @return          消息是否入队成功
+     */
+    public boolean send(ByteBuffer frame, boolean critical) {
+        if (closed) {
+            return false;
+        }
+        SlowConsumerGuard.Action action = guard.admit(queuedBytes.get(), critical);
+        if (action == SlowConsumerGuard.Action.EVICT) {
+            guard.getPolicy().onEvicted("客户端 [" + port + "]", guard.getEvictReason());
+            disconnect();
+            return false;
+        }
+        // 积压了一段时间，提醒客户端一次；提示插队发送，不会被 DROP_OLDEST 挤掉
+        if (guard.takeNotice()) {
+            try {
+                lagNotice.set(FrameCodec.encode(Frame.TEXT, StandardCharsets.UTF_8.encode(guard.noticeText(queuedBytes.get()))));
+                sendQueue.offer(WAKEUP);
+            } catch (IOException e) {
+                EventLog.warn("客户端 [{}] 的积压提示编码失败", socket.getPort(), e);
+            }
+        }
+        if (action == SlowConsumerGuard.Action.SKIP) {
+            droppedMessages.incrementAndGet();
+            return false;
+        }
+        return enqueue(frame);
+    }
+
+    /**
+     * 入队，队列满了按 overflowPolicy 处理
+     */
+    private boolean enqueue(ByteBuffer frame) {
+        if (sendQueue.offer(frame)) {
+            queuedBytes.addAndGet(frame.remaining());
+            return true;
+        }
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                // 挤掉最老的，直到放进去为止
+                ByteBuffer oldest;
+                while (!sendQueue.offer(frame)) {
+                    if ((oldest = sendQueue.poll()) != null) {
+                        queuedBytes.addAndGet(-oldest.remaining());
+                        droppedMessages.incrementAndGet();
+                    }
+                }
+                queuedBytes.addAndGet(frame.remaining());
+                return true;
+            case DISCONNECT:
+                EventLog.info("客户端 [{}] 发送队列已满，断开连接", port);
+                disconnect();
+                return false;
+            case DROP_NEWEST:
+            default:
+                droppedMessages.incrementAndGet();
+                return false;
+        }
+    }
+
+    /**
+     * 写线程：把队列里的帧写到 socket
+     */
+    @Override
+    public void run() {
+        try {
+            long lastFlushNanos = 0;
+            while (true) {
+                ByteBuffer frame = sendQueue.take();
+                // 刚 flush 过又来了消息，说明消息来得很密，队列写空之后再等到窗口到期
+                long deadline = 0;
+                if (COALESCE_DELAY_NANOS > 0 && System.nanoTime() - lastFlushNanos < COALESCE_DELAY_NANOS) {
+                    deadline = System.nanoTime() + COALESCE_DELAY_NANOS;
+                }
+                int batch = 0;
+                long batchBytes = 0;
+                // 把队列里已有的帧都写进缓冲区，最后只 flush 一次
+                do {
+                    if (frame == POISON) {
+                        out.flush();
+                        return;
+                    }
+                    // 之后入队的消息要排在历史消息后面
+                    if (pendingReplays.get() > 0) {
+                        out.flush();
+                        sendReplays();
+                    }
+                    ByteBuffer notice = lagNotice.getAndSet(null);
+                    if (notice != null) {
+                        out.write(notice.array(), notice.arrayOffset() + notice.position(), notice.remaining());
+                    }
+                    if (frame != WAKEUP) {
+                        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                        queuedBytes.addAndGet(-frame.remaining());
+                        batch++;
+                        batchBytes += frame.remaining();
+                    }
+                    frame = sendQueue.poll();
+                    if (frame == null && deadline != 0 && batchBytes < COALESCE_MAX_BYTES) {
+                        long wait = deadline - System.nanoTime();
+                        if (wait > 0) {
+                            frame = sendQueue.poll(wait, TimeUnit.NANOSECONDS);
+                        }
+                    }
+                } while (frame != null);
+                out.flush();
+                lastFlushNanos = System.nanoTime();
+                guard.onDrained(queuedBytes.get());
+                if (batch > 0) {
+                    batchSizes.record(batch);
+                    metrics.getMessagesOut().add(batch);
+                    metrics.getBytesOut().add(batchBytes);
+                }
+            }
+        } catch (IOException e) {
+            // 写失败，断开连接，ChatHandler 读失败后会负责下线
+            disconnect();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closed = true;
+            sendQueue.clear();
+            queuedBytes.set(0);
+            // 关闭输出流的同时会关闭 socket
+            try {
+                out.close();
+            } catch (IOException e) {
+                // 连接已经断了，忽略
+            }
+        }
+    }
+
+    /**
+     * 等历史消息写进日志文件，然后发出去，只有写线程调用
+     */
+    private void sendReplays() throws IOException, InterruptedException {
+        while (pendingReplays.get() > 0 && !closed) {
+            LogRegion region = replays.poll(100, TimeUnit.MILLISECONDS);
+            if (region == null) {
+                continue;
+            }
+            while (!region.isDone()) {
+                region.transferTo(target);
+            }
+            pendingReplays.decrementAndGet();
+        }
+    }
+
+    /**
+     * 占一个回放的位置：之后入队的消息都要等这段历史消息发完
+     */
+    void beginReplay() {
+        pendingReplays.incrementAndGet();
+    }
+
+    /**
+     * 历史消息已经写进日志文件，交给写线程发送
+     * @param region    要发送的历史消息，读取失败时为 null，直接跳过
+     */
+    void replay(LogRegion region) {
+        if (region == null) {
+            pendingReplays.decrementAndGet();
+        } else {
+            replays.offer(region);
+        }
+        // 写线程可能正阻塞在空的发送队列上；队列满的话写线程自然会醒
+        sendQueue.offer(WAKEUP);
+    }
+
+    void setReplayCursor(Room room, long offset) {
+        replayCursors.put(room, offset);
+    }
+
+    void removeReplayCursor(Room room) {
+        replayCursors.remove(room);
+    }
+
+    /**
+     * 房间的回放结束偏移，偏移小于它的消息已经包含在回放中，不再实时转发
+     */
+    long getReplayCursor(Room room) {
+        Long cursor = replayCursors.get(room);
+        return cursor == null ? 0 : cursor;
+    }
+
+    /**
+     * 关闭输出端：让写线程把已入队的消息写完后退出
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // 队列满时挤掉最老的消息，保证写线程能收到退出通知
+        while (!sendQueue.offer(POISON)) {
+            sendQueue.poll();
+        }
+    }
+
+    /**
+     * 直接关闭 socket
+     */
+    private void disconnect() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            EventLog.warn("关闭客户端 [{}] 失败", socket.getPort(), e);
+        }
+        sendQueue.clear();
+        queuedBytes.set(0);
+        sendQueue.offer(POISON);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    void setId(int id) {
+        this.id = id;
+    }
+
+    public int getQueueDepth() {
+        return sendQueue.size();
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * 积压是否在高水位以下
+     */
+    public boolean isWritable() {
+        return guard.isWritable();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+}
@@ -0,0 +1,25 @@
+package server;
+
+/**
+ * 客户端发送队列满了之后的处理策略
+ *
+ * @author Hedon Wang
+ * @create 2026-10-18 3:30 PM
+ */
+public enum OverflowPolicy {
+
+    /**
+     * 丢掉队列中最老的消息，给新消息腾位置，适合只关心最新消息的客户端
+     */
+    DROP_OLDEST,
+
+    /**
+     * 丢掉新来的消息
+     */
+    DROP_NEWEST,
+
+    /**
+     * 直接断开该客户端
+     */
+    DISCONNECT
+}
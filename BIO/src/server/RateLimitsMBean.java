@@ -0,0 +1,34 @@
+package server;
+
+/**
+ * {@link RateLimits} 的 JMX 接口，可以用 jconsole、VisualVM 在运行时查看和修改限速
+ *
+ * @author Hedon Wang
+ * @create 2026-10-23 3:30 PM
+ */
+public interface RateLimitsMBean {
+
+    long getClientMessagesPerSecond();
+
+    void setClientMessagesPerSecond(long clientMessagesPerSecond);
+
+    long getClientBytesPerSecond();
+
+    void setClientBytesPerSecond(long clientBytesPerSecond);
+
+    long getRoomMessagesPerSecond();
+
+    void setRoomMessagesPerSecond(long roomMessagesPerSecond);
+
+    long getRoomBytesPerSecond();
+
+    void setRoomBytesPerSecond(long roomBytesPerSecond);
+
+    long getBurstMillis();
+
+    void setBurstMillis(long burstMillis);
+
+    long getThrottledCount();
+
+    long getThrottledMillis();
+}
@@ -0,0 +1,75 @@
+package server;
+
+import store.RoomLog;
+
+/**
+ * 聊天房间
+ * 成员放在一张 {@link ConnectionTable} 里按槽位存放：
+ * 加入时分配槽位并由成员自己记住（{@link ChatHandler} 的 rooms），离开时按槽位置空并放回空闲链表，都是 O(1)；
+ * 转发不加锁，顺序扫描到高水位为止，空槽跳过。
+ * 每个连接都会进入大厅，所以上下线不能是 O(房间成员数) 的数组复制。
+ * 遍历期间并发加入的成员可能收不到这一条消息，并发离开的成员可能还会被遍历到、多收到这一条消息，和遍历成员快照时一样。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-19 11:40 AM
+ */
+public class Room {
+
+    private final String name;
+    private final RoomLog log;                                      // 房间的消息日志，没有开启时为 null
+    private final ConnectionTable<ClientWriter> members = new ConnectionTable<>();
+    private final RateLimiter rateLimiter = new RateLimiter();     // 房间的入站限速，所有成员共用
+    int pins;                                                       // 被占用的次数，只在 RoomRegistry 的 rooms.compute 中访问
+
+    public Room(String name, RoomLog log) {
+        this.name = name;
+        this.log = log;
+    }
+
+    /**
+     * 加入房间，调用方要保证 writer 还不在房间中
+     * @return  成员的槽位，离开时要原样传回
+     */
+    public int join(ClientWriter writer) {
+        return members.add(writer);
+    }
+
+    /**
+     * 离开房间
+     * @param slot  加入时返回的槽位
+     * @return      槽位上仍然是 writer 时返回 true，重复离开返回 false
+     */
+    public boolean leave(int slot, ClientWriter writer) {
+        return members.remove(slot, writer);
+    }
+
+    /**
+     * 遍历上限，配合 {@link #member(int)} 遍历成员，空槽为 null
+     */
+    public int highWater() {
+        return members.highWater();
+    }
+
+    /**
+     * 槽位上的成员，空槽返回 null
+     */
+    public ClientWriter member(int slot) {
+        return members.get(slot);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public RoomLog getLog() {
+        return log;
+    }
+
+    RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public int size() {
+        return members.size();
+    }
+}
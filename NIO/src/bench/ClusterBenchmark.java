@@ -0,0 +1,160 @@
+package bench;
+
+import loadgen.LoadConfig;
+import loadgen.LoadGenerator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 集群模式的扩展性基准测试
+ * 依次启动 1、2、…、N 个节点（每个节点一个 JVM，端口 7777、7778…，都以第一个节点为种子），等节点两两连上之后，
+ * 用 {@link LoadGenerator} 按节点数同比例增加客户端数、房间数和发送速率：每个房间的人数不变，成员分散在所有节点上，
+ * 所以每条消息都要经过节点间链路转发。输出每种节点数下的投递速率、投递率和 p99 时延。
+ * 投递速率随节点数线性增长、投递率和 p99 基本不变，说明节点间转发没有成为瓶颈；
+ * 节点和压测客户端在同一台机器上，要看到线性增长至少需要 N + 1 个核。
+ * 以 chat. 开头的系统属性会传给各个节点（节点端口相关的除外），节点的输出写到临时目录的 cluster-node-端口.log。
+ * 每一轮的每个节点使用新的消息日志目录（chat.log.dir 下、没有设置时在临时目录下），否则加入房间时会回放上一轮的消息，
+ * 被压测客户端算作投递。
+ * 节点以第一个节点为种子互相发现，需要共享密钥，没有设置 chat.cluster.secret 时每次运行随机生成一个。
+ *
+ * 用法：java bench.ClusterBenchmark [最大节点数] [每节点客户端数] [每节点每秒消息数] [每节点房间数] [测量秒数]
+ *
+ * @author Hedon Wang
+ * @create 2026-10-23 6:10 PM
+ */
+public class ClusterBenchmark {
+
+    private static final int BASE_PORT = 7777;
+    private static final int METRICS_OFFSET = 1000;
+    private static final int CLUSTER_OFFSET = 2000;
+    private static final long STARTUP_TIMEOUT_MILLIS = 30_000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int maxNodes = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int clientsPerNode = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int ratePerNode = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        int roomsPerNode = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        System.out.println("maxNodes=" + maxNodes + ", clientsPerNode=" + clientsPerNode + ", ratePerNode=" + ratePerNode
+                + " msg/s, roomsPerNode=" + roomsPerNode + ", seconds=" + seconds
+                + ", cpus=" + Runtime.getRuntime().availableProcessors());
+
+        if (System.getProperty("chat.cluster.secret") == null) {
+            System.setProperty("chat.cluster.secret", UUID.randomUUID().toString());
+        }
+        File logBase = new File(System.getProperty("chat.log.dir", System.getProperty("java.io.tmpdir")),
+                "cluster-bench-" + System.currentTimeMillis());
+        List<String> rows = new ArrayList<>();
+        for (int nodes = 1; nodes <= maxNodes; nodes++) {
+            List<Process> processes = new ArrayList<>();
+            try {
+                int[] ports = new int[nodes];
+                for (int i = 0; i < nodes; i++) {
+                    ports[i] = BASE_PORT + i;
+                    processes.add(startNode(ports[i], new File(logBase, nodes + "-" + ports[i])));
+                }
+                for (int port : ports) {
+                    awaitPeers(port, nodes - 1);
+                }
+                LoadConfig config = new LoadConfig("127.0.0.1", ports, clientsPerNode * nodes, clientsPerNode * nodes,
+                        roomsPerNode * nodes, ratePerNode * nodes, 64, 3, seconds, 3,
+                        Math.min(4, Runtime.getRuntime().availableProcessors()));
+                LoadGenerator generator = new LoadGenerator(config);
+                generator.run();
+                long expected = generator.getExpectedDeliveries();
+                rows.add(String.format(Locale.ROOT, "%d\t%d\t%.1f\t%.1f\t%s\t%d",
+                        nodes, config.getClients(), generator.getSent() / (double) seconds,
+                        generator.getDelivered() / (double) seconds,
+                        expected == 0 ? "-" : String.format(Locale.ROOT, "%.2f%%", generator.getDelivered() * 100.0 / expected),
+                        generator.getLatency().percentile(99)));
+            } finally {
+                for (Process process : processes) {
+                    process.destroy();
+                }
+                for (Process process : processes) {
+                    process.waitFor();
+                }
+            }
+        }
+
+        System.out.println("========== 集群扩展性 ==========");
+        System.out.println("nodes\tclients\tsent/s\tdelivered/s\tdelivery\tp99(us)");
+        for (String row : rows) {
+            System.out.println(row);
+        }
+    }
+
+    /**
+     * 用当前 JVM 的 classpath 启动一个节点，以第一个节点为种子
+     */
+    private static Process startNode(int port, File logDir) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("chat.") && !name.equals("chat.log.dir")
+                    && !name.equals("chat.metrics.port") && !name.equals("chat.cluster.port")) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        command.add("-Dchat.log.dir=" + logDir);
+        command.add("-Dchat.cluster.seeds=127.0.0.1:" + (BASE_PORT + CLUSTER_OFFSET));
+        command.add("server.ChatServerStarter");
+        command.add(String.valueOf(port));
+        File log = new File(System.getProperty("java.io.tmpdir"), "cluster-node-" + port + ".log");
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(log)
+                .start();
+    }
+
+    /**
+     * 轮询节点的指标端点，等它连上 peers 个其他节点
+     */
+    private static void awaitPeers(int port, int peers) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            if (readGauge(port + METRICS_OFFSET, "chat_cluster_peers") >= peers) {
+                return;
+            }
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        throw new IllegalStateException("节点 " + port + " 在 " + STARTUP_TIMEOUT_MILLIS + " ms 内没有连上 " + peers + " 个节点");
+    }
+
+    /**
+     * 读取指标端点中的一个值，节点还没启动好时返回 -1
+     */
+    private static long readGauge(int metricsPort, String name) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + metricsPort + "/metrics").openConnection();
+            connection.setConnectTimeout(500);
+            connection.setReadTimeout(500);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(name + " ")) {
+                        return Long.parseLong(line.substring(name.length() + 1).trim());
+                    }
+                }
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException | NumberFormatException e) {
+            // 还没启动好
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,149 @@
+package bench;
+
+import server.EventLoopSelector;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 事件循环的分配基准测试
+ * 在本机建立 N 个 TCP 连接，每个连接都注册 OP_WRITE（发送缓冲区没满就一直就绪），
+ * 这样每次 selectNow 都能选出全部 N 个 key，模拟繁忙时一轮事件循环的 select + 遍历 + 清空。对比：
+ * 1. JDK 的 selectedKeys（HashSet + 迭代器）
+ * 2. {@link EventLoopSelector}（就绪数组 + 下标遍历）
+ * 用 com.sun.management.ThreadMXBean 统计当前线程分配的字节数，输出每轮的分配字节数和耗时。
+ * EventLoopSelector 预热之后每轮应该不分配对象，平均超过 1 字节时以状态码 1 退出。
+ * 注意 JDK 11+ 的 EPollSelectorImpl 用 Integer 作为 fd -> key 的哈希表的键，fd 大于 127 的 key 每次就绪都会装箱一次，
+ * 这部分分配在 JDK 内部，要加 -XX:AutoBoxCacheMax 把 Integer 缓存扩大到最大的 fd 以上才能消除。
+ *
+ * 用法：java -XX:AutoBoxCacheMax=65536 bench.SelectLoopBenchmark [连接数] [轮数]
+ *
+ * @author Hedon Wang
+ * @create 2026-10-23 11:20 AM
+ */
+public class SelectLoopBenchmark {
+
+    private static final int WARMUP_ROUNDS = 20_000;
+
+    public static void main(String[] args) throws IOException {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        List<SocketChannel> channels = new ArrayList<>();
+        List<SocketChannel> accepted = new ArrayList<>();
+        connect(connections, channels, accepted);
+        System.out.println("connections=" + connections + ", rounds=" + rounds);
+        System.out.println("loop\tbytes/round\tns/round");
+        try {
+            Selector selector = Selector.open();
+            for (SocketChannel channel : channels) {
+                channel.register(selector, SelectionKey.OP_WRITE);
+            }
+            Loop jdk = () -> {
+                selector.selectNow();
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                long ops = 0;
+                for (SelectionKey key : selectedKeys) {
+                    ops += key.readyOps();
+                }
+                selectedKeys.clear();
+                return ops;
+            };
+            report("selectedKeys", measure(jdk, rounds, threads));
+            selector.close();
+
+            EventLoopSelector eventLoopSelector = new EventLoopSelector("bench");
+            for (SocketChannel channel : channels) {
+                eventLoopSelector.register(channel, SelectionKey.OP_WRITE, null);
+            }
+            Loop array = () -> {
+                int ready = eventLoopSelector.selectNow();
+                long ops = 0;
+                for (int i = 0; i < ready; i++) {
+                    ops += eventLoopSelector.readyKey(i).readyOps();
+                }
+                eventLoopSelector.clearReady();
+                return ops;
+            };
+            double[] result = measure(array, rounds, threads);
+            report("eventLoopSelector", result);
+            eventLoopSelector.close();
+
+            if (result[0] >= 1) {
+                System.out.println("EventLoopSelector 每轮分配了 " + format(result[0]) + " 字节");
+                System.exit(1);
+            }
+        } finally {
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+            for (SocketChannel channel : accepted) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * 预热之后跑 rounds 轮，返回 {每轮分配的字节数, 每轮纳秒数}
+     */
+    private static double[] measure(Loop loop, int rounds, com.sun.management.ThreadMXBean threads) throws IOException {
+        long sink = 0;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            sink += loop.run();
+        }
+        long threadId = Thread.currentThread().getId();
+        long startBytes = threads.getThreadAllocatedBytes(threadId);
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            sink += loop.run();
+        }
+        long nanos = System.nanoTime() - startNanos;
+        long bytes = threads.getThreadAllocatedBytes(threadId) - startBytes;
+        if (sink == 0) {
+            System.out.println("没有选出任何 key");
+        }
+        return new double[]{(double) bytes / rounds, (double) nanos / rounds};
+    }
+
+    private static void report(String name, double[] result) {
+        System.out.println(name + "\t" + format(result[0]) + "\t" + format(result[1]));
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    /**
+     * 建立 n 个本机连接
+     * @param clients   客户端一侧的 channel（非阻塞模式），用来注册 OP_WRITE
+     * @param accepted  服务端一侧的 channel，只需要完成 accept，不读不写
+     */
+    private static void connect(int n, List<SocketChannel> clients, List<SocketChannel> accepted) throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            for (int i = 0; i < n; i++) {
+                SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+                channel.configureBlocking(false);
+                clients.add(channel);
+                accepted.add(server.accept());
+            }
+        }
+    }
+
+    /**
+     * 一轮事件循环
+     */
+    private interface Loop {
+        long run() throws IOException;
+    }
+}
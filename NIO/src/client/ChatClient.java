@@ -1,5 +1,12 @@
 package client;
 
+import buffer.BufferPool;
+import protocol.Command;
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.FrameDecoder;
+import protocol.FrameHandler;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -15,7 +22,7 @@ import java.util.Set;
  * @author Hedon Wang
  * @create 2021-09-23 6:59 PM
  */
-public class ChatClient {
+public class ChatClient implements FrameHandler<Void> {
 
     private static final String DEFAULT_SERVER_HOST = "127.0.0.1";
     private static final int DEFAULT_SERVER_PORT = 8888;
@@ -25,8 +32,9 @@ public class ChatClient {
     private String host;
     private int port;
     private SocketChannel clientSocketChannel;
-    private ByteBuffer rBuffer = ByteBuffer.allocate(BUFFER);
-    private ByteBuffer wBuffer = ByteBuffer.allocate(BUFFER);
+    private ByteBuffer rBuffer = BufferPool.DEFAULT.allocate(BUFFER);
+    private ByteBuffer wBuffer = BufferPool.DEFAULT.allocate(BUFFER);
+    private FrameDecoder decoder = new FrameDecoder(BufferPool.DEFAULT);
     private Selector selector;
     private Charset charset = Charset.forName("UTF-8");
 
@@ -72,6 +80,8 @@ public class ChatClient {
             // 正常退出，无需处理
         } finally {
             closeResource(selector);
+            decoder.reset();
+            BufferPool.DEFAULT.free(rBuffer);
         }
     }
 
@@ -94,24 +104,41 @@ public class ChatClient {
         // READ 事件 —— 服务端转发别的客户端的消息过来
         else if (key.isReadable()) {
             SocketChannel clientSocketChannel = (SocketChannel) key.channel();
-            String msg = receive(clientSocketChannel);
-            if (msg.isEmpty()) {
-                // 空信息 -> 服务端异常 -> 客户端退出
+            if (!receive(clientSocketChannel)) {
+                // 读到 EOF -> 服务端异常 -> 客户端退出
                 closeResource(selector);
-            } else {
-                System.out.println(msg);
             }
         }
     }
 
     /**
-     * 从通道中读取信息
+     * 从通道中读取信息，解码出完整的帧
+     * @return  服务端是否还在线
+     */
+    private boolean receive(SocketChannel clientSocketChannel) throws IOException {
+        int read;
+        do {
+            rBuffer.clear();
+            read = clientSocketChannel.read(rBuffer);
+            if (read > 0) {
+                rBuffer.flip();
+                decoder.decode(rBuffer, this, null);
+            }
+        } while (read > 0);
+        return read >= 0;
+    }
+
+    /**
+     * 收到服务端转发的一条消息
      */
-    private String receive(SocketChannel clientSocketChannel) throws IOException {
-        rBuffer.clear();
-        while (clientSocketChannel.read(rBuffer) > 0){}
-        rBuffer.flip();
-        return String.valueOf(charset.decode(rBuffer));
+    @Override
+    public void onFrame(byte type, ByteBuffer payload, Void attachment) throws IOException {
+        if (type == Frame.TEXT) {
+            System.out.println(charset.decode(payload));
+        } else if (type == Frame.PING) {
+            // 服务端的心跳，原样回复
+            writeFrame(Frame.PONG, payload);
+        }
     }
 
     /**
@@ -122,21 +149,46 @@ public class ChatClient {
             return;
         }
 
-        // 先写入 wBuffer
-        wBuffer.clear();
-        wBuffer.put(charset.encode(input));
-        wBuffer.flip();
-        // 再转到 channel
-        while (wBuffer.hasRemaining()){
-            clientSocketChannel.write(wBuffer);
+        // 以 / 开头的是房间命令，其余是发往当前房间的消息
+        Command command = Command.parse(input);
+        if (command == null) {
+            System.out.println("命令格式：/join 房间名、/leave 房间名、/nick 昵称、/msg 昵称 消息");
+            return;
         }
 
+        writeFrame(command.getType(), charset.encode(command.getPayload()));
+
         // 监控用户是否退出
         if (readyToQuit(input)) {
             closeResource(selector);
         }
     }
 
+    /**
+     * 编码成帧写到服务端
+     * 用户输入线程和收到 PING 的 selector 线程都会写，加锁保证帧不交错
+     */
+    private synchronized void writeFrame(byte type, ByteBuffer payload) throws IOException {
+        // 先编码成帧写入 wBuffer，消息比 wBuffer 大时临时分配
+        ByteBuffer frame = wBuffer;
+        if (FrameCodec.frameSize(payload.remaining()) > wBuffer.capacity()) {
+            frame = BufferPool.DEFAULT.allocate(FrameCodec.frameSize(payload.remaining()));
+        }
+        try {
+            frame.clear();
+            FrameCodec.putFrame(frame, type, payload);
+            frame.flip();
+            // 再转到 channel
+            while (frame.hasRemaining()){
+                clientSocketChannel.write(frame);
+            }
+        } finally {
+            if (frame != wBuffer) {
+                BufferPool.DEFAULT.free(frame);
+            }
+        }
+    }
+
     /**
      * 判断客户端是否准备退出
      */
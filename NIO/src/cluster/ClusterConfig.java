@@ -0,0 +1,128 @@
+package cluster;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 集群模式的配置
+ * 每个节点除了客户端端口，还监听一个节点间端口，节点用 "主机:节点间端口" 标识，也用它互相连接。
+ * seeds 是启动时主动连接的节点：静态配置时列出所有节点，种子模式只需要列一两个已经在运行的节点，
+ * 其余节点通过握手时交换的成员列表发现，最终两两相连。
+ * 节点间端口只接受可信的节点：设置了共享密钥时，握手必须带上用密钥算出的签名，种子模式需要这样部署；
+ * 没有设置密钥时只接受 seeds 中列出的节点（对方的 IP 也要和它声明的地址一致），也不再按其他节点发来的成员列表去连接，
+ * 这时 seeds 要列出所有节点（静态配置）。
+ * 可以通过系统属性修改：
+ * <pre>
+ * -Dchat.cluster.enabled=false             是否开启集群模式，设置了 seeds 时默认开启
+ * -Dchat.cluster.host=127.0.0.1            本节点的主机名，节点间端口绑定在这个地址上，也通告给其他节点
+ * -Dchat.cluster.port=客户端端口+2000        节点间端口
+ * -Dchat.cluster.seeds=                    启动时连接的节点，逗号分隔的 主机:节点间端口
+ * -Dchat.cluster.secret=                   节点间握手的共享密钥，所有节点相同，不设置时只接受 seeds 中的节点
+ * -Dchat.cluster.reconnectMs=1000          节点间链路断开后多久重连
+ * -Dchat.cluster.maxQueueBytes=16777216    每条链路发送队列的最大字节数，超过时丢弃新消息
+ * </pre>
+ *
+ * @author Hedon Wang
+ * @create 2026-10-23 4:30 PM
+ */
+public class ClusterConfig {
+
+    private static final int PORT_OFFSET = 2000;       // 默认的节点间端口 = 客户端端口 + 2000
+
+    private final boolean enabled;
+    private final String host;
+    private final int port;
+    private final List<String> seeds;
+    private final long reconnectMs;
+    private final long maxQueueBytes;
+    private final String secret;                       // 握手的共享密钥，没有设置时为 null
+
+    public ClusterConfig(boolean enabled, String host, int port, List<String> seeds, long reconnectMs, long maxQueueBytes,
+                         String secret) {
+        if (enabled && (port <= 0 || reconnectMs <= 0 || maxQueueBytes <= 0)) {
+            throw new IllegalArgumentException("集群参数设置错误：port=" + port + ", reconnectMs=" + reconnectMs
+                    + ", maxQueueBytes=" + maxQueueBytes);
+        }
+        this.enabled = enabled;
+        this.host = host;
+        this.port = port;
+        this.seeds = Collections.unmodifiableList(new ArrayList<>(seeds));
+        this.reconnectMs = reconnectMs;
+        this.maxQueueBytes = maxQueueBytes;
+        this.secret = secret == null || secret.isEmpty() ? null : secret;
+    }
+
+    /**
+     * 从系统属性读取配置，没有设置的使用默认值
+     * @param serverPort    客户端端口，用来推出默认的节点间端口
+     */
+    public static ClusterConfig fromSystemProperties(int serverPort) {
+        List<String> seeds = new ArrayList<>();
+        for (String seed : System.getProperty("chat.cluster.seeds", "").split(",")) {
+            if (!seed.trim().isEmpty()) {
+                seeds.add(seed.trim());
+            }
+        }
+        return new ClusterConfig(
+                Boolean.parseBoolean(System.getProperty("chat.cluster.enabled", String.valueOf(!seeds.isEmpty()))),
+                System.getProperty("chat.cluster.host", "127.0.0.1"),
+                Integer.getInteger("chat.cluster.port", serverPort + PORT_OFFSET),
+                seeds,
+                Long.getLong("chat.cluster.reconnectMs", 1000L),
+                Long.getLong("chat.cluster.maxQueueBytes", 16L << 20),
+                System.getProperty("chat.cluster.secret")
+        );
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * 本节点的标识，也是其他节点连接本节点用的地址
+     */
+    public String getAddress() {
+        return host + ":" + port;
+    }
+
+    public List<String> getSeeds() {
+        return seeds;
+    }
+
+    public long getReconnectMs() {
+        return reconnectMs;
+    }
+
+    public long getMaxQueueBytes() {
+        return maxQueueBytes;
+    }
+
+    /**
+     * 握手的共享密钥，没有设置时为 null
+     */
+    String getSecret() {
+        return secret;
+    }
+
+    /**
+     * 是否接受这个节点：有共享密钥时由签名决定，否则只接受 seeds 中的节点
+     */
+    public boolean isAllowed(String address) {
+        return secret != null || seeds.contains(address);
+    }
+
+    @Override
+    public String toString() {
+        return getAddress() + "，seeds=" + seeds + ", reconnectMs=" + reconnectMs + ", maxQueueBytes=" + maxQueueBytes
+                + ", auth=" + (secret != null ? "secret" : "seeds");
+    }
+}
@@ -0,0 +1,648 @@
+package cluster;
+
+import log.EventLog;
+import metrics.Histogram;
+import protocol.FrameHandler;
+import server.ChatServer;
+import server.EventLoopSelector;
+import server.Room;
+import server.SharedBuffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 集群模式下本节点与其他节点之间的联邦
+ * 客户端连到哪个节点都可以：每个节点只把消息转发给自己的客户端，发往房间的消息再通过节点间链路
+ * 转发给在这个房间有成员的其他节点，每个节点一次（{@link PeerLink}）；收到其他节点转发来的消息只在本地扇出，
+ * 不再转发，节点两两相连，所以不会绕圈，也不会重复。
+ * 房间和在线状态通过通告同步：本节点的房间从没有成员变为有成员（或反过来）、昵称被占用或释放时，通告给所有节点，
+ * 其他节点据此决定房间消息要不要发过来、私聊发给哪个节点，上下线提示本身也是房间消息，同样跨节点可见。
+ * 昵称在本节点占用时会检查其他节点通告过的昵称，通告在路上时两个节点可能同时占用同一个昵称，只保证最终可见。
+ * 所有节点间链路的读写都在一个集群线程里，worker 线程只往链路的队列里放编码好的帧。
+ * 连进来的节点要先通过认证（共享密钥签名或 seeds 白名单）才会处理它的帧，配置见 {@link ClusterConfig}。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-23 5:20 PM
+ */
+public class ClusterNode implements Runnable, FrameHandler<PeerConnection>, Closeable {
+
+    private static final int BUFFER = 64 * 1024;
+    private static final long MAX_CLOCK_SKEW_MILLIS = TimeUnit.MINUTES.toMillis(5);     // 握手时间戳允许的偏差
+
+    private final ChatServer chatServer;
+    private final ClusterConfig config;
+    private final String self;                                              // 本节点地址
+    private final EventLoopSelector selector;
+    private final ByteBuffer rBuffer = ByteBuffer.allocateDirect(BUFFER);   // 读节点间链路的缓冲区，只在集群线程中使用
+    private final Map<String, PeerLink> links = new ConcurrentHashMap<>();  // 节点地址 -> 发往该节点的链路
+    private final Map<String, String> remoteNicknames = new ConcurrentHashMap<>();     // 其他节点的昵称 -> 所在节点
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();   // 其他线程投递过来的任务
+    private final Queue<PeerLink> flushes = new ConcurrentLinkedQueue<>(); // 有帧要写的链路
+
+    // 以下只在集群线程中访问
+    private final Map<String, PeerConnection> inbound = new HashMap<>();   // 节点地址 -> 该节点连进来的链路
+    private final Set<String> advertisedRooms = new HashSet<>();           // 已经通告过的、本节点有成员的房间
+    private final Set<String> advertisedNicknames = new HashSet<>();       // 已经通告过的本节点昵称
+    private ServerSocketChannel serverSocketChannel;
+
+    // 统计
+    private final LongAdder forwarded = new LongAdder();       // 发给其他节点的消息数（每个节点算一次）
+    private final LongAdder received = new LongAdder();        // 收到的其他节点转发来的消息数
+    private final LongAdder dropped = new LongAdder();         // 链路没连上、积压太多或无法编码而丢弃的消息数
+    private final Histogram batchSizes = new Histogram();      // 每次聚集写的帧数
+
+    private volatile boolean running = true;
+    private volatile Thread thread;
+
+    public ClusterNode(ChatServer chatServer, ClusterConfig config) throws IOException {
+        this.chatServer = chatServer;
+        this.config = config;
+        this.self = config.getAddress();
+        this.selector = new EventLoopSelector("nio-cluster");
+    }
+
+    /**
+     * 监听节点间端口，连接 seeds 中的节点，启动集群线程
+     */
+    public void start() throws IOException {
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.configureBlocking(false);
+        // 只绑定在配置的地址上，不对所有网卡开放
+        serverSocketChannel.bind(new InetSocketAddress(config.getHost(), config.getPort()));
+        selector.register(serverSocketChannel, SelectionKey.OP_ACCEPT, null);
+        for (String seed : config.getSeeds()) {
+            addMember(seed);
+        }
+        new Thread(this, "nio-cluster").start();
+        EventLog.info("集群模式：本节点 {}，seeds={}", self, config.getSeeds());
+    }
+
+    /**
+     * 集群线程主循环
+     */
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (running) {
+                int ready;
+                if (!tasks.isEmpty() || !flushes.isEmpty()) {
+                    ready = selector.selectNow();
+                } else {
+                    // 最多阻塞到下一次重连
+                    ready = selector.select(config.getReconnectMs());
+                }
+                for (int i = 0; i < ready; i++) {
+                    handles(selector.readyKey(i));
+                }
+                selector.clearReady();
+                runTasks();
+                flushLinks();
+                reconnect();
+            }
+        } catch (IOException e) {
+            EventLog.error("集群线程异常退出，本节点 {}", self, e);
+        } catch (ClosedSelectorException e) {
+            // 服务端关闭，正常退出
+        }
+    }
+
+    /**
+     * 转发发往房间的消息给在这个房间有成员的其他节点，在 worker 线程中调用
+     * 只编码一次，每条链路一个视图；不持有 fwdMsg 的引用，返回后调用方照常释放
+     */
+    public void forward(Room room, SharedBuffer fwdMsg, boolean critical) {
+        ByteBuffer frame = null;
+        for (PeerLink link : links.values()) {
+            if (!link.getRooms().contains(room.getName())) {
+                continue;
+            }
+            try {
+                if (frame == null) {
+                    frame = PeerFrame.encode(PeerFrame.ROOM_MSG, new String[]{room.getName(), critical ? "1" : "0"}, fwdMsg.duplicate());
+                }
+            } catch (ProtocolException e) {
+                dropped.increment();
+                EventLog.warn("房间 {} 的消息无法转发给其他节点", room.getName(), e);
+                return;
+            }
+            send(link, frame.duplicate());
+        }
+    }
+
+    /**
+     * 把私聊发给昵称所在的节点，在 worker 线程中调用
+     * @return  昵称不在其他节点上或者链路没连上时返回 false
+     */
+    public boolean sendDirect(String nickname, SharedBuffer fwdMsg) {
+        String node = remoteNicknames.get(nickname);
+        PeerLink link = node == null ? null : links.get(node);
+        if (link == null) {
+            return false;
+        }
+        try {
+            return send(link, PeerFrame.encode(PeerFrame.DIRECT, new String[]{nickname}, fwdMsg.duplicate()));
+        } catch (ProtocolException e) {
+            dropped.increment();
+            EventLog.warn("发给 {} 的私聊无法转发给其他节点", nickname, e);
+            return false;
+        }
+    }
+
+    /**
+     * 昵称是否被其他节点的客户端占用
+     */
+    public boolean isRemoteNickname(String nickname) {
+        return remoteNicknames.containsKey(nickname);
+    }
+
+    /**
+     * 本节点有成员加入或离开了房间，由集群线程按房间当前的人数决定要不要通告，可以在任何线程中调用
+     * 多个 worker 同时加入、离开时通知的顺序不确定，所以不通告"加入"、"离开"本身，而是到时再看房间有没有成员；
+     * 没人的房间会被删掉，之后同名的是另一个房间对象，所以按房间名重新查找
+     */
+    public void roomChanged(final Room room) {
+        final String name = room.getName();
+        execute(() -> {
+            Room current = chatServer.getRooms().get(name);
+            boolean hasMembers = current != null && current.size() > 0;
+            if (hasMembers ? advertisedRooms.add(name) : advertisedRooms.remove(name)) {
+                broadcast(hasMembers ? PeerFrame.ROOM_UP : PeerFrame.ROOM_DOWN, name);
+            }
+        });
+    }
+
+    /**
+     * 本节点有客户端占用或释放了昵称，可以在任何线程中调用
+     */
+    public void nicknameChanged(final String nickname) {
+        if (nickname == null) {
+            return;
+        }
+        execute(() -> {
+            boolean taken = chatServer.getNicknames().get(nickname) != null;
+            if (taken ? advertisedNicknames.add(nickname) : advertisedNicknames.remove(nickname)) {
+                broadcast(taken ? PeerFrame.NICK_UP : PeerFrame.NICK_DOWN, nickname);
+            }
+        });
+    }
+
+    /**
+     * 放进链路的发送队列，必要时通知集群线程来写
+     */
+    private boolean send(PeerLink link, ByteBuffer frame) {
+        if (!link.offer(frame)) {
+            dropped.increment();
+            return false;
+        }
+        forwarded.increment();
+        if (link.scheduleFlush()) {
+            flushes.offer(link);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 通告给所有已经连上的节点，只在集群线程中调用
+     */
+    private void broadcast(byte type, String field) {
+        ByteBuffer frame;
+        try {
+            frame = PeerFrame.encode(type, field);
+        } catch (ProtocolException e) {
+            EventLog.warn("通告 {} 太长，无法发给其他节点", field, e);
+            return;
+        }
+        for (PeerLink link : links.values()) {
+            if (link.isConnected()) {
+                link.enqueue(frame.duplicate());
+                if (link.scheduleFlush()) {
+                    flushes.offer(link);
+                }
+            }
+        }
+    }
+
+    /**
+     * 投递任务到集群线程中执行
+     */
+    private void execute(Runnable task) {
+        tasks.offer(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                EventLog.error("{} 执行投递的任务失败", Thread.currentThread().getName(), e);
+            }
+        }
+    }
+
+    /**
+     * 处理被触发的事件：接入其他节点、连接完成、读链路、写链路
+     */
+    private void handles(SelectionKey key) {
+        Object attachment = key.attachment();
+        if (attachment == null) {
+            if (key.isValid() && key.isAcceptable()) {
+                accept();
+            }
+        } else if (attachment instanceof PeerLink) {
+            PeerLink link = (PeerLink) attachment;
+            try {
+                if (key.isValid() && key.isConnectable()) {
+                    if (link.finishConnect()) {
+                        onConnected(link, key);
+                    }
+                }
+                // 发往其他节点的链路只写不读，读到 EOF 说明对方关闭了
+                if (key.isValid() && key.isReadable()) {
+                    rBuffer.clear();
+                    if (link.getChannel().read(rBuffer) < 0) {
+                        throw new IOException("节点 " + link.getAddress() + " 关闭了链路");
+                    }
+                }
+                if (key.isValid() && key.isWritable()) {
+                    link.flush(key, batchSizes);
+                }
+            } catch (IOException | RuntimeException e) {
+                // 一条链路出错只关闭这条链路，不能让异常结束集群线程
+                closeLink(link, e);
+            }
+        } else {
+            PeerConnection connection = (PeerConnection) attachment;
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    receive(connection);
+                }
+            } catch (IOException | RuntimeException e) {
+                EventLog.warn("关闭节点 {} 连进来的链路", connection.getNode(), e);
+                closeInbound(connection);
+            }
+        }
+    }
+
+    /**
+     * 接入其他节点连进来的链路，收到 HELLO 之后才知道是哪个节点
+     */
+    private void accept() {
+        SocketChannel channel = null;
+        try {
+            channel = serverSocketChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            channel.configureBlocking(false);
+            PeerConnection connection = new PeerConnection(channel);
+            selector.register(channel, SelectionKey.OP_READ, connection);
+        } catch (IOException e) {
+            EventLog.warn("接受其他节点的连接失败，本节点 {}", self, e);
+            closeResource(channel);
+        }
+    }
+
+    /**
+     * 链路连上了：先发握手（本节点地址、已知的节点、本节点的房间和昵称），再开始转发消息
+     * 握手帧入队之后才标记为已连上，worker 放进来的消息一定排在握手后面
+     */
+    private void onConnected(PeerLink link, SelectionKey key) throws IOException {
+        link.discardQueued();
+        long timestamp = System.currentTimeMillis();
+        String signature = config.getSecret() == null ? "" : PeerAuth.sign(config.getSecret(), self, timestamp);
+        link.enqueue(PeerFrame.encode(PeerFrame.HELLO, self, String.valueOf(timestamp), signature));
+        String[] members = links.keySet().toArray(new String[0]);
+        link.enqueue(PeerFrame.encode(PeerFrame.MEMBERS, members));
+        for (String room : advertisedRooms) {
+            link.enqueue(PeerFrame.encode(PeerFrame.ROOM_UP, room));
+        }
+        for (String nickname : advertisedNicknames) {
+            link.enqueue(PeerFrame.encode(PeerFrame.NICK_UP, nickname));
+        }
+        link.setConnected(true);
+        key.interestOps(SelectionKey.OP_READ);
+        link.flush(key, batchSizes);
+        EventLog.info("已连接节点 {}", link.getAddress());
+    }
+
+    /**
+     * 读其他节点连进来的链路
+     */
+    private void receive(PeerConnection connection) throws IOException {
+        rBuffer.clear();
+        int read = connection.getChannel().read(rBuffer);
+        if (read < 0) {
+            closeInbound(connection);
+            return;
+        }
+        rBuffer.flip();
+        connection.getDecoder().decode(rBuffer, this, connection);
+    }
+
+    /**
+     * 解码出一个节点间帧后的回调
+     */
+    @Override
+    public void onFrame(byte type, ByteBuffer payload, PeerConnection connection) throws IOException {
+        String node = connection.getNode();
+        if ((node == null) != (type == PeerFrame.HELLO)) {
+            throw new ProtocolException("节点间链路必须以 HELLO 开始，且只能握手一次：" + type);
+        }
+        switch (type) {
+            case PeerFrame.HELLO:
+                onHello(connection, payload);
+                break;
+            case PeerFrame.MEMBERS:
+                // 没有共享密钥时只连接 seeds 中的节点，不按对方发来的列表去连任意地址
+                while (payload.hasRemaining()) {
+                    String member = PeerFrame.readField(payload);
+                    if (config.isAllowed(member)) {
+                        addMember(member);
+                    }
+                }
+                break;
+            case PeerFrame.ROOM_UP:
+                linkOf(node).getRooms().add(PeerFrame.readField(payload));
+                break;
+            case PeerFrame.ROOM_DOWN:
+                linkOf(node).getRooms().remove(PeerFrame.readField(payload));
+                break;
+            case PeerFrame.NICK_UP:
+                remoteNicknames.put(PeerFrame.readField(payload), node);
+                break;
+            case PeerFrame.NICK_DOWN:
+                remoteNicknames.remove(PeerFrame.readField(payload), node);
+                break;
+            case PeerFrame.ROOM_MSG:
+                String room = PeerFrame.readField(payload);
+                boolean critical = "1".equals(PeerFrame.readField(payload));
+                received.increment();
+                chatServer.deliverToRoom(room, SharedBuffer.copyOf(payload), critical);
+                break;
+            case PeerFrame.DIRECT:
+                String nickname = PeerFrame.readField(payload);
+                received.increment();
+                chatServer.deliverToNickname(nickname, SharedBuffer.copyOf(payload));
+                break;
+            default:
+                throw new ProtocolException("未知的节点间帧类型：" + type);
+        }
+    }
+
+    /**
+     * 发往 node 的链路，收到 HELLO 时已经建立，不存在说明对方没有按协议握手
+     */
+    private PeerLink linkOf(String node) throws ProtocolException {
+        PeerLink link = links.get(node);
+        if (link == null) {
+            throw new ProtocolException("没有发往节点 " + node + " 的链路");
+        }
+        return link;
+    }
+
+    /**
+     * 其他节点连进来了，认证通过之后同一个节点之前的链路（对方重启或重连）作废，再连回去
+     * 认证失败、地址不合法、无法建立回连的链路时拒绝这个连接
+     */
+    private void onHello(PeerConnection connection, ByteBuffer payload) throws IOException {
+        String node = PeerFrame.readField(payload);
+        long timestamp;
+        try {
+            timestamp = Long.parseLong(PeerFrame.readField(payload));
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("HELLO 的时间戳格式错误");
+        }
+        String signature = PeerFrame.readField(payload);
+        if (self.equals(node)) {
+            throw new ProtocolException("节点间链路连到了自己：" + node);
+        }
+        authenticate(connection, node, timestamp, signature);
+        if (!addMember(node)) {
+            throw new ProtocolException("节点地址不合法：" + node);
+        }
+        PeerConnection previous = inbound.get(node);
+        if (previous != null && previous != connection) {
+            closeInbound(previous);
+        }
+        connection.setNode(node);
+        inbound.put(node, connection);
+        EventLog.info("节点 {} 已连入", node);
+    }
+
+    /**
+     * 认证连进来的节点
+     * 有共享密钥时校验签名和时间戳；没有时只接受 seeds 中的节点，而且连接的来源 IP 要和它声明的地址一致
+     */
+    private void authenticate(PeerConnection connection, String node, long timestamp, String signature) throws IOException {
+        String secret = config.getSecret();
+        if (secret != null) {
+            if (Math.abs(System.currentTimeMillis() - timestamp) > MAX_CLOCK_SKEW_MILLIS) {
+                throw new ProtocolException("节点 " + node + " 的握手时间戳超出允许的偏差");
+            }
+            if (!PeerAuth.verify(secret, node, timestamp, signature)) {
+                throw new ProtocolException("节点 " + node + " 的握手签名错误");
+            }
+            return;
+        }
+        if (!config.isAllowed(node)) {
+            throw new ProtocolException("节点 " + node + " 不在 seeds 中");
+        }
+        InetAddress remote = ((InetSocketAddress) connection.getChannel().getRemoteAddress()).getAddress();
+        InetAddress claimed = linkOf(node).getSocketAddress().getAddress();
+        if (!remote.equals(claimed)) {
+            throw new ProtocolException("节点 " + node + " 的来源地址 " + remote + " 与声明的不一致");
+        }
+    }
+
+    /**
+     * 发现了一个节点，还没有链路时建立
+     * @return  已经有或者新建了发往这个节点的链路时返回 true，地址是本节点或者格式错误时返回 false
+     */
+    private boolean addMember(String address) {
+        if (self.equals(address)) {
+            return false;
+        }
+        if (links.containsKey(address)) {
+            return true;
+        }
+        PeerLink link;
+        try {
+            link = new PeerLink(address, config.getMaxQueueBytes());
+        } catch (IllegalArgumentException e) {
+            EventLog.warn("忽略格式错误的节点地址 {}", address, e);
+            return false;
+        }
+        links.put(address, link);
+        connect(link);
+        return true;
+    }
+
+    /**
+     * 开始连接，失败时等待重连
+     */
+    private void connect(PeerLink link) {
+        try {
+            SocketChannel channel = link.connect();
+            selector.register(channel, SelectionKey.OP_CONNECT, link);
+        } catch (IOException e) {
+            closeLink(link, e);
+        }
+    }
+
+    /**
+     * 重连断开时间超过 reconnectMs 的链路
+     */
+    private void reconnect() {
+        long now = System.nanoTime();
+        for (PeerLink link : links.values()) {
+            if (link.getChannel() == null && now - link.getNextConnectNanos() >= 0) {
+                connect(link);
+            }
+        }
+    }
+
+    /**
+     * 写出有帧待发送的链路，连接还没完成的等 onConnected 再写
+     */
+    private void flushLinks() {
+        PeerLink link;
+        while ((link = flushes.poll()) != null) {
+            SocketChannel channel = link.getChannel();
+            SelectionKey key = channel == null ? null : channel.keyFor(selector.unwrap());
+            if (key == null || !key.isValid() || !link.isConnected()) {
+                continue;
+            }
+            try {
+                link.flush(key, batchSizes);
+            } catch (IOException e) {
+                closeLink(link, e);
+            }
+        }
+    }
+
+    /**
+     * 发往其他节点的链路出错，丢弃积压的帧，稍后重连
+     */
+    private void closeLink(PeerLink link, Exception cause) {
+        boolean wasConnected = link.isConnected();
+        link.close(TimeUnit.MILLISECONDS.toNanos(config.getReconnectMs()));
+        if (wasConnected) {
+            EventLog.warn("与节点 {} 的链路断开", link.getAddress(), cause);
+        }
+    }
+
+    /**
+     * 其他节点连进来的链路断开了，认为这个节点下线：它的房间和昵称都作废，重新连上之后会再通告
+     */
+    private void closeInbound(PeerConnection connection) {
+        closeResource(connection.getChannel());
+        connection.getDecoder().reset();
+        String node = connection.getNode();
+        if (node == null || inbound.get(node) != connection) {
+            return;
+        }
+        inbound.remove(node);
+        PeerLink link = links.get(node);
+        if (link != null) {
+            link.getRooms().clear();
+        }
+        remoteNicknames.values().removeIf(node::equals);
+        EventLog.info("节点 {} 已断开", node);
+    }
+
+    /**
+     * 关闭集群线程和所有链路
+     */
+    @Override
+    public void close() {
+        running = false;
+        closeResource(selector);
+        closeResource(serverSocketChannel);
+        for (PeerLink link : links.values()) {
+            link.close(0);
+        }
+        for (PeerConnection connection : inbound.values()) {
+            closeResource(connection.getChannel());
+        }
+    }
+
+    private void closeResource(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                EventLog.warn("关闭 {} 失败", closeable.toString(), e);
+            }
+        }
+    }
+
+    public String getAddress() {
+        return self;
+    }
+
+    /**
+     * 已经连上的其他节点数
+     */
+    public int getConnectedPeers() {
+        int connected = 0;
+        for (PeerLink link : links.values()) {
+            if (link.isConnected()) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * 所有链路发送队列中积压的字节数
+     */
+    public long getQueuedBytes() {
+        long bytes = 0;
+        for (PeerLink link : links.values()) {
+            bytes += link.getQueuedBytes();
+        }
+        return bytes;
+    }
+
+    public long getForwarded() {
+        return forwarded.sum();
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public Histogram getBatchSizes() {
+        return batchSizes;
+    }
+}
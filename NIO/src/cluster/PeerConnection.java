@@ -0,0 +1,40 @@
+package cluster;
+
+import buffer.BufferPool;
+import protocol.FrameDecoder;
+
+import java.nio.channels.SocketChannel;
+
+/**
+ * 其他节点连进来的链路，只读不写，只在集群线程中访问
+ * 收到 HELLO 之后才知道对方是哪个节点。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-23 5:10 PM
+ */
+class PeerConnection {
+
+    private final SocketChannel channel;
+    private final FrameDecoder decoder = new FrameDecoder(BufferPool.DEFAULT, PeerFrame.MAX_PAYLOAD_SIZE);
+    private String node;                    // 对方节点的地址，收到 HELLO 之前为 null
+
+    PeerConnection(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    FrameDecoder getDecoder() {
+        return decoder;
+    }
+
+    String getNode() {
+        return node;
+    }
+
+    void setNode(String node) {
+        this.node = node;
+    }
+}
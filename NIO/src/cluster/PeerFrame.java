@@ -0,0 +1,104 @@
+package cluster;
+
+import protocol.Frame;
+import protocol.FrameCodec;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 节点间链路的帧
+ * 外层和客户端协议一样是 varint 负载长度 + 类型 + 负载，直接复用 {@link protocol.FrameDecoder} 解码。
+ * 负载由若干个字符串字段（varint 长度 + UTF-8）组成，转发消息时后面再跟着编码好的客户端帧，
+ * 接收的节点不需要重新编码，原样交给本地的房间成员：
+ * <pre>
+ * HELLO      [本节点地址][时间戳][签名]          链路建立后发送的第一个帧，签名见 {@link PeerAuth}，没有密钥时为空
+ * MEMBERS    [节点地址]...                     发送方知道的所有节点，接收方连接其中还没连上的
+ * ROOM_UP    [房间名]                          发送方有成员在这个房间了
+ * ROOM_DOWN  [房间名]                          发送方在这个房间已经没有成员了
+ * NICK_UP    [昵称]                            发送方的客户端占用了这个昵称
+ * NICK_DOWN  [昵称]                            发送方的客户端释放了这个昵称
+ * ROOM_MSG   [房间名][是否重要 1/0] 客户端帧      发往房间的消息
+ * DIRECT     [昵称] 客户端帧                    发给某个昵称的私聊
+ * </pre>
+ * 转发的客户端帧本身最大可以有 {@link Frame#MAX_PAYLOAD_SIZE} 的负载，所以节点间帧的上限再加上信封（帧头和字段）的余量。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-23 4:40 PM
+ */
+public final class PeerFrame {
+
+    public static final byte HELLO = 1;
+    public static final byte MEMBERS = 2;
+    public static final byte ROOM_UP = 3;
+    public static final byte ROOM_DOWN = 4;
+    public static final byte NICK_UP = 5;
+    public static final byte NICK_DOWN = 6;
+    public static final byte ROOM_MSG = 7;
+    public static final byte DIRECT = 8;
+
+    private static final int ENVELOPE_SIZE = 4096;     // 给字段和被转发帧的帧头预留的字节数
+    public static final int MAX_PAYLOAD_SIZE = Frame.MAX_PAYLOAD_SIZE + ENVELOPE_SIZE;     // 节点间帧负载的上限
+
+    private PeerFrame() {
+    }
+
+    /**
+     * 编码一个只有字符串字段的帧
+     */
+    public static ByteBuffer encode(byte type, String... fields) throws ProtocolException {
+        return encode(type, fields, null);
+    }
+
+    /**
+     * 编码一个帧，返回的 buffer 处于读模式，可以 duplicate 之后发给多条链路
+     * @param body  跟在字段后面的数据（编码好的客户端帧），没有时为 null，不会改变它的 position
+     * @throws ProtocolException    负载超过 {@link #MAX_PAYLOAD_SIZE}（字段太长）
+     */
+    public static ByteBuffer encode(byte type, String[] fields, ByteBuffer body) throws ProtocolException {
+        byte[][] encoded = new byte[fields.length][];
+        int payloadLength = body == null ? 0 : body.remaining();
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            payloadLength += FrameCodec.varintSize(encoded[i].length) + encoded[i].length;
+        }
+        FrameCodec.checkPayloadLength(payloadLength, MAX_PAYLOAD_SIZE);
+        ByteBuffer frame = ByteBuffer.allocate(FrameCodec.frameSize(payloadLength));
+        FrameCodec.putVarint(frame, payloadLength);
+        frame.put(type);
+        for (byte[] field : encoded) {
+            FrameCodec.putVarint(frame, field.length);
+            frame.put(field);
+        }
+        if (body != null) {
+            frame.put(body.duplicate());
+        }
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * 从负载中读出下一个字符串字段
+     */
+    public static String readField(ByteBuffer payload) throws ProtocolException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (!payload.hasRemaining() || shift > 28) {
+                throw new ProtocolException("节点间帧的字段格式错误");
+            }
+            byte b = payload.get();
+            length |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        if (length < 0 || length > payload.remaining()) {
+            throw new ProtocolException("节点间帧的字段长度错误：" + length);
+        }
+        // 负载可能在直接缓冲区里，没有 array()
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
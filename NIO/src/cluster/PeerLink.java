@@ -0,0 +1,211 @@
+package cluster;
+
+import log.EventLog;
+import metrics.Histogram;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本节点发往另一个节点的链路，一个节点一条，断开后自动重连
+ * 每两个节点之间有两条 TCP 连接，各自只负责一个方向，不需要协商谁来连谁，也不会出现重复的链路。
+ * worker 线程把编码好的帧放进无锁队列，集群线程把队列里攒下的帧用聚集写一次写出去，
+ * 负载高时一次 write 就能带上几十条消息（批量），负载低时也不会为了凑批量而等待。
+ * 链路断开期间的消息直接丢弃，不会在重连后补发。
+ * 除了 {@link #offer}、{@link #isConnected()} 和房间集合，其他方法只能在集群线程中调用。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-23 5:00 PM
+ */
+public class PeerLink {
+
+    private static final int MAX_GATHER = 64;           // 一次聚集写最多的帧数
+
+    private final String address;                       // 对方节点的地址，也是它的标识
+    private final InetSocketAddress socketAddress;
+    private final long maxQueueBytes;
+    private final Queue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();     // 待发送的帧
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();           // 是否已经通知集群线程来写
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();           // 对方有成员的房间，只把这些房间的消息发过去
+    private volatile boolean connected;                 // 握手帧已经入队，可以发送消息
+
+    // 以下只在集群线程中访问
+    private SocketChannel channel;                      // Selector 可能重建，SelectionKey 不缓存，用时从 channel 查
+    private long nextConnectNanos;                      // 断开之后下一次重连的时间
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];     // 正在写的一批帧
+    private int batchStart;                             // batch[batchStart, batchEnd) 还没写完
+    private int batchEnd;
+
+    public PeerLink(String address, long maxQueueBytes) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("节点地址格式应为 主机:端口：" + address);
+        }
+        this.address = address;
+        this.socketAddress = new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        this.maxQueueBytes = maxQueueBytes;
+    }
+
+    /**
+     * 把编码好的帧放进发送队列，可以在任何线程中调用
+     * @return  链路没有连上或者积压超过上限时丢弃并返回 false
+     */
+    boolean offer(ByteBuffer frame) {
+        if (!connected || queuedBytes.get() > maxQueueBytes) {
+            return false;
+        }
+        enqueue(frame);
+        return true;
+    }
+
+    /**
+     * 不检查状态，直接入队，握手帧用
+     */
+    void enqueue(ByteBuffer frame) {
+        queuedBytes.addAndGet(frame.remaining());
+        queue.offer(frame);
+    }
+
+    /**
+     * 标记需要写，之前没有标记过时返回 true，调用方要通知集群线程
+     */
+    boolean scheduleFlush() {
+        return flushScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * 开始非阻塞连接，连上之后由集群线程调用 {@link #finishConnect()}
+     */
+    SocketChannel connect() throws IOException {
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.connect(socketAddress);
+        return channel;
+    }
+
+    boolean finishConnect() throws IOException {
+        return channel.finishConnect();
+    }
+
+    /**
+     * 写出队列里的帧，每次最多聚集 MAX_GATHER 个，写不完时注册 OP_WRITE
+     * @param selectionKey  链路在集群线程 Selector 上的 key
+     * @param batchSizes    每次聚集写的帧数
+     * @return              写完的帧数
+     */
+    int flush(SelectionKey selectionKey, Histogram batchSizes) throws IOException {
+        flushScheduled.set(false);
+        int written = 0;
+        for (;;) {
+            // 补满这一批
+            if (batchStart == batchEnd) {
+                batchStart = 0;
+                batchEnd = 0;
+            } else if (batchEnd == MAX_GATHER && batchStart > 0) {
+                System.arraycopy(batch, batchStart, batch, 0, batchEnd - batchStart);
+                Arrays.fill(batch, batchEnd - batchStart, batchEnd, null);
+                batchEnd -= batchStart;
+                batchStart = 0;
+            }
+            ByteBuffer frame;
+            while (batchEnd < MAX_GATHER && (frame = queue.poll()) != null) {
+                batch[batchEnd++] = frame;
+            }
+            if (batchStart == batchEnd) {
+                selectionKey.interestOps(SelectionKey.OP_READ);
+                return written;
+            }
+            batchSizes.record(batchEnd - batchStart);
+            long bytes = channel.write(batch, batchStart, batchEnd - batchStart);
+            queuedBytes.addAndGet(-bytes);
+            while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                batch[batchStart++] = null;
+                written++;
+            }
+            if (batchStart < batchEnd) {
+                // 发送缓冲区满了，等 OP_WRITE
+                selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return written;
+            }
+        }
+    }
+
+    /**
+     * 关闭连接，丢弃没发出去的帧，reconnectNanos 之后重连
+     */
+    void close(long reconnectNanos) {
+        connected = false;
+        // 关闭 channel 会同时取消它的 key
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                EventLog.warn("关闭与节点 {} 的链路失败", address, e);
+            }
+            channel = null;
+        }
+        discardQueued();
+        nextConnectNanos = System.nanoTime() + reconnectNanos;
+    }
+
+    /**
+     * 丢弃队列和正在写的批次里的帧
+     */
+    void discardQueued() {
+        Arrays.fill(batch, null);
+        batchStart = 0;
+        batchEnd = 0;
+        queue.clear();
+        queuedBytes.set(0);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    void setConnected(boolean connected) {
+        this.connected = connected;
+    }
+
+    /**
+     * 对方有成员的房间
+     */
+    Set<String> getRooms() {
+        return rooms;
+    }
+
+    InetSocketAddress getSocketAddress() {
+        return socketAddress;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    long getNextConnectNanos() {
+        return nextConnectNanos;
+    }
+
+    /**
+     * 发送队列中还没写出的字节数
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+}
@@ -0,0 +1,153 @@
+package loadgen;
+
+import java.util.Arrays;
+
+/**
+ * 压测参数
+ * 可以通过系统属性修改：
+ * <pre>
+ * -Dloadgen.clients=1000       模拟的客户端数
+ * -Dloadgen.senders=100        其中发消息的客户端数，其余只收消息
+ * -Dloadgen.rooms=1            房间数，客户端按编号轮流分到各个房间；为 1 时都留在大厅
+ * -Dloadgen.rate=1000          所有发送者合计每秒发送的消息数
+ * -Dloadgen.size=64            每条消息的负载字节数（不含帧头），小于时间戳标记的长度时按标记长度发送
+ * -Dloadgen.warmupSeconds=5    预热时长，期间照常发送，但不计入结果
+ * -Dloadgen.seconds=30         测量时长
+ * -Dloadgen.drainSeconds=5     停止发送后最多再等多久收完在途的消息
+ * -Dloadgen.threads=2          收发线程数，每个线程一个 Selector
+ * </pre>
+ * 端口可以有多个（集群的各个节点），同一个房间的客户端轮流连到各个节点，每个房间都有成员分布在所有节点上。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-21 9:00 AM
+ */
+public class LoadConfig {
+
+    private final String host;
+    private final int[] ports;
+    private final int clients;
+    private final int senders;
+    private final int rooms;
+    private final int rate;
+    private final int messageSize;
+    private final int warmupSeconds;
+    private final int seconds;
+    private final int drainSeconds;
+    private final int threads;
+
+    public LoadConfig(String host, int[] ports, int clients, int senders, int rooms, int rate, int messageSize,
+                      int warmupSeconds, int seconds, int drainSeconds, int threads) {
+        if (clients <= 0 || senders < 0 || senders > clients) {
+            throw new IllegalArgumentException("客户端数设置错误：clients=" + clients + ", senders=" + senders);
+        }
+        if (ports.length == 0) {
+            throw new IllegalArgumentException("至少需要一个端口");
+        }
+        if (rooms <= 0 || rooms > clients || rate < 0 || messageSize < 0 || seconds <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("压测参数设置错误：rooms=" + rooms + ", rate=" + rate + ", size="
+                    + messageSize + ", seconds=" + seconds + ", threads=" + threads);
+        }
+        this.host = host;
+        this.ports = ports.clone();
+        this.clients = clients;
+        this.senders = senders;
+        this.rooms = rooms;
+        this.rate = rate;
+        this.messageSize = messageSize;
+        this.warmupSeconds = Math.max(0, warmupSeconds);
+        this.seconds = seconds;
+        this.drainSeconds = Math.max(0, drainSeconds);
+        this.threads = Math.min(threads, clients);
+    }
+
+    /**
+     * 从系统属性读取配置，没有设置的使用默认值
+     */
+    public static LoadConfig fromSystemProperties(String host, int... ports) {
+        return new LoadConfig(
+                host,
+                ports,
+                Integer.getInteger("loadgen.clients", 1000),
+                Integer.getInteger("loadgen.senders", 100),
+                Integer.getInteger("loadgen.rooms", 1),
+                Integer.getInteger("loadgen.rate", 1000),
+                Integer.getInteger("loadgen.size", 64),
+                Integer.getInteger("loadgen.warmupSeconds", 5),
+                Integer.getInteger("loadgen.seconds", 30),
+                Integer.getInteger("loadgen.drainSeconds", 5),
+                Integer.getInteger("loadgen.threads", Math.min(4, Runtime.getRuntime().availableProcessors()))
+        );
+    }
+
+    /**
+     * 第 index 个客户端所在的房间
+     */
+    public int roomOf(int index) {
+        return index % rooms;
+    }
+
+    /**
+     * 第 room 个房间的客户端数
+     */
+    public int roomSize(int room) {
+        return clients / rooms + (room < clients % rooms ? 1 : 0);
+    }
+
+    /**
+     * 第 index 个客户端连接的端口：先按房间分组，同一个房间的客户端再轮流分到各个端口
+     */
+    public int portOf(int index) {
+        return ports[(index / rooms) % ports.length];
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int[] getPorts() {
+        return ports.clone();
+    }
+
+    public int getClients() {
+        return clients;
+    }
+
+    public int getSenders() {
+        return senders;
+    }
+
+    public int getRooms() {
+        return rooms;
+    }
+
+    public int getRate() {
+        return rate;
+    }
+
+    public int getMessageSize() {
+        return messageSize;
+    }
+
+    public int getWarmupSeconds() {
+        return warmupSeconds;
+    }
+
+    public int getSeconds() {
+        return seconds;
+    }
+
+    public int getDrainSeconds() {
+        return drainSeconds;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + Arrays.toString(ports) + "，clients=" + clients + ", senders=" + senders + ", rooms=" + rooms
+                + ", rate=" + rate + " msg/s, size=" + messageSize + " B, warmup=" + warmupSeconds
+                + " s, seconds=" + seconds + " s, threads=" + threads;
+    }
+}
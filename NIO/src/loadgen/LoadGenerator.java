@@ -0,0 +1,237 @@
+package loadgen;
+
+import metrics.Histogram;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无界面的压测客户端
+ * 用 NIO 模拟大量客户端连到聊天服务端，按固定速率发送带时间戳的消息，统计：
+ * 1. 吞吐量：每秒发出的消息数、每秒投递到客户端的消息数
+ * 2. 扇出：平均每条消息投递给了多少个客户端，和按房间人数算出的期望值对比
+ * 3. 端到端时延的百分位（p50/p90/p99/p999），按计划发送时间修正协调遗漏（coordinated omission）
+ * 协议与三个服务端一致，可以在本机对比 NIO（7777）、BIO（8888）、AIO（9999）三种实现。
+ * 发送和接收在同一个进程中，时间戳直接用 System.nanoTime()，不受时钟偏差影响。
+ *
+ * 用法：java [-Dloadgen.xxx=...] loadgen.LoadGenerator [端口[,端口...]] [主机]，参数见 {@link LoadConfig}
+ * 压集群时列出各个节点的端口，客户端分散连到各个节点。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-21 10:30 AM
+ */
+public class LoadGenerator {
+
+    private static final String DEFAULT_HOST = "127.0.0.1";
+    private static final int DEFAULT_PORT = 7777;
+    private static final long DRAIN_POLL_MILLIS = 50;
+
+    private final LoadConfig config;
+    private final long baseNanos = System.nanoTime();       // 消息中时间戳的基准
+    private volatile boolean running = true;
+    private volatile long measureFromNanos = Long.MAX_VALUE; // 计划发送时间不早于它的消息计入结果
+    private volatile long sendUntilNanos = Long.MAX_VALUE;   // 计划发送时间早于它的消息才发送
+
+    // 统计，只统计计入结果的消息
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder expectedDeliveries = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder notices = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final Histogram latency = new Histogram();              // 按计划发送时间算的时延，微秒
+    private final Histogram uncorrectedLatency = new Histogram();   // 按实际发送时间算的时延，微秒
+
+    public LoadGenerator(LoadConfig config) {
+        this.config = config;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int[] ports = args.length > 0 ? parsePorts(args[0]) : new int[]{DEFAULT_PORT};
+        String host = args.length > 1 ? args[1] : DEFAULT_HOST;
+        new LoadGenerator(LoadConfig.fromSystemProperties(host, ports)).run();
+    }
+
+    /**
+     * 解析逗号分隔的端口列表
+     */
+    public static int[] parsePorts(String ports) {
+        String[] parts = ports.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    }
+
+    /**
+     * 建立连接、预热、测量、收尾，最后输出结果
+     */
+    public void run() throws IOException, InterruptedException {
+        System.out.println("压测：" + config);
+        LoadWorker[] workers = new LoadWorker[config.getThreads()];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new LoadWorker(this, config.getMessageSize());
+        }
+        // 先启动线程再建立连接，连接期间收到的上下线提示及时读走，不会在服务端积压
+        Thread[] threads = new Thread[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            threads[i] = new Thread(workers[i], "loadgen-" + i);
+            threads[i].start();
+        }
+        connect(workers);
+
+        // 按发送者数把总速率分给各个线程，所有线程从同一时刻开始按计划发送
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        measureFromNanos = start + TimeUnit.SECONDS.toNanos(config.getWarmupSeconds());
+        sendUntilNanos = measureFromNanos + TimeUnit.SECONDS.toNanos(config.getSeconds());
+        for (int i = 0; i < workers.length; i++) {
+            workers[i].schedule(config.getRate() * senderShare(i, workers.length), start);
+        }
+
+        sleepUntil(measureFromNanos);
+        System.out.println("预热结束，开始测量 " + config.getSeconds() + " 秒...");
+        sleepUntil(sendUntilNanos);
+        // 停止发送后等在途的消息收完
+        long drainUntil = sendUntilNanos + TimeUnit.SECONDS.toNanos(config.getDrainSeconds());
+        while (delivered.sum() < expectedDeliveries.sum() && System.nanoTime() < drainUntil) {
+            Thread.sleep(DRAIN_POLL_MILLIS);
+        }
+        running = false;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report();
+    }
+
+    /**
+     * 依次建立连接并分给各个线程，房间数大于 1 时发送加入房间的命令
+     */
+    private void connect(LoadWorker[] workers) throws IOException {
+        for (int i = 0; i < config.getClients(); i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(config.getHost(), config.portOf(i)));
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+            int room = config.roomOf(i);
+            SimulatedClient client = new SimulatedClient(i, channel, config.roomSize(room) - 1);
+            workers[i % workers.length].add(client, i < config.getSenders(), config.getRooms() > 1 ? "load-" + room : null);
+        }
+        System.out.println("已建立 " + config.getClients() + " 个连接");
+    }
+
+    /**
+     * 第 worker 个线程的发送者占全部发送者的比例，编号小于 senders 的客户端是发送者，按编号轮流分给各个线程
+     */
+    private double senderShare(int worker, int workers) {
+        int senders = config.getSenders();
+        if (senders == 0) {
+            return 0;
+        }
+        int count = senders / workers + (worker < senders % workers ? 1 : 0);
+        return (double) count / senders;
+    }
+
+    /**
+     * 输出结果
+     */
+    private void report() {
+        double seconds = config.getSeconds();
+        long sentCount = sent.sum();
+        long deliveredCount = delivered.sum();
+        long expected = expectedDeliveries.sum();
+        System.out.println("========== 结果 ==========");
+        System.out.println("发送：" + sentCount + " 条，" + String.format("%.1f", sentCount / seconds) + " msg/s"
+                + "，发送缓冲区满丢弃 " + dropped.sum() + " 条");
+        System.out.println("投递：" + deliveredCount + " 条，" + String.format("%.1f", deliveredCount / seconds) + " msg/s"
+                + "，投递率 " + (expected == 0 ? "-" : String.format("%.2f%%", deliveredCount * 100.0 / expected)));
+        System.out.println("扇出：" + (sentCount == 0 ? "-" : String.format("%.2f", (double) deliveredCount / sentCount))
+                + "（期望 " + (sentCount == 0 ? "-" : String.format("%.2f", (double) expected / sentCount)) + "）");
+        System.out.println("其他消息（上下线提示等）：" + notices.sum() + " 条，被服务端断开的连接：" + disconnects.sum() + " 个");
+        System.out.println("时延（微秒，按计划发送时间，修正协调遗漏）：" + latency);
+        System.out.println("时延（微秒，按实际发送时间，未修正）：" + uncorrectedLatency);
+    }
+
+    /**
+     * 测量期间发出的消息数
+     */
+    public long getSent() {
+        return sent.sum();
+    }
+
+    /**
+     * 测量期间发出的消息应该投递的次数
+     */
+    public long getExpectedDeliveries() {
+        return expectedDeliveries.sum();
+    }
+
+    /**
+     * 测量期间发出的消息实际投递的次数
+     */
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    /**
+     * 端到端时延（微秒，按计划发送时间）
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    public LoadConfig getConfig() {
+        return config;
+    }
+
+    private static void sleepUntil(long deadlineNanos) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+
+    void onSent(int fanOut) {
+        sent.increment();
+        expectedDeliveries.add(fanOut);
+    }
+
+    void onDelivered(long latencyNanos, long uncorrectedNanos) {
+        delivered.increment();
+        latency.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+        uncorrectedLatency.record(TimeUnit.NANOSECONDS.toMicros(uncorrectedNanos));
+    }
+
+    void onDropped() {
+        dropped.increment();
+    }
+
+    void onNotice() {
+        notices.increment();
+    }
+
+    void onDisconnected(int index) {
+        if (disconnects.sum() == 0) {
+            System.out.println("客户端 " + index + " 被服务端断开");
+        }
+        disconnects.increment();
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    long getBaseNanos() {
+        return baseNanos;
+    }
+
+    long getMeasureFromNanos() {
+        return measureFromNanos;
+    }
+
+    long getSendUntilNanos() {
+        return sendUntilNanos;
+    }
+}
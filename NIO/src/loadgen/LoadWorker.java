@@ -0,0 +1,322 @@
+package loadgen;
+
+import protocol.Frame;
+import protocol.FrameCodec;
+import protocol.FrameHandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 压测的收发线程，独占一个 Selector，负责分配给它的模拟客户端
+ * 发送按固定的计划进行：第 k 条消息的计划发送时间是 start + k * interval，轮流由本线程的发送者发出。
+ * 消息里带上计划发送时间和实际发送时间，收到时分别算出两种时延：
+ * 1. 按计划发送时间算（修正协调遗漏）：服务端卡住时本该发出却被耽误的消息，等待的时间也算进时延，
+ *    不会因为发送端跟着变慢而少测了卡顿
+ * 2. 按实际发送时间算（未修正）：只反映消息发出之后的时延，用来对比
+ * 线程落后于计划时（比如发送缓冲区写满）会立即补发落下的消息，保持计划的速率。
+ * 其他线程只能通过 {@link #execute(Runnable)} 把任务投递进来，由本线程执行。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-21 9:40 AM
+ */
+class LoadWorker implements Runnable, FrameHandler<SimulatedClient> {
+
+    private static final int BUFFER = 64 * 1024;
+    private static final long IDLE_SELECT_MILLIS = 100;            // 不发送时 select 的超时，用来检查是否该退出
+
+    // 消息负载的开头："#lg 计划发送时间 实际发送时间 "，时间是相对 LoadGenerator 启动时间的纳秒数
+    private static final byte[] MARKER = {'#', 'l', 'g', ' '};
+    private static final int MAX_STAMP = MARKER.length + 2 * (19 + 1);
+
+    private final LoadGenerator generator;
+    private final Selector selector;
+    private final List<SimulatedClient> clients = new ArrayList<>();
+    private final List<SimulatedClient> senders = new ArrayList<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER);
+    private final ByteBuffer payload;                               // 发送用的负载，时间戳之后用 'x' 填充
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();    // 其他线程投递过来的任务
+
+    private long intervalNanos;                                     // 两条消息的计划间隔，0 表示不发送
+    private long nextSendNanos;                                     // 下一条消息的计划发送时间
+    private int nextSender;                                         // 轮到的发送者
+    private int lastStampEnd;                                       // 上一条消息的时间戳在 payload 中的结束位置
+
+    LoadWorker(LoadGenerator generator, int messageSize) throws IOException {
+        this.generator = generator;
+        this.selector = Selector.open();
+        this.payload = ByteBuffer.allocate(Math.max(messageSize, MAX_STAMP));
+        while (payload.hasRemaining()) {
+            payload.put((byte) 'x');
+        }
+    }
+
+    /**
+     * 投递一个任务，由本线程执行
+     */
+    void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    /**
+     * 添加一个客户端，房间名不为 null 时加入该房间，在本线程中执行
+     */
+    void add(final SimulatedClient client, final boolean sender, final String room) {
+        execute(() -> {
+            try {
+                client.setKey(client.getChannel().register(selector, SelectionKey.OP_READ, client));
+                clients.add(client);
+                if (sender) {
+                    senders.add(client);
+                }
+                if (room != null) {
+                    ByteBuffer join = StandardCharsets.UTF_8.encode(room);
+                    FrameCodec.putFrame(client.reserve(FrameCodec.frameSize(join.remaining())), Frame.JOIN, join);
+                    client.flush();
+                }
+            } catch (IOException e) {
+                close(client);
+            }
+        });
+    }
+
+    /**
+     * 设置本线程的发送速率和开始时间，在本线程中执行
+     */
+    void schedule(final double ratePerSecond, final long startNanos) {
+        execute(() -> {
+            intervalNanos = senders.isEmpty() || ratePerSecond <= 0 ? 0 : Math.max(1, (long) (1e9 / ratePerSecond));
+            nextSendNanos = startNanos;
+        });
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (generator.isRunning()) {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                // 发出到期的消息，最多阻塞到下一条消息的计划时间
+                selector.select(sendDue(System.nanoTime()));
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    handle(key);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SimulatedClient client : clients) {
+                close(client);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 发出所有到了计划时间的消息
+     * @return  距离下一条消息的计划时间的毫秒数，至少 1
+     */
+    private long sendDue(long now) {
+        long sendUntil = generator.getSendUntilNanos();
+        if (intervalNanos == 0 || nextSendNanos >= sendUntil) {
+            return IDLE_SELECT_MILLIS;
+        }
+        while (nextSendNanos <= now && nextSendNanos < sendUntil) {
+            SimulatedClient sender = senders.get(nextSender);
+            nextSender = nextSender + 1 == senders.size() ? 0 : nextSender + 1;
+            send(sender, nextSendNanos, now);
+            nextSendNanos += intervalNanos;
+        }
+        // select 的精度是毫秒，不足 1 毫秒的也等 1 毫秒，迟发的部分由计划发送时间计入时延
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextSendNanos - now + 999_999));
+    }
+
+    /**
+     * 发送一条带时间戳的消息
+     */
+    private void send(SimulatedClient client, long intendedNanos, long actualNanos) {
+        if (!client.getKey().isValid()) {
+            return;
+        }
+        boolean measured = intendedNanos >= generator.getMeasureFromNanos();
+        payload.clear();
+        payload.put(MARKER);
+        putDecimal(payload, intendedNanos - generator.getBaseNanos());
+        payload.put((byte) ' ');
+        putDecimal(payload, actualNanos - generator.getBaseNanos());
+        payload.put((byte) ' ');
+        // 上一条的时间戳可能更长，多出来的部分恢复成填充字符
+        int stampEnd = payload.position();
+        while (payload.position() < lastStampEnd) {
+            payload.put((byte) 'x');
+        }
+        lastStampEnd = stampEnd;
+        // limit 仍是容量，整个 payload 都发出去
+        payload.position(0);
+
+        ByteBuffer outbound = client.reserve(FrameCodec.frameSize(payload.limit()));
+        if (outbound == null) {
+            // 服务端收得太慢，发送缓冲区满了
+            if (measured) {
+                generator.onDropped();
+            }
+            return;
+        }
+        try {
+            FrameCodec.putFrame(outbound, Frame.TEXT, payload);
+            client.flush();
+        } catch (IOException e) {
+            close(client);
+            return;
+        }
+        if (measured) {
+            generator.onSent(client.getFanOut());
+        }
+    }
+
+    /**
+     * 处理就绪的事件
+     */
+    private void handle(SelectionKey key) {
+        SimulatedClient client = (SimulatedClient) key.attachment();
+        try {
+            if (key.isWritable()) {
+                client.flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                readBuffer.clear();
+                int read = client.getChannel().read(readBuffer);
+                if (read < 0) {
+                    close(client);
+                    return;
+                }
+                readBuffer.flip();
+                client.getDecoder().decode(readBuffer, this, client);
+            }
+        } catch (IOException e) {
+            close(client);
+        }
+    }
+
+    /**
+     * 收到一个完整帧：带时间戳的消息记录时延，PING 回复 PONG，其余的（上下线提示等）只计数
+     */
+    @Override
+    public void onFrame(byte type, ByteBuffer frame, SimulatedClient client) throws IOException {
+        if (type == Frame.PING) {
+            ByteBuffer outbound = client.reserve(FrameCodec.frameSize(frame.remaining()));
+            if (outbound != null) {
+                FrameCodec.putFrame(outbound, Frame.PONG, frame);
+                client.flush();
+            }
+            return;
+        }
+        if (type != Frame.TEXT) {
+            return;
+        }
+        long now = System.nanoTime() - generator.getBaseNanos();
+        // 服务端会在消息前面加上房间名和发送者，在负载里找标记
+        int start = indexOfMarker(frame);
+        if (start < 0) {
+            generator.onNotice();
+            return;
+        }
+        frame.position(start + MARKER.length);
+        long intended = getDecimal(frame);
+        long actual = getDecimal(frame);
+        if (intended + generator.getBaseNanos() >= generator.getMeasureFromNanos()) {
+            generator.onDelivered(now - intended, now - actual);
+        }
+    }
+
+    /**
+     * 时间戳标记在负载中的位置，没有时返回 -1
+     */
+    private static int indexOfMarker(ByteBuffer buf) {
+        int last = buf.limit() - MARKER.length;
+        outer:
+        for (int i = buf.position(); i <= last; i++) {
+            for (int j = 0; j < MARKER.length; j++) {
+                if (buf.get(i + j) != MARKER[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * 写一个非负的十进制数
+     */
+    private static void putDecimal(ByteBuffer buf, long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int start = buf.position();
+        do {
+            buf.put((byte) ('0' + value % 10));
+            value /= 10;
+        } while (value > 0);
+        // 倒序写的，翻转回来
+        for (int i = start, j = buf.position() - 1; i < j; i++, j--) {
+            byte b = buf.get(i);
+            buf.put(i, buf.get(j));
+            buf.put(j, b);
+        }
+    }
+
+    /**
+     * 读一个十进制数，跳过后面的一个分隔符
+     */
+    private static long getDecimal(ByteBuffer buf) {
+        long value = 0;
+        while (buf.hasRemaining()) {
+            byte b = buf.get();
+            if (b < '0' || b > '9') {
+                break;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    /**
+     * 关闭一个客户端，服务端主动断开的计入 disconnects
+     */
+    private void close(SimulatedClient client) {
+        SelectionKey key = client.getKey();
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        key.cancel();
+        client.getDecoder().reset();
+        try {
+            client.getChannel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (generator.isRunning()) {
+            generator.onDisconnected(client.getIndex());
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package loadgen;
+
+import protocol.FrameDecoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 一个模拟的客户端，只在所属的 {@link LoadWorker} 线程中访问
+ * 发送的帧先追加到自己的发送缓冲区，能写多少写多少，写不完的等 OP_WRITE 再写，
+ * 发送缓冲区超过上限时新消息直接丢弃（计入 dropped），不会无限堆积。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-21 9:20 AM
+ */
+class SimulatedClient {
+
+    private static final int INITIAL_OUTBOUND = 4 * 1024;
+    private static final int MAX_OUTBOUND = 4 << 20;        // 发送缓冲区上限
+
+    private final int index;
+    private final SocketChannel channel;
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final int fanOut;                               // 它发的每条消息应该被投递给多少个客户端
+    private SelectionKey key;
+    private ByteBuffer outbound = ByteBuffer.allocate(INITIAL_OUTBOUND);     // 写模式：position 之前是待发送的数据
+
+    SimulatedClient(int index, SocketChannel channel, int fanOut) {
+        this.index = index;
+        this.channel = channel;
+        this.fanOut = fanOut;
+    }
+
+    /**
+     * 保证发送缓冲区至少还能写 bytes 个字节
+     * @return  超过上限时返回 null
+     */
+    ByteBuffer reserve(int bytes) {
+        if (outbound.remaining() >= bytes) {
+            return outbound;
+        }
+        int required = outbound.position() + bytes;
+        if (required > MAX_OUTBOUND) {
+            return null;
+        }
+        int capacity = outbound.capacity();
+        while (capacity < required) {
+            capacity <<= 1;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.min(capacity, MAX_OUTBOUND));
+        outbound.flip();
+        bigger.put(outbound);
+        outbound = bigger;
+        return outbound;
+    }
+
+    /**
+     * 尽量写出发送缓冲区中的数据，写不完时关注 OP_WRITE
+     */
+    void flush() throws IOException {
+        if (outbound.position() == 0) {
+            return;
+        }
+        outbound.flip();
+        channel.write(outbound);
+        outbound.compact();
+        if (outbound.position() > 0) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } else if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    FrameDecoder getDecoder() {
+        return decoder;
+    }
+
+    int getFanOut() {
+        return fanOut;
+    }
+
+    SelectionKey getKey() {
+        return key;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+}
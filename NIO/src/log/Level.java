@@ -0,0 +1,16 @@
+package log;
+
+/**
+ * 事件级别，从低到高
+ * MESSAGE 是每条聊天消息一个的事件，量最大，一般只抽样记录一部分
+ *
+ * @author Hedon Wang
+ * @create 2026-10-22 2:00 PM
+ */
+public enum Level {
+
+    MESSAGE,
+    INFO,
+    WARN,
+    ERROR
+}
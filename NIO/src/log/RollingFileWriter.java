@@ -0,0 +1,88 @@
+package log;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * 按大小滚动的日志文件，只有 {@link EventLog} 的后台线程使用
+ * 当前文件超过 maxBytes 后依次改名为 文件名.1、文件名.2 ……，最多保留 maxFiles 个旧文件。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-22 2:10 PM
+ */
+class RollingFileWriter {
+
+    private static final int BUFFER = 64 * 1024;
+
+    private final Path file;
+    private final long maxBytes;
+    private final int maxFiles;
+
+    private OutputStream out;
+    private long size;                      // 当前文件的字节数
+
+    RollingFileWriter(Path file, long maxBytes, int maxFiles) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        Path dir = this.file.getParent();
+        if (dir != null) {
+            Files.createDirectories(dir);
+        }
+        open();
+    }
+
+    private void open() throws IOException {
+        // 追加写，重启之后接着上一次的文件
+        size = Files.exists(file) ? Files.size(file) : 0;
+        out = new BufferedOutputStream(new FileOutputStream(file.toFile(), true), BUFFER);
+    }
+
+    void write(byte[] line) throws IOException {
+        if (size > 0 && size + line.length > maxBytes) {
+            roll();
+        }
+        out.write(line);
+        size += line.length;
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * 关闭当前文件，旧文件依次后移，最老的一个被覆盖
+     */
+    private void roll() throws IOException {
+        out.close();
+        if (maxFiles > 0) {
+            for (int i = maxFiles - 1; i > 0; i--) {
+                Path older = rolled(i);
+                if (Files.exists(older)) {
+                    Files.move(older, rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        open();
+    }
+
+    private Path rolled(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    void close() throws IOException {
+        out.close();
+    }
+
+    Path getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,117 @@
+package metrics;
+
+import log.EventLog;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 聊天服务端的通用指标，三种服务端共用同一套名称，便于对比
+ * 热路径上只有 LongAdder 累加和 {@link Histogram} 记录，都不分配对象。
+ * 各个服务端特有的指标（队列长度、慢消费者统计等）在启动时通过 {@link #getRegistry()} 另外注册。
+ * 可以通过系统属性修改：
+ * <pre>
+ * -Dchat.metrics.port=8777     Prometheus 端点的端口，默认是服务端端口 + 1000，不大于 0 表示不开启
+ * -Dchat.metrics.jmx=true      是否注册 JMX MBean
+ * </pre>
+ *
+ * @author Hedon Wang
+ * @create 2026-10-22 10:20 AM
+ */
+public class ChatMetrics {
+
+    private static final int PORT_OFFSET = 1000;
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+
+    private final LongAdder connectionsOpened = registry.counter("chat_connections_opened_total", "建立的连接数");
+    private final LongAdder connectionsClosed = registry.counter("chat_connections_closed_total", "关闭的连接数");
+    private final LongAdder messagesIn = registry.counter("chat_messages_in_total", "收到的帧数");
+    private final LongAdder messagesOut = registry.counter("chat_messages_out_total", "发给客户端的消息数");
+    private final LongAdder bytesIn = registry.counter("chat_bytes_in_total", "读到的字节数");
+    private final LongAdder bytesOut = registry.counter("chat_bytes_out_total", "写出的字节数");
+    private final Histogram forwardLatency = registry.histogram("chat_forward_latency_micros",
+            "消息从编码完成到放进所有接收者发送队列的时间（微秒）");
+    private final Histogram fanOut = registry.histogram("chat_fanout_size", "每条转发消息的接收者数");
+
+    private MetricsHttpServer httpServer;
+
+    public ChatMetrics() {
+        registry.gauge("chat_connections_active", "当前的连接数", () -> connectionsOpened.sum() - connectionsClosed.sum());
+    }
+
+    /**
+     * 记录一次转发的耗时
+     * @param startNanos    消息编码完成的时间
+     */
+    public void recordForward(long startNanos) {
+        forwardLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * 注册 JMX MBean、启动 Prometheus 端点，失败时只打印异常，不影响服务端启动
+     * @param engine        服务端类型（BIO、NIO、AIO）
+     * @param serverPort    服务端端口
+     */
+    public void start(String engine, int serverPort) {
+        if (Boolean.parseBoolean(System.getProperty("chat.metrics.jmx", "true"))) {
+            try {
+                MetricsMBean.register(registry, engine, serverPort);
+            } catch (Exception e) {
+                EventLog.warn("注册 {} 的指标 MBean 失败", engine, e);
+            }
+        }
+        int port = Integer.getInteger("chat.metrics.port", serverPort + PORT_OFFSET);
+        if (port > 0) {
+            try {
+                httpServer = new MetricsHttpServer(registry, port);
+                httpServer.start();
+                System.out.println("指标端点：http://127.0.0.1:" + httpServer.getPort() + "/metrics");
+            } catch (Exception e) {
+                EventLog.warn("启动指标端点失败，端口 {}", port, e);
+            }
+        }
+    }
+
+    public void stop() {
+        if (httpServer != null) {
+            httpServer.stop();
+        }
+    }
+
+    public LongAdder getConnectionsOpened() {
+        return connectionsOpened;
+    }
+
+    public LongAdder getConnectionsClosed() {
+        return connectionsClosed;
+    }
+
+    public LongAdder getMessagesIn() {
+        return messagesIn;
+    }
+
+    public LongAdder getMessagesOut() {
+        return messagesOut;
+    }
+
+    public LongAdder getBytesIn() {
+        return bytesIn;
+    }
+
+    public LongAdder getBytesOut() {
+        return bytesOut;
+    }
+
+    public Histogram getForwardLatency() {
+        return forwardLatency;
+    }
+
+    public Histogram getFanOut() {
+        return fanOut;
+    }
+
+    public MetricsRegistry getRegistry() {
+        return registry;
+    }
+}
@@ -0,0 +1,146 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无锁的对数-线性直方图，可以在多个线程中同时记录
+ * 0 ~ 7 每个值一个桶；之后每个 2 的幂区间再等分成 8 个桶，
+ * 所以任何值落到的桶的宽度都不超过它本身的 1/8，百分位的相对误差在 12.5% 以内。
+ * 所有桶一共 488 个，覆盖整个 long 的非负范围，记录一次是 O(1) 的。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-20 10:00 AM
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * 记录一个值，负数按 0 记录
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // 其他线程同时更新了最大值，重新比较
+        }
+    }
+
+    /**
+     * 把另一个直方图的数据合并进来
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = other.counts.get(i);
+            if (n != 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        long otherMax = other.max.get();
+        long current;
+        while (otherMax > (current = max.get()) && !max.compareAndSet(current, otherMax)) {
+            // 其他线程同时更新了最大值，重新比较
+        }
+    }
+
+    /**
+     * 清空所有数据，与 record 同时进行时可能漏掉几个值
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * 百分位数，返回该值所在桶的上界（不超过最大值）
+     * @param percentile    0 ~ 100
+     */
+    public long percentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * 值所在的桶
+     */
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * 桶能装下的最大值
+     */
+    static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long lowerBound = (long) (SUB_BUCKETS + subBucket) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + String.format("%.2f", getMean())
+                + ", p50=" + percentile(50) + ", p90=" + percentile(90)
+                + ", p99=" + percentile(99) + ", p999=" + percentile(99.9) + ", max=" + getMax();
+    }
+}
@@ -0,0 +1,92 @@
+package metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+/**
+ * 把 {@link MetricsRegistry} 中的所有指标暴露为一个 MBean 的只读属性，可以用 jconsole、VisualVM 查看
+ * 属性名就是指标名，直方图展开为 _count、_mean、_p50 等多个属性。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-22 9:40 AM
+ */
+public class MetricsMBean implements DynamicMBean {
+
+    private final MetricsRegistry registry;
+
+    public MetricsMBean(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * 注册到平台 MBeanServer，对象名为 chat:type=Metrics,engine=引擎名,port=端口
+     */
+    public static void register(MetricsRegistry registry, String engine, int port) throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("chat:type=Metrics,engine=" + engine + ",port=" + port);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(new MetricsMBean(registry), name);
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Number value = registry.values().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Number> values = registry.values();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Number value = values.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("指标是只读的：" + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Number> values = registry.values();
+        Map<String, String> descriptions = registry.descriptions();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+        int i = 0;
+        for (Map.Entry<String, Number> entry : values.entrySet()) {
+            attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                    descriptions.get(entry.getKey()), true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "聊天服务端指标", attributes, null, new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,37 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 缓冲区分配器
+ * 解码器等组件通过它申请和归还缓冲区，默认直接在堆上分配，服务端可以换成池化的实现。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-17 5:10 PM
+ */
+public interface BufferAllocator {
+
+    /**
+     * 直接在堆上分配，归还时什么也不做，交给 GC
+     */
+    BufferAllocator HEAP = new BufferAllocator() {
+        @Override
+        public ByteBuffer allocate(int capacity) {
+            return ByteBuffer.allocate(capacity);
+        }
+
+        @Override
+        public void free(ByteBuffer buffer) {
+        }
+    };
+
+    /**
+     * 申请一个容量不小于 capacity 的缓冲区，处于写模式，position 为 0
+     */
+    ByteBuffer allocate(int capacity);
+
+    /**
+     * 归还缓冲区，归还后调用方不能再使用它
+     */
+    void free(ByteBuffer buffer);
+}
@@ -1,37 +1,66 @@
 package server;
 
+import buffer.BufferPool;
+import cluster.ClusterConfig;
+import cluster.ClusterNode;
+import log.EventLog;
+import metrics.ChatMetrics;
+import metrics.Histogram;
+import metrics.MetricsRegistry;
+import store.LogConfig;
+import store.MessageStore;
+
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.nio.charset.Charset;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
+ * 主从 Reactor 模式的服务端
+ * 主 Reactor（acceptor）只负责 ACCEPT 事件，
+ * 接收到的客户端按轮询分配给 N 个从 Reactor（{@link SubReactor}），由它们负责读写。
+ *
  * @author Hedon Wang
  * @create 2021-09-23 6:40 PM
  */
 public class ChatServer {
 
     private static final int DEFAULT_PORT = 8888;
-    private static final String QUIT = "quit";
-    private static final int BUFFER = 1024;
+    private static final int DEFAULT_WORKER_COUNT = Runtime.getRuntime().availableProcessors();
 
     private ServerSocketChannel serverSocketChannel;
-    private Selector selector;
-    private ByteBuffer rBuffer = ByteBuffer.allocate(BUFFER);
-    private ByteBuffer wBuffer = ByteBuffer.allocate(BUFFER);
-    private Charset charset = Charset.forName("UTF-8");
+    private EventLoopSelector selector;
+    private SubReactor[] workers;
+    private RoomRegistry rooms;
+    private MessageStore store;                 // 消息日志，没有开启时为 null
+    private NicknameRegistry<Connection> nicknames = new NicknameRegistry<>();
+    private final Histogram batchSizes = new Histogram();     // 所有 worker 每次聚集写的消息数
+    private final SlowConsumerPolicy slowConsumers = SlowConsumerPolicy.fromSystemProperties();    // 慢消费者处理策略和统计
+    private final IdleConfig idleConfig = IdleConfig.fromSystemProperties();    // 心跳和空闲超时
+    private final ChatMetrics metrics = new ChatMetrics();                       // 指标，通过 JMX 和 Prometheus 端点暴露
+    private final RateLimits rateLimits = RateLimits.fromSystemProperties();    // 入站限速，可以通过 JMX 在运行时修改
+    private ClusterNode cluster;                // 集群模式下和其他节点的联邦，单节点时为 null
 
     private int port;
+    private int workerCount;
+    private int nextWorker;             // 轮询分配 worker 的下标，只在 acceptor 线程中使用
 
     public ChatServer(){
         this(DEFAULT_PORT);
     }
 
     public ChatServer(int port){
+        this(port, DEFAULT_WORKER_COUNT);
+    }
+
+    public ChatServer(int port, int workerCount){
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("workerCount 必须大于 0：" + workerCount);
+        }
         this.port = port;
+        this.workerCount = workerCount;
     }
 
     /**
@@ -39,6 +68,22 @@ public class ChatServer {
      */
     public void start(){
         try {
+            // 先打开事件日志，启动失败的原因也能记下来
+            EventLog.start("NIO");
+            // 打开消息日志
+            LogConfig logConfig = LogConfig.fromSystemProperties();
+            store = logConfig.isEnabled() ? new MessageStore(logConfig) : null;
+            rooms = new RoomRegistry(workerCount, store);
+            ClusterConfig clusterConfig = ClusterConfig.fromSystemProperties(this.port);
+            cluster = clusterConfig.isEnabled() ? new ClusterNode(this, clusterConfig) : null;
+
+            // 启动从 Reactor
+            workers = new SubReactor[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                workers[i] = new SubReactor(this, i);
+                new Thread(workers[i], "nio-worker-" + i).start();
+            }
+
             // 获得服务端的通道
             serverSocketChannel = ServerSocketChannel.open();
             // 修改为非阻塞模式
@@ -47,29 +92,123 @@ public class ChatServer {
             serverSocketChannel.bind(new InetSocketAddress(this.port));
 
             // 获得 Channel 控制器 Selector 对象
-            selector = Selector.open();
+            selector = new EventLoopSelector("nio-acceptor");
             // 将服务端 Channel 注册到 Selector 中，注册 ACCEPT 事件
-            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-            System.out.println("启动服务器，监听端口：" + this.port + "...");
+            selector.register(serverSocketChannel, SelectionKey.OP_ACCEPT, null);
+            System.out.println("启动服务器，监听端口：" + this.port + "，worker 数量：" + workerCount + "...");
+            registerMetrics();
+            metrics.start("NIO", this.port);
+            rateLimits.register("NIO", this.port);
+            // 本节点可以接收客户端之后再加入集群
+            if (cluster != null) {
+                cluster.start();
+            }
 
             // Selector 监听事件
             while (true) {
-                selector.select();
+                int ready = selector.select(0);
                 // 处理所有被触发的事件
-                Set<SelectionKey> selectionKeys = selector.selectedKeys();
-                for (SelectionKey selectionKey : selectionKeys){
-                    handles(selectionKey);
+                for (int i = 0; i < ready; i++) {
+                    handles(selector.readyKey(i));
                 }
                 // 清空之前的事件集
-                selectionKeys.clear();
+                selector.clearReady();
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            EventLog.error("服务器异常退出，端口 {}", this.port, e);
         } finally {
+            closeResource(cluster);
             closeResource(selector);
+            closeResource(serverSocketChannel);
+            if (workers != null) {
+                for (SubReactor worker : workers) {
+                    if (worker != null) {
+                        worker.shutdown();
+                    }
+                }
+            }
+            if (store != null) {
+                store.close();
+            }
+            reportBufferLeaks();
+            metrics.stop();
+            EventLog.stop();
+        }
+    }
+
+    /**
+     * 打开了泄漏检测（-Dchat.buffer.leakDetection=true）时，打印关闭时还没归还的缓冲区的申请位置
+     * worker 的读缓冲区这类在关闭过程中才归还的缓冲区也可能出现在报告里
+     */
+    private void reportBufferLeaks() {
+        BufferPool pool = BufferPool.DEFAULT;
+        if (!pool.isLeakDetection()) {
+            return;
+        }
+        int leaks = pool.reportLeaks();
+        if (leaks > 0) {
+            EventLog.warn("关闭时有 {} 个缓冲区未归还：{}", leaks, pool);
+        } else {
+            EventLog.info("关闭时所有缓冲区都已归还：{}", pool);
         }
     }
 
+    /**
+     * 注册 NIO 服务端特有的指标
+     */
+    private void registerMetrics() {
+        MetricsRegistry registry = metrics.getRegistry();
+        registry.gauge("chat_rooms", "房间数", () -> rooms.size());
+        registry.gauge("chat_outbound_queue_bytes", "所有连接发送队列中积压的字节数", () -> {
+            long bytes = 0;
+            for (SubReactor worker : workers) {
+                for (Connection connection : worker.getConnections()) {
+                    bytes += connection.getQueuedBytes();
+                }
+            }
+            return bytes;
+        });
+        registry.gauge("chat_outbound_queue_messages", "所有连接发送队列中积压的消息数", () -> {
+            long messages = 0;
+            for (SubReactor worker : workers) {
+                for (Connection connection : worker.getConnections()) {
+                    messages += connection.getQueueDepth();
+                }
+            }
+            return messages;
+        });
+        registry.histogram("chat_write_batch_size", "每次聚集写的消息数", batchSizes);
+        registry.counter("chat_read_budget_exhausted_total", "连接用完一轮读预算、让给其他连接的次数", () -> {
+            long exhausted = 0;
+            for (SubReactor worker : workers) {
+                exhausted += worker.getReadBudgetExhausted();
+            }
+            return exhausted;
+        });
+        registry.counter("chat_ratelimit_throttled_total", "超出限速暂停读取的次数", rateLimits::getThrottledCount);
+        registry.counter("chat_ratelimit_throttled_millis_total", "超出限速暂停读取的总毫秒数", rateLimits::getThrottledMillis);
+        registry.counter("chat_slow_consumer_lagging_total", "连接积压超过高水位的次数", slowConsumers::getLaggingCount);
+        registry.counter("chat_slow_consumer_recovered_total", "连接积压回落到低水位以下的次数", slowConsumers::getRecoveredCount);
+        registry.counter("chat_slow_consumer_skipped_total", "积压期间跳过的不重要消息数", slowConsumers::getSkippedMessages);
+        registry.counter("chat_slow_consumer_evictions_total", "断开的慢消费者数", slowConsumers::getEvictions);
+        if (cluster != null) {
+            registry.gauge("chat_cluster_peers", "已经连上的其他节点数", cluster::getConnectedPeers);
+            registry.gauge("chat_cluster_queue_bytes", "节点间链路发送队列中积压的字节数", cluster::getQueuedBytes);
+            registry.counter("chat_cluster_forwarded_total", "转发给其他节点的消息数", cluster::getForwarded);
+            registry.counter("chat_cluster_received_total", "收到的其他节点转发来的消息数", cluster::getReceived);
+            registry.counter("chat_cluster_dropped_total", "节点间链路断开或积压太多而丢弃的消息数", cluster::getDropped);
+            registry.histogram("chat_cluster_batch_size", "节点间链路每次聚集写的帧数", cluster.getBatchSizes());
+        }
+        BufferPool pool = BufferPool.DEFAULT;
+        registry.counter("chat_buffer_pool_hits_total", "从线程本地缓存或共享 arena 拿到缓冲区的次数",
+                () -> pool.getThreadCacheHits() + pool.getArenaHits());
+        registry.counter("chat_buffer_pool_misses_total", "池中没有、新分配直接缓冲区的次数", pool::getMisses);
+        registry.counter("chat_buffer_pool_unpooled_total", "超过最大级别、不池化直接分配的次数", pool::getUnpooled);
+        registry.gauge("chat_buffer_pool_outstanding", "已申请还未归还的缓冲区数", pool::getOutstanding);
+        registry.counter("chat_eventlog_dropped_total", "事件日志缓冲区满而丢弃的事件数", EventLog::getDropped);
+        registry.counter("chat_eventlog_sampled_out_total", "事件日志抽样跳过的事件数", EventLog::getSampledOut);
+    }
+
     /**
      * 处理被触发的事件
      */
@@ -79,86 +218,137 @@ public class ChatServer {
             ServerSocketChannel server = (ServerSocketChannel)selectionKey.channel();
             // 获取客户端 channel
             SocketChannel client = server.accept();
+            if (client == null) {
+                return;
+            }
             // 将客户端 channel 转为非阻塞模式
             client.configureBlocking(false);
-            // 为客户端 channel 注册 READ 事件
-            // 当 READ 事件触发时，表示有客户端写东西了，channel 有可以读的东西
-            client.register(selector, SelectionKey.OP_READ);
-            System.out.println(getClientName(client) + "已连接");
+            // 交给某个 worker 负责后续的读写
+            nextWorker().register(client);
         }
-        // READ 事件 —— 即客户端发来信息，需要转发给其他客户端
-        else if (selectionKey.isReadable()) {
-            SocketChannel client = (SocketChannel)selectionKey.channel();
-            // 获取客户端发来的信息
-            String fwdMsg = receive(client);
-            if (fwdMsg.isEmpty()) {
-                // 空信息 -> 客户端异常 -> 退出客户端
-                selectionKey.cancel();
-                selector.wakeup();
-            } else {
-                System.out.println(getClientName(client) + ": " + fwdMsg);
-
-                // 转发信息
-                forwardMessage(client, fwdMsg);
-
-                // 判断用户是否准备退出
-                if (readyToQuit(fwdMsg)){
-                    selectionKey.cancel();
-                    selector.wakeup();
-                    System.out.println(getClientName(client) + "已断开");
-                }
-            }
+    }
+
+    /**
+     * 轮询选出下一个 worker
+     */
+    private SubReactor nextWorker() {
+        SubReactor worker = workers[nextWorker];
+        nextWorker = (nextWorker + 1) % workers.length;
+        return worker;
+    }
+
+    /**
+     * 将 sender 发来的消息投递给房间成员所在的 worker，由各个 worker 在自己的线程里转发给自己管理的房间成员
+     * 没有房间成员的 worker 不会收到任务；消息只编码一次，每个 worker 持有一个引用，调用方持有的引用在这里释放
+     * offset 是消息在房间日志中的偏移，没有写入日志时为 -1；critical 为 false 的是上下线提示这类不重要的消息
+     */
+    void publish(final Room room, final Connection sender, final SharedBuffer fwdMsg, final long offset, final boolean critical) {
+        if (cluster != null) {
+            cluster.forward(room, fwdMsg, critical);
         }
+        dispatch(room, sender, fwdMsg, offset, critical);
     }
 
     /**
-     * 将 client 发来的信息转发给其他客户端
+     * 投递给本节点的房间成员所在的 worker，释放调用方持有的引用
      */
-    private void forwardMessage(SocketChannel client, String fwdMsg) throws IOException {
-        for (SelectionKey key : selector.keys()) {
-            Channel connectedChannel = key.channel();
-            // 不转发给服务端
-            if (connectedChannel instanceof ServerSocketChannel) {
-                continue;
-            }
-            // 不转发给自身
-            if (key.isValid() && connectedChannel instanceof SocketChannel && !client.equals(connectedChannel)) {
-                wBuffer.clear();
-                // 先将数据写到 wBuffer 中
-                wBuffer.put(charset.encode(getClientName(client) + ": " + fwdMsg));
-                wBuffer.flip();
-                // 将从 rBuffer 将数据送到 channel
-                while (wBuffer.hasRemaining()){
-                    ((SocketChannel)connectedChannel).write(wBuffer);
+    private void dispatch(final Room room, final Connection sender, final SharedBuffer fwdMsg, final long offset, final boolean critical) {
+        try {
+            metrics.getFanOut().record(room.size() - (sender != null && sender.getRooms().containsKey(room) ? 1 : 0));
+            for (final SubReactor worker : workers) {
+                if (!room.hasMembers(worker.getIndex())) {
+                    continue;
                 }
+                fwdMsg.retain();
+                worker.execute(() -> worker.forwardToRoom(room, sender, fwdMsg, offset, critical));
             }
+        } finally {
+            fwdMsg.release();
         }
     }
 
     /**
-     * 接收客户端发来的信息
+     * 其他节点转发来的房间消息，在集群线程中调用，只投递给本节点的成员，不再转发
+     * 本节点在这个房间没有成员时直接丢弃；重要消息同样写入本节点的房间日志，供之后加入的成员回放
+     * 调用方持有的 fwdMsg 引用在这里释放
      */
-    private String receive(SocketChannel client) throws IOException {
-        rBuffer.clear();
-        // 将 channel 数据读到 rBuffer
-        while (client.read(rBuffer) > 0) {}
-        // 将 rBuffer 的写模式转为读模式
-        rBuffer.flip();
-        return String.valueOf(charset.decode(rBuffer));
+    public void deliverToRoom(String roomName, SharedBuffer fwdMsg, boolean critical) {
+        Room room = rooms.get(roomName);
+        if (room == null || room.size() == 0) {
+            fwdMsg.release();
+            return;
+        }
+        long offset = critical && room.getLog() != null ? room.getLog().append(fwdMsg.duplicate()) : -1;
+        dispatch(room, null, fwdMsg, offset, critical);
     }
 
     /**
-     * 构建客户端名称
+     * 其他节点转发来的私聊，在集群线程中调用，接收者已经不在本节点时直接丢弃
+     * 调用方持有的 fwdMsg 引用在这里释放
      */
-    private String getClientName(SocketChannel client) {
-        return "客户端 [" + client.socket().getPort() + "] ";
+    public void deliverToNickname(String nickname, SharedBuffer fwdMsg) {
+        final Connection target = nicknames.get(nickname);
+        if (target == null) {
+            fwdMsg.release();
+            return;
+        }
+        final SubReactor worker = target.getWorker();
+        worker.execute(() -> worker.deliver(target, fwdMsg));
+    }
+
+    public RoomRegistry getRooms() {
+        return rooms;
+    }
+
+    public NicknameRegistry<Connection> getNicknames() {
+        return nicknames;
+    }
+
+    public ChatMetrics getMetrics() {
+        return metrics;
+    }
+
+    public IdleConfig getIdleConfig() {
+        return idleConfig;
+    }
+
+    public RateLimits getRateLimits() {
+        return rateLimits;
+    }
+
+    /**
+     * 集群模式下和其他节点的联邦，单节点时为 null
+     */
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+
+    /**
+     * 慢消费者的统计和最近的断开事件
+     */
+    public SlowConsumerPolicy getSlowConsumers() {
+        return slowConsumers;
+    }
+
+    /**
+     * 每次聚集写的消息数分布，均值接近 1 说明写合并基本没有生效（负载低）
+     */
+    public Histogram getBatchSizes() {
+        return batchSizes;
     }
 
     /**
-     * 判断客户端是否准备退出
+     * 所有连接的发送队列统计，按积压字节数从大到小排序，便于找出慢消费者
      */
-    private boolean readyToQuit(String msg) {
-        return QUIT.equals(msg);
+    public List<Connection> getSlowestConnections(int limit) {
+        List<Connection> connections = new ArrayList<>();
+        if (workers != null) {
+            for (SubReactor worker : workers) {
+                connections.addAll(worker.getConnections());
+            }
+        }
+        connections.sort((a, b) -> Long.compare(b.getQueuedBytes(), a.getQueuedBytes()));
+        return connections.size() > limit ? connections.subList(0, limit) : connections;
     }
 
     /**
@@ -169,7 +359,7 @@ public class ChatServer {
             try {
                 closable.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                EventLog.warn("关闭 {} 失败", closable.toString(), e);
             }
         }
     }
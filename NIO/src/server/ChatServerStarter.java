@@ -1,12 +1,19 @@
 package server;
 
 /**
+ * 启动参数：[端口] [worker 数量]，端口默认 7777，集群模式下同一台机器上的多个节点用不同的端口；
+ * worker 数量默认取 -Dchat.nio.workers，没设置时等于 CPU 核数
+ *
  * @author Hedon Wang
  * @create 2021-09-23 6:58 PM
  */
 public class ChatServerStarter {
     public static void main(String[] args) {
-        ChatServer chatServer = new ChatServer(7777);
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 7777;
+        int workerCount = args.length > 1
+                ? Integer.parseInt(args[1])
+                : Integer.getInteger("chat.nio.workers", Runtime.getRuntime().availableProcessors());
+        ChatServer chatServer = new ChatServer(port, workerCount);
         chatServer.start();
     }
 }
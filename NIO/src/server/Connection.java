@@ -0,0 +1,518 @@
+package server;
+
+import buffer.BufferPool;
+import protocol.Frame;
+import protocol.FrameDecoder;
+import store.LogRegion;
+import timer.TimingWheel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个客户端连接
+ * 作为 SelectionKey 的 attachment，持有该连接的有界发送队列。
+ * 发送队列只允许所属 {@link SubReactor} 的线程操作；
+ * 队列深度、积压字节数等统计字段允许其他线程读取，用于发现慢消费者。
+ * 连接加入的房间（连接 -> 房间索引）同样只由所属 {@link SubReactor} 的线程维护。
+ * 积压字节数由 {@link SlowConsumerGuard} 按高低水位检测，积压太久或太多时断开连接。
+ * 加入房间时回放的历史消息排在发送队列前面，用 transferTo 从日志文件直接发出去。
+ *
+ * 写合并：连接空闲时来的消息马上写；距离上一次写不到合并时间窗口又来了消息，说明消息来得很密，
+ * 就先攒在队列里，等窗口到期（由 {@link SubReactor} 在事件循环里检查）或积压字节数达到阈值时，
+ * 用一次聚集写（gathering write）把攒下的消息一起写出去。低负载时不会有任何额外延迟。
+ * <pre>
+ * -Dchat.coalesce.delayMicros=200      合并时间窗口，0 表示关闭写合并，每条消息都马上写
+ * -Dchat.coalesce.maxBytes=16384       攒够这么多字节立即写，不再等窗口到期
+ * </pre>
+ *
+ * @author Hedon Wang
+ * @create 2026-10-17 11:05 AM
+ */
+public class Connection {
+
+    static final long COALESCE_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("chat.coalesce.delayMicros", 200L));
+    private static final int COALESCE_MAX_BYTES = Integer.getInteger("chat.coalesce.maxBytes", 16 * 1024);
+
+    private final SubReactor worker;            // 所属 worker，其他线程要操作本连接时投递到它的线程
+    private final SocketChannel channel;
+    private SelectionKey selectionKey;          // Selector 重建之后会换成新的 key
+    private final String name;
+    private volatile String nickname;           // 昵称，没有设置时为 null
+    private final int maxQueueDepth;
+    private final FrameDecoder decoder = new FrameDecoder(BufferPool.DEFAULT);  // 拼接半包的解码器
+    private final SlowConsumerGuard guard;      // 慢消费者检测
+    private final RateLimiter rateLimiter = new RateLimiter();     // 入站限速的令牌桶
+
+    private final ArrayDeque<ByteBuffer> outboundQueue = new ArrayDeque<>();   // 待发送的数据（共享缓冲区的视图）
+    private final ArrayDeque<SharedBuffer> owners = new ArrayDeque<>();         // 与 outboundQueue 一一对应，写完后释放
+    private final ArrayDeque<PendingReplay> replays = new ArrayDeque<>();      // 还没发完的历史消息，先于 outboundQueue 发送
+
+    private final Map<Room, Integer> rooms = new LinkedHashMap<>();     // 加入的所有房间及在房间中的槽位，按加入顺序
+    private Room currentRoom;                               // 聊天消息发往的房间
+    private final Map<Room, Long> replayCursors = new HashMap<>();     // 房间 -> 回放的结束偏移，更早的消息不再实时转发
+
+    private volatile int queueDepth;            // 队列中的消息数
+    private volatile long queuedBytes;          // 队列中还未写出的字节数
+    private volatile long droppedMessages;      // 因队列已满而丢弃的消息数
+    private long replayBytes;                   // queuedBytes 中还没发完的历史消息字节数，它们在日志文件里，不占内存
+
+    private long lastFlushNanos;                // 上一次写的时间
+    private long lastReadNanos = System.nanoTime();     // 上一次读到数据的时间
+    private long readRound = -1;                // 最近一次在事件循环的第几轮读取，同一轮不读两次
+    private long lastWriteNanos;                // 上一次写出数据的时间，队列从空变为非空时也会更新
+    private boolean pingSent;                   // 本次读空闲期间是否已经发过 PING
+    private TimingWheel.Timeout idleTimeout;    // 空闲检查的定时任务，由所属 worker 的时间轮调度
+    private TimingWheel.Timeout throttleTimeout;    // 超出限速暂停读取后恢复读取的定时任务，第一次暂停时创建
+    private long throttleNanos;                 // 本次超出限速要暂停读取的纳秒数
+    private long flushDeadline;                 // 攒着的消息最晚什么时候写出去，0 表示没有在攒
+
+    public Connection(SubReactor worker, SocketChannel channel, SelectionKey selectionKey, int maxQueueDepth,
+                      SlowConsumerPolicy slowConsumerPolicy) {
+        this.worker = worker;
+        this.channel = channel;
+        this.selectionKey = selectionKey;
+        this.name = "客户端 [" + channel.socket().getPort() + "] ";
+        this.maxQueueDepth = maxQueueDepth;
+        this.guard = new SlowConsumerGuard(slowConsumerPolicy);
+    }
+
+    /**
+     * 发送重要消息（聊天消息、私聊、系统提示）
+     * @see #send(SharedBuffer, boolean)
+     */
+    public boolean send(SharedBuffer shared) throws IOException {
+        return send(shared, true);
+    }
+
+    /**
+     * 将消息放入发送队列，空闲时马上写一次，消息来得很密时先攒起来合并写
+     * 入队时会持有 shared 的一个引用，写完或丢弃时释放
+     * @param critical      是否是重要消息，积压超过高水位后不重要的消息（上下线提示）直接跳过
+     * @return              队列已满或消息被跳过时返回 false
+     * @throws IOException  写 channel 时可能抛出 IOException；判定为要断开的慢消费者时也抛出 IOException
+     */
+    public boolean send(SharedBuffer shared, boolean critical) throws IOException {
+        // 水位只看内存中的积压，历史消息从日志文件发送，不计入
+        SlowConsumerGuard.Action action = guard.admit(queuedBytes - replayBytes, critical);
+        if (action == SlowConsumerGuard.Action.EVICT) {
+            guard.getPolicy().onEvicted(getName().trim(), guard.getEvictReason());
+            throw new IOException("慢消费者被断开：" + guard.getEvictReason());
+        }
+        // 积压了一段时间，提醒客户端一次，提示不受队列长度限制
+        if (guard.takeNotice()) {
+            SharedBuffer notice = SharedBuffer.frame(Frame.TEXT, StandardCharsets.UTF_8, guard.noticeText(queuedBytes - replayBytes));
+            try {
+                enqueue(notice);
+            } finally {
+                notice.release();
+            }
+        }
+        if (action == SlowConsumerGuard.Action.SKIP || queueDepth >= maxQueueDepth) {
+            droppedMessages++;
+            return false;
+        }
+        enqueue(shared);
+        // 之前还有积压的话等 OP_WRITE 再写，保证顺序
+        if (isWritePending()) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (COALESCE_DELAY_NANOS <= 0 || queuedBytes >= COALESCE_MAX_BYTES
+                || (flushDeadline == 0 && now - lastFlushNanos >= COALESCE_DELAY_NANOS)) {
+            // 写合并关闭、攒够了、或者连接空闲：马上写
+            flush();
+        } else if (flushDeadline == 0) {
+            // 刚写过又来了消息，攒到窗口到期再一起写
+            flushDeadline = now + COALESCE_DELAY_NANOS;
+            worker.scheduleFlush(this);
+        }
+        return true;
+    }
+
+    /**
+     * 入队，持有 shared 的一个引用
+     */
+    private void enqueue(SharedBuffer shared) {
+        if (outboundQueue.isEmpty()) {
+            // 写超时从有数据待发送时开始算
+            lastWriteNanos = System.nanoTime();
+        }
+        outboundQueue.offer(shared.retain().duplicate());
+        owners.offer(shared);
+        queueDepth++;
+        queuedBytes += shared.size();
+    }
+
+    /**
+     * 攒着的消息到期了就写出去，由 {@link SubReactor} 在事件循环里调用
+     * @return              还没到期时返回到期时间，已经写过或不需要写时返回 0
+     * @throws IOException  写 channel 时可能抛出 IOException
+     */
+    long flushIfDue(long now) throws IOException {
+        if (flushDeadline == 0) {
+            return 0;
+        }
+        if (now - flushDeadline < 0) {
+            return flushDeadline;
+        }
+        flush();
+        return 0;
+    }
+
+    /**
+     * 上一次没写完，已经注册了 OP_WRITE 在等 socket 可写
+     */
+    private boolean isWritePending() {
+        return selectionKey.isValid() && (selectionKey.interestOps() & SelectionKey.OP_WRITE) != 0;
+    }
+
+    /**
+     * 尽量写出队列中的数据，一次聚集写最多写 {@link SubReactor#MAX_GATHER} 条消息，不在 channel 上空转
+     * 写不完的部分留在队列里，并注册 OP_WRITE 等下一轮 select 再写
+     * @throws IOException  写 channel 时可能抛出 IOException
+     */
+    public void flush() throws IOException {
+        flushDeadline = 0;
+        lastFlushNanos = System.nanoTime();
+        // 先发历史消息
+        PendingReplay pending;
+        while ((pending = replays.peek()) != null) {
+            if (!pending.ready) {
+                // 历史消息还没写进日志文件，等日志写线程的回调，不注册 OP_WRITE
+                updateWriteInterest(false);
+                return;
+            }
+            if (pending.region != null) {
+                long transferred = pending.region.transferTo(channel);
+                if (transferred > 0) {
+                    lastWriteNanos = lastFlushNanos;
+                    worker.getMetrics().getBytesOut().add(transferred);
+                }
+                queuedBytes -= transferred;
+                replayBytes -= transferred;
+                if (!pending.region.isDone()) {
+                    updateWriteInterest(true);
+                    return;
+                }
+            }
+            replays.poll();
+        }
+
+        // gather 数组是 worker 线程私有的，所有连接共用
+        ByteBuffer[] gather = worker.getGatherBuffers();
+        while (!outboundQueue.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer buffer : outboundQueue) {
+                gather[count++] = buffer;
+                if (count == gather.length) {
+                    break;
+                }
+            }
+            long written = channel.write(gather, 0, count);
+            if (written > 0) {
+                lastWriteNanos = lastFlushNanos;
+                worker.getMetrics().getBytesOut().add(written);
+            }
+            queuedBytes -= written;
+            worker.getBatchSizes().record(count);
+            int done = 0;
+            while (done < count && !gather[done].hasRemaining()) {
+                outboundQueue.poll();
+                owners.poll().release();
+                queueDepth--;
+                done++;
+            }
+            worker.getMetrics().getMessagesOut().add(done);
+            Arrays.fill(gather, 0, count, null);
+            if (done < count) {
+                // socket 发送缓冲区满了
+                break;
+            }
+        }
+
+        guard.onDrained(queuedBytes - replayBytes);
+        updateWriteInterest(!outboundQueue.isEmpty());
+    }
+
+    /**
+     * 按需注册或取消 OP_WRITE
+     */
+    private void updateWriteInterest(boolean write) {
+        if (!selectionKey.isValid()) {
+            return;
+        }
+        int ops = selectionKey.interestOps();
+        if (!write) {
+            if ((ops & SelectionKey.OP_WRITE) != 0) {
+                selectionKey.interestOps(ops & ~SelectionKey.OP_WRITE);
+            }
+        } else if ((ops & SelectionKey.OP_WRITE) == 0) {
+            selectionKey.interestOps(ops | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * 注册或取消 OP_READ，超出限速时暂停读取
+     */
+    void setReadInterest(boolean read) {
+        if (!selectionKey.isValid()) {
+            return;
+        }
+        int ops = selectionKey.interestOps();
+        if (read) {
+            selectionKey.interestOps(ops | SelectionKey.OP_READ);
+        } else {
+            selectionKey.interestOps(ops & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * 占一个回放的位置：之后入队的实时消息都要等这段历史消息发完
+     */
+    PendingReplay beginReplay() {
+        if (outboundQueue.isEmpty() && replays.isEmpty()) {
+            lastWriteNanos = System.nanoTime();
+        }
+        PendingReplay pending = new PendingReplay();
+        replays.offer(pending);
+        return pending;
+    }
+
+    /**
+     * 历史消息已经写进日志文件，开始发送
+     * @param region        要发送的历史消息，读取失败时为 null，直接跳过
+     * @throws IOException  写 channel 时可能抛出 IOException
+     */
+    void replay(PendingReplay pending, LogRegion region) throws IOException {
+        pending.region = region;
+        pending.ready = true;
+        if (region != null) {
+            queuedBytes += region.remaining();
+            replayBytes += region.remaining();
+        }
+        if (replays.peek() == pending) {
+            flush();
+        }
+    }
+
+    /**
+     * 读到了数据，空闲计时从头开始
+     */
+    void onRead(long now) {
+        lastReadNanos = now;
+        pingSent = false;
+    }
+
+    long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    long getReadRound() {
+        return readRound;
+    }
+
+    void setReadRound(long readRound) {
+        this.readRound = readRound;
+    }
+
+    /**
+     * 有数据待发送（包括历史消息）时，距离上一次写出数据的纳秒数；没有待发送的数据时返回 -1
+     */
+    long getWriteStallNanos(long now) {
+        return outboundQueue.isEmpty() && replays.isEmpty() ? -1 : now - lastWriteNanos;
+    }
+
+    boolean isPingSent() {
+        return pingSent;
+    }
+
+    void setPingSent(boolean pingSent) {
+        this.pingSent = pingSent;
+    }
+
+    TimingWheel.Timeout getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    void setIdleTimeout(TimingWheel.Timeout idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    TimingWheel.Timeout getThrottleTimeout() {
+        return throttleTimeout;
+    }
+
+    void setThrottleTimeout(TimingWheel.Timeout throttleTimeout) {
+        this.throttleTimeout = throttleTimeout;
+    }
+
+    long getThrottleNanos() {
+        return throttleNanos;
+    }
+
+    void setThrottleNanos(long throttleNanos) {
+        this.throttleNanos = throttleNanos;
+    }
+
+    void setReplayCursor(Room room, long offset) {
+        replayCursors.put(room, offset);
+    }
+
+    /**
+     * 房间的回放结束偏移，偏移小于它的消息已经包含在回放中，不再实时转发
+     */
+    long getReplayCursor(Room room) {
+        Long cursor = replayCursors.get(room);
+        return cursor == null ? 0 : cursor;
+    }
+
+    /**
+     * 丢弃所有未发送的数据
+     */
+    public void clear() {
+        decoder.reset();
+        outboundQueue.clear();
+        replays.clear();
+        SharedBuffer shared;
+        while ((shared = owners.poll()) != null) {
+            shared.release();
+        }
+        queueDepth = 0;
+        queuedBytes = 0;
+        replayBytes = 0;
+        flushDeadline = 0;
+    }
+
+    /**
+     * 把已经加入过的房间作为当前房间
+     * @return  没有加入过返回 false，要先加入房间再 {@link #joinRoom(Room, int)}
+     */
+    boolean switchRoom(Room room) {
+        if (!rooms.containsKey(room)) {
+            return false;
+        }
+        currentRoom = room;
+        return true;
+    }
+
+    /**
+     * 记录新加入的房间和在房间中的槽位，并把它作为当前房间
+     */
+    void joinRoom(Room room, int slot) {
+        rooms.put(room, slot);
+        currentRoom = room;
+    }
+
+    /**
+     * 记录离开的房间，离开的是当前房间时，最近加入的另一个房间成为当前房间
+     * @return  在房间中的槽位，没有加入过返回 -1
+     */
+    int leaveRoom(Room room) {
+        Integer slot = rooms.remove(room);
+        if (slot == null) {
+            return -1;
+        }
+        replayCursors.remove(room);
+        if (currentRoom == room) {
+            currentRoom = null;
+            for (Room joined : rooms.keySet()) {
+                currentRoom = joined;
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * 加入的所有房间 -> 在房间中的槽位
+     */
+    Map<Room, Integer> getRooms() {
+        return rooms;
+    }
+
+    public Room getCurrentRoom() {
+        return currentRoom;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public SelectionKey getSelectionKey() {
+        return selectionKey;
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    public FrameDecoder getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * 显示名称，设置了昵称时使用昵称
+     */
+    public String getName() {
+        String nickname = this.nickname;
+        return nickname == null ? name : nickname + " ";
+    }
+
+    public String getNickname() {
+        return nickname;
+    }
+
+    void setNickname(String nickname) {
+        this.nickname = nickname;
+    }
+
+    public SubReactor getWorker() {
+        return worker;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    /**
+     * 积压是否在高水位以下
+     */
+    public boolean isWritable() {
+        return guard.isWritable();
+    }
+
+    @Override
+    public String toString() {
+        return getName() + "queueDepth=" + queueDepth + ", queuedBytes=" + queuedBytes
+                + ", droppedMessages=" + droppedMessages + ", writable=" + guard.isWritable();
+    }
+
+    /**
+     * 一段等待发送的历史消息
+     */
+    static final class PendingReplay {
+        boolean ready;              // 历史消息已经写进日志文件
+        LogRegion region;
+    }
+}
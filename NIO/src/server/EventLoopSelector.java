@@ -0,0 +1,305 @@
+package server;
+
+import log.EventLog;
+import log.Level;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 事件循环用的 Selector，每次 select 不分配对象
+ * JDK 的 selectedKeys 是 HashSet：每个就绪的 key 都要算哈希、可能新建节点，遍历还要新建迭代器。
+ * 这里把就绪的 key 收集到一个复用的数组里，按下标遍历，有三种方式，按顺序选第一个可用的：
+ * 1. JDK 11+ 的 select(Consumer, long)：就绪的 key 直接交给回调，不经过 selectedKeys
+ * 2. 反射把 SelectorImpl 的 selectedKeys、publicSelectedKeys 换成数组实现的 Set（JDK 8 ~ 10；
+ *    JDK 16+ 需要 --add-opens java.base/sun.nio.ch=ALL-UNNAMED，一般走不到这里）
+ * 3. 都不行时照常 select，再把 selectedKeys 复制到数组里
+ * JDK 11+ 的 EPollSelectorImpl 查 fd 对应的 key 时会把 fd 装箱，fd 大于 127 时仍有分配，
+ * 需要完全不分配时启动参数加 -XX:AutoBoxCacheMax=65536（见 bench.SelectLoopBenchmark）。
+ * 另外处理 Linux epoll 的空轮询 bug：select 在超时之前返回 0、又不是被 wakeup 唤醒的，连续超过
+ * -Dchat.nio.selectorRebuildThreshold（默认 512，不大于 0 表示不检查）次，就新建一个 Selector，
+ * 把所有 channel 连同关注的事件和附件重新注册过去，再关闭旧的。
+ * 除了 {@link #wakeup()} 和 {@link #unwrap()}，只能在事件循环线程中调用。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-23 10:00 AM
+ */
+public class EventLoopSelector implements Closeable {
+
+    private static final int REBUILD_THRESHOLD = Integer.getInteger("chat.nio.selectorRebuildThreshold", 512);
+    private static final MethodHandle SELECT = findSelectWithAction(long.class);
+    private static final MethodHandle SELECT_NOW = findSelectWithAction(null);
+
+    private final String name;
+    private final SelectedKeys ready = new SelectedKeys();
+    private final Consumer<SelectionKey> collector = ready::add;        // 交给 select(Consumer) 的回调，只创建一次
+
+    private volatile Selector selector;
+    private volatile boolean wokenUp;           // select 期间有没有被 wakeup
+    private boolean replaced;                   // selectedKeys 是否已经换成了 ready
+    private int prematureReturns;               // 连续提前返回 0 的次数
+    private int rebuilds;
+
+    public EventLoopSelector(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+        this.replaced = SELECT == null && replaceSelectedKeys(selector, ready);
+    }
+
+    /**
+     * 阻塞到有事件就绪、被唤醒或者超时
+     * @param timeoutMillis     超时时间，0 表示一直阻塞
+     * @return                  就绪的 key 的个数，通过 {@link #readyKey(int)} 获取
+     */
+    public int select(long timeoutMillis) throws IOException {
+        wokenUp = false;
+        long start = System.nanoTime();
+        int selected;
+        if (SELECT != null) {
+            try {
+                selected = (int) SELECT.invokeExact(selector, collector, timeoutMillis);
+            } catch (IOException | RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IOException(e);
+            }
+        } else {
+            selected = selector.select(timeoutMillis);
+            copySelectedKeys();
+        }
+        if (selected == 0 && !wokenUp && !Thread.currentThread().isInterrupted()
+                && (timeoutMillis == 0 || System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(timeoutMillis))) {
+            if (REBUILD_THRESHOLD > 0 && ++prematureReturns >= REBUILD_THRESHOLD) {
+                rebuild();
+            }
+        } else {
+            prematureReturns = 0;
+        }
+        return ready.size;
+    }
+
+    /**
+     * 不阻塞，只取出当前已经就绪的 key
+     */
+    public int selectNow() throws IOException {
+        if (SELECT_NOW != null) {
+            try {
+                // invokeExact 要求返回值的类型完全一致，所以要接住返回值
+                int selected = (int) SELECT_NOW.invokeExact(selector, collector);
+            } catch (IOException | RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IOException(e);
+            }
+        } else {
+            selector.selectNow();
+            copySelectedKeys();
+        }
+        prematureReturns = 0;
+        return ready.size;
+    }
+
+    /**
+     * 第 i 个就绪的 key
+     */
+    public SelectionKey readyKey(int i) {
+        return ready.keys[i];
+    }
+
+    /**
+     * 处理完一轮就绪的 key 之后调用，清掉引用
+     */
+    public void clearReady() {
+        ready.reset();
+    }
+
+    /**
+     * 唤醒阻塞在 select 上的事件循环，可以在任何线程中调用
+     */
+    public void wakeup() {
+        wokenUp = true;
+        selector.wakeup();
+    }
+
+    public SelectionKey register(SelectableChannel channel, int ops, Object attachment) throws ClosedChannelException {
+        return channel.register(selector, ops, attachment);
+    }
+
+    /**
+     * 当前的 Selector，重建之后会变
+     */
+    public Selector unwrap() {
+        return selector;
+    }
+
+    public int getRebuilds() {
+        return rebuilds;
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+    }
+
+    /**
+     * 没有换掉 selectedKeys 时，把 JDK 的结果复制到数组里
+     */
+    private void copySelectedKeys() {
+        if (replaced) {
+            return;
+        }
+        Set<SelectionKey> selectedKeys = selector.selectedKeys();
+        if (!selectedKeys.isEmpty()) {
+            for (SelectionKey key : selectedKeys) {
+                ready.add(key);
+            }
+            selectedKeys.clear();
+        }
+    }
+
+    /**
+     * 新建 Selector，把旧 Selector 上所有有效的 channel 重新注册过去
+     * 连接的 SelectionKey 保存在 {@link Connection} 里，要一起换掉
+     */
+    private void rebuild() throws IOException {
+        Selector old = selector;
+        Selector fresh = Selector.open();
+        int moved = 0;
+        for (SelectionKey key : old.keys()) {
+            if (!key.isValid()) {
+                continue;
+            }
+            int ops = key.interestOps();
+            Object attachment = key.attachment();
+            key.cancel();
+            SelectionKey newKey = key.channel().register(fresh, ops, attachment);
+            if (attachment instanceof Connection) {
+                ((Connection) attachment).setSelectionKey(newKey);
+            }
+            moved++;
+        }
+        ready.reset();
+        replaced = SELECT == null && replaceSelectedKeys(fresh, ready);
+        selector = fresh;
+        prematureReturns = 0;
+        rebuilds++;
+        try {
+            old.close();
+        } catch (IOException e) {
+            EventLog.warn("{} 关闭重建前的 Selector 失败", name, e);
+        }
+        EventLog.log(Level.WARN, "{} 的 Selector 连续 {} 次空轮询，已重建，迁移了 {} 个 channel",
+                name, REBUILD_THRESHOLD, moved, null);
+    }
+
+    /**
+     * 查找 JDK 11+ 的 select(Consumer, long) 或 selectNow(Consumer)，没有时返回 null
+     * @param timeoutType   long.class 表示 select，null 表示 selectNow
+     */
+    private static MethodHandle findSelectWithAction(Class<?> timeoutType) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            return timeoutType != null
+                    ? lookup.findVirtual(Selector.class, "select", MethodType.methodType(int.class, Consumer.class, timeoutType))
+                    : lookup.findVirtual(Selector.class, "selectNow", MethodType.methodType(int.class, Consumer.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 反射把 sun.nio.ch.SelectorImpl 里的两个 selectedKeys 字段换成数组实现的 Set
+     * @return  是否替换成功
+     */
+    private static boolean replaceSelectedKeys(Selector selector, SelectedKeys keys) {
+        try {
+            Class<?> impl = Class.forName("sun.nio.ch.SelectorImpl", false, ClassLoader.getSystemClassLoader());
+            if (!impl.isInstance(selector)) {
+                return false;
+            }
+            Field selectedKeys = impl.getDeclaredField("selectedKeys");
+            Field publicSelectedKeys = impl.getDeclaredField("publicSelectedKeys");
+            selectedKeys.setAccessible(true);
+            publicSelectedKeys.setAccessible(true);
+            selectedKeys.set(selector, keys);
+            publicSelectedKeys.set(selector, keys);
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // JDK 9+ 的模块不开放 sun.nio.ch 时 setAccessible 会抛 InaccessibleObjectException
+            return false;
+        }
+    }
+
+    /**
+     * 数组实现的 selectedKeys，只支持 Selector 用到的 add，按下标遍历
+     * 每一轮处理完都会清空，所以 contains 返回 false 不会让同一个 key 出现两次
+     */
+    private static final class SelectedKeys extends AbstractSet<SelectionKey> {
+
+        private SelectionKey[] keys = new SelectionKey[1024];
+        private int size;
+
+        @Override
+        public boolean add(SelectionKey key) {
+            if (key == null) {
+                return false;
+            }
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size << 1);
+            }
+            keys[size++] = key;
+            return true;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return false;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return false;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Iterator<SelectionKey> iterator() {
+            return new Iterator<SelectionKey>() {
+                private int index;
+
+                @Override
+                public boolean hasNext() {
+                    return index < size;
+                }
+
+                @Override
+                public SelectionKey next() {
+                    return keys[index++];
+                }
+            };
+        }
+
+        void reset() {
+            Arrays.fill(keys, 0, size, null);
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 昵称到连接的索引
+ * 私聊按昵称查一次哈希表就能找到接收者，不需要遍历所有连接。
+ * 占用昵称用 putIfAbsent，两个连接同时抢同一个昵称时只有一个成功；
+ * 改名时先占用新昵称，成功后再释放旧昵称，任何时刻一个昵称最多属于一个连接。
+ *
+ * @param <T>   连接对象的类型
+ *
+ * @author Hedon Wang
+ * @create 2026-10-19 2:30 PM
+ */
+public class NicknameRegistry<T> {
+
+    public static final int MAX_LENGTH = 32;        // 昵称最大长度
+
+    private final ConcurrentHashMap<String, T> nicknames = new ConcurrentHashMap<>();
+
+    /**
+     * 占用昵称，成功后释放该连接原来的昵称
+     * @param nickname      新昵称
+     * @param connection    连接
+     * @param oldNickname   连接原来的昵称，没有时为 null
+     * @return              新昵称已被其他连接占用时返回 false
+     */
+    public boolean register(String nickname, T connection, String oldNickname) {
+        T owner = nicknames.putIfAbsent(nickname, connection);
+        if (owner != null && owner != connection) {
+            return false;
+        }
+        if (oldNickname != null && !oldNickname.equals(nickname)) {
+            nicknames.remove(oldNickname, connection);
+        }
+        return true;
+    }
+
+    /**
+     * 释放昵称，只有昵称属于该连接时才会释放
+     */
+    public void unregister(String nickname, T connection) {
+        if (nickname != null) {
+            nicknames.remove(nickname, connection);
+        }
+    }
+
+    /**
+     * 按昵称查找连接，不存在时返回 null
+     */
+    public T get(String nickname) {
+        return nicknames.get(nickname);
+    }
+
+    /**
+     * 昵称是否合法：非空、不超过最大长度、不含空白字符
+     */
+    public static boolean isValid(String nickname) {
+        if (nickname.isEmpty() || nickname.length() > MAX_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < nickname.length(); i++) {
+            if (Character.isWhitespace(nickname.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        return nicknames.size();
+    }
+}
@@ -0,0 +1,154 @@
+package server;
+
+import store.RoomLog;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 聊天房间
+ * 成员按所属的 worker 分组存放：第 i 组只包含 worker i 管理的连接，也只由 worker i 的线程读写，
+ * 所以加入、离开和转发都在同一个线程里发生，互相之间不需要加锁。
+ * 每组成员和 ConnectionTable 一样按槽位存放：加入时复用空闲槽位或追加到末尾，返回的槽位由连接自己记住
+ * （{@link Connection#getRooms()}），离开时按槽位置空并放回空闲链表，都是 O(1)；
+ * 每个连接都会进入大厅，所以上下线不能是 O(房间成员数) 的数组复制。
+ * 转发顺序扫描到高水位为止，空槽跳过，遍历中途有成员被关闭、离开只会让后面的槽位变空。
+ * 其他 worker 通过 {@link #hasMembers(int)} 判断需不需要把消息投递给 worker i，
+ * 扇出的代价是 O(房间成员数 + worker 数)，与服务器总连接数无关。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-19 10:30 AM
+ */
+public class Room {
+
+    private final String name;
+    private final RoomLog log;                          // 房间的消息日志，没有开启时为 null
+    private final Members[] members;                    // 按 worker 分组的成员，只由对应的 worker 线程访问
+    private final AtomicIntegerArray memberCounts;      // 每组的成员数，供其他 worker 读取
+    private final AtomicInteger size = new AtomicInteger();
+    private final RateLimiter rateLimiter = new RateLimiter();     // 房间的入站限速，所有 worker 共用
+    int pins;                                           // 被占用的次数，只在 RoomRegistry 的 rooms.compute 中访问
+
+    public Room(String name, int workerCount, RoomLog log) {
+        this.name = name;
+        this.log = log;
+        this.members = new Members[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            members[i] = new Members();
+        }
+        this.memberCounts = new AtomicIntegerArray(workerCount);
+    }
+
+    /**
+     * 加入房间，只能在 worker 线程中调用，调用方要保证 connection 还不在房间中
+     * @return  成员的槽位，离开时要原样传回
+     */
+    int join(int worker, Connection connection) {
+        Members group = members[worker];
+        int slot = group.add(connection);
+        memberCounts.set(worker, group.size);
+        size.incrementAndGet();
+        return slot;
+    }
+
+    /**
+     * 离开房间，只能在 worker 线程中调用
+     * @param slot  加入时返回的槽位
+     * @return      槽位上仍然是 connection 时返回 true，重复离开返回 false
+     */
+    boolean leave(int worker, int slot, Connection connection) {
+        Members group = members[worker];
+        if (!group.remove(slot, connection)) {
+            return false;
+        }
+        memberCounts.set(worker, group.size);
+        size.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * worker 管理的成员的遍历上限，配合 {@link #member(int, int)} 遍历，只能在该 worker 线程中调用
+     */
+    int highWater(int worker) {
+        return members[worker].highWater;
+    }
+
+    /**
+     * worker 管理的槽位上的成员，空槽返回 null，只能在该 worker 线程中调用
+     */
+    Connection member(int worker, int slot) {
+        return members[worker].slots[slot];
+    }
+
+    /**
+     * worker 是否管理着本房间的成员，可以在任意线程中调用
+     */
+    public boolean hasMembers(int worker) {
+        return memberCounts.get(worker) > 0;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public RoomLog getLog() {
+        return log;
+    }
+
+    RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * 一个 worker 管理的成员槽位，只在该 worker 线程中访问，不需要加锁
+     */
+    private static final class Members {
+
+        private static final int INITIAL_CAPACITY = 8;
+        private static final Connection[] EMPTY = new Connection[0];
+        private static final int[] NO_SLOTS = new int[0];
+
+        private Connection[] slots = EMPTY;
+        private int highWater;                  // 用过的最大槽位 + 1，遍历到这里为止
+        private int size;
+        private int[] freeSlots = NO_SLOTS;     // 空闲槽位栈
+        private int freeCount;
+
+        int add(Connection connection) {
+            int slot;
+            if (freeCount > 0) {
+                slot = freeSlots[--freeCount];
+            } else {
+                slot = highWater;
+                if (slot == slots.length) {
+                    Connection[] bigger = new Connection[Math.max(INITIAL_CAPACITY, slots.length * 2)];
+                    System.arraycopy(slots, 0, bigger, 0, slots.length);
+                    slots = bigger;
+                }
+                highWater = slot + 1;
+            }
+            slots[slot] = connection;
+            size++;
+            return slot;
+        }
+
+        boolean remove(int slot, Connection connection) {
+            if (slot < 0 || slot >= highWater || slots[slot] != connection) {
+                return false;
+            }
+            slots[slot] = null;
+            if (freeCount == freeSlots.length) {
+                int[] bigger = new int[Math.max(INITIAL_CAPACITY, freeSlots.length * 2)];
+                System.arraycopy(freeSlots, 0, bigger, 0, freeCount);
+                freeSlots = bigger;
+            }
+            freeSlots[freeCount++] = slot;
+            size--;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package server;
+
+import log.EventLog;
+import protocol.Frame;
+import store.MessageStore;
+import store.RoomLog;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 房间名到房间的索引
+ * 房间由客户端随意命名，所以名称要校验，房间数有上限（-Dchat.rooms.max，默认 1024），没人的房间要删掉，
+ * 否则不断加入新房间就能让索引和打开的消息日志无限增长。
+ * 加入房间之前用 {@link #acquire} 占住房间，离开之后用 {@link #release} 放开，最后一个成员离开时房间连同日志一起释放；
+ * 两者都在 rooms.compute 中进行，正在被占用的房间不会被删掉，删掉之后再加入的是一个新房间。
+ * 大厅一直保留，也不占上限。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-19 10:30 AM
+ */
+public class RoomRegistry {
+
+    public static final int MAX_NAME_LENGTH = 32;       // 房间名最大长度
+    private static final int MAX_ROOMS = Integer.getInteger("chat.rooms.max", 1024);
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final AtomicInteger count = new AtomicInteger();    // 大厅之外的房间数
+    private final int workerCount;
+    private final MessageStore store;                   // 消息日志，没有开启时为 null
+
+    public RoomRegistry(int workerCount, MessageStore store) {
+        this.workerCount = workerCount;
+        this.store = store;
+    }
+
+    /**
+     * 占用房间，不存在时创建，之后要调用一次 {@link #release}
+     * @return  房间数已达上限、需要新建时返回 null
+     */
+    public Room acquire(String name) {
+        return rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                if (!Frame.DEFAULT_ROOM.equals(key) && count.incrementAndGet() > MAX_ROOMS) {
+                    count.decrementAndGet();
+                    return null;
+                }
+                room = new Room(key, workerCount, openLog(key));
+            }
+            room.pins++;
+            return room;
+        });
+    }
+
+    /**
+     * 放开房间，没人占用时删除房间、释放日志，大厅除外
+     */
+    public void release(Room room) {
+        rooms.computeIfPresent(room.getName(), (key, current) -> {
+            if (current != room || --current.pins > 0 || Frame.DEFAULT_ROOM.equals(key)) {
+                return current;
+            }
+            count.decrementAndGet();
+            if (current.getLog() != null) {
+                store.release(current.getLog());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 打开房间的消息日志，失败时房间照常使用，只是不持久化
+     */
+    private RoomLog openLog(String name) {
+        if (store == null) {
+            return null;
+        }
+        try {
+            return store.open(name);
+        } catch (IOException e) {
+            EventLog.warn("打开房间 {} 的消息日志失败，不记录历史消息", name, e);
+            return null;
+        }
+    }
+
+    /**
+     * 获取房间，不存在时返回 null
+     */
+    public Room get(String name) {
+        return rooms.get(name);
+    }
+
+    /**
+     * 房间名是否合法：非空、不超过最大长度、只包含字母、数字、下划线和连字符
+     */
+    public static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        return rooms.size();
+    }
+}
@@ -0,0 +1,122 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 一个连接的慢消费者检测，按 {@link SlowConsumerPolicy} 的水位和时间逐级升级处理
+ * 每条消息入队前调用 {@link #admit(long, boolean)} 决定发送、跳过还是断开连接，
+ * 写出数据后调用 {@link #onDrained(long)} 检查是否回落到低水位以下。
+ * 状态只用原子变量维护，可以在多个线程中同时调用。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-20 2:30 PM
+ */
+public class SlowConsumerGuard {
+
+    public enum Action {
+        SEND,       // 正常入队
+        SKIP,       // 不可写期间跳过不重要的消息
+        EVICT       // 断开连接
+    }
+
+    private final SlowConsumerPolicy policy;
+
+    private final AtomicLong lagSince = new AtomicLong();           // 变为不可写的时间，0 表示可写
+    private final AtomicBoolean noticed = new AtomicBoolean();      // 本次不可写期间是否已经发过提示
+    private final AtomicReference<String> evictReason = new AtomicReference<>();    // 断开原因，没有断开时为 null
+
+    public SlowConsumerGuard(SlowConsumerPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * 消息入队前调用
+     * @param queuedBytes   当前积压的字节数
+     * @param critical      是否是重要消息（聊天消息、私聊、给自己的系统提示），不可写期间也照常发送
+     * @return              返回 EVICT 时调用方负责断开连接并记录断开事件，原因见 {@link #getEvictReason()}；
+     *                      同一个连接只返回一次 EVICT，之后的消息都跳过
+     */
+    public Action admit(long queuedBytes, boolean critical) {
+        if (evictReason.get() != null) {
+            return Action.SKIP;
+        }
+        long now = System.nanoTime();
+        long since = lagSince.get();
+        if (since == 0) {
+            if (queuedBytes < policy.getHighWatermark()) {
+                return Action.SEND;
+            }
+            // 超过高水位，变为不可写
+            since = now == 0 ? 1 : now;
+            if (lagSince.compareAndSet(0, since)) {
+                noticed.set(false);
+                policy.onLagging();
+            } else {
+                since = lagSince.get();
+            }
+        }
+        long maxBytes = policy.getMaxQueuedBytes();
+        if (maxBytes > 0 && queuedBytes >= maxBytes) {
+            return evict("积压 " + queuedBytes / 1024 + " KB，超过上限 " + maxBytes / 1024 + " KB");
+        }
+        long evictAfter = policy.getEvictAfterNanos();
+        if (since != 0 && evictAfter > 0 && now - since >= evictAfter) {
+            return evict("持续 " + TimeUnit.NANOSECONDS.toMillis(now - since) + " 毫秒积压超过高水位，当前积压 "
+                    + queuedBytes / 1024 + " KB");
+        }
+        if (critical) {
+            return Action.SEND;
+        }
+        policy.onSkipped();
+        return Action.SKIP;
+    }
+
+    /**
+     * 不可写持续超过 noticeMs 时返回 true，每次不可写期间只返回一次，调用方负责给客户端发提示
+     */
+    public boolean takeNotice() {
+        long since = lagSince.get();
+        return since != 0 && System.nanoTime() - since >= policy.getNoticeAfterNanos() && noticed.compareAndSet(false, true);
+    }
+
+    /**
+     * 给客户端的提示内容
+     */
+    public String noticeText(long queuedBytes) {
+        String text = "你的网络太慢，已有 " + queuedBytes / 1024 + " KB 消息积压，上下线提示将被跳过";
+        long evictAfter = policy.getEvictAfterNanos();
+        return evictAfter > 0 ? text + "；持续积压 " + TimeUnit.NANOSECONDS.toSeconds(evictAfter) + " 秒后会断开连接" : text;
+    }
+
+    /**
+     * 写出数据后调用，积压回落到低水位以下时恢复可写
+     */
+    public void onDrained(long queuedBytes) {
+        long since = lagSince.get();
+        if (since != 0 && queuedBytes <= policy.getLowWatermark() && lagSince.compareAndSet(since, 0)) {
+            policy.onRecovered();
+        }
+    }
+
+    /**
+     * 多个线程同时判定要断开时，只有一个返回 EVICT
+     */
+    private Action evict(String reason) {
+        return evictReason.compareAndSet(null, reason) ? Action.EVICT : Action.SKIP;
+    }
+
+    public boolean isWritable() {
+        return lagSince.get() == 0;
+    }
+
+    public String getEvictReason() {
+        return evictReason.get();
+    }
+
+    public SlowConsumerPolicy getPolicy() {
+        return policy;
+    }
+}
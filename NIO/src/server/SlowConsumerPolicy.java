@@ -0,0 +1,149 @@
+package server;
+
+import log.EventLog;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 慢消费者的处理策略和统计，一个服务端一份，所有连接共用
+ * 每个连接的发送队列积压字节数超过高水位后变为"不可写"，回落到低水位以下才恢复，
+ * 不可写期间逐级升级处理（由 {@link SlowConsumerGuard} 执行）：
+ * 1. 跳过不重要的消息（上下线提示），聊天消息、私聊、给自己的系统提示照常发送
+ * 2. 持续 noticeMs 之后，给客户端发一条"你的网络太慢"的提示
+ * 3. 持续 evictMs 之后，或积压超过 maxBytes，断开连接
+ * 可以通过系统属性修改：
+ * <pre>
+ * -Dchat.slow.highWatermark=262144     高水位（字节），积压超过它变为不可写
+ * -Dchat.slow.lowWatermark=65536       低水位（字节），积压回落到它以下恢复可写
+ * -Dchat.slow.noticeMs=1000            不可写持续多久后发送提示
+ * -Dchat.slow.evictMs=10000            不可写持续多久后断开连接，不大于 0 表示不因为时间断开
+ * -Dchat.slow.maxBytes=4194304         积压超过它立即断开连接，不大于 0 表示不限制
+ * </pre>
+ *
+ * @author Hedon Wang
+ * @create 2026-10-20 2:00 PM
+ */
+public class SlowConsumerPolicy {
+
+    private static final int MAX_EVENTS = 100;          // 最多保留的断开事件数
+
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final long noticeAfterNanos;
+    private final long evictAfterNanos;
+    private final long maxQueuedBytes;
+
+    // 统计
+    private final LongAdder laggingCount = new LongAdder();         // 变为不可写的次数
+    private final LongAdder recoveredCount = new LongAdder();       // 恢复可写的次数
+    private final LongAdder skippedMessages = new LongAdder();      // 不可写期间跳过的消息数
+    private final LongAdder evictions = new LongAdder();            // 断开的连接数
+    private final Deque<String> recentEvictions = new ConcurrentLinkedDeque<>();   // 最近的断开事件，新的在前
+
+    public SlowConsumerPolicy(long highWatermark, long lowWatermark, long noticeAfterMs, long evictAfterMs, long maxQueuedBytes) {
+        if (highWatermark <= 0 || lowWatermark < 0 || lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("水位设置错误：highWatermark=" + highWatermark + ", lowWatermark=" + lowWatermark);
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.noticeAfterNanos = TimeUnit.MILLISECONDS.toNanos(noticeAfterMs);
+        this.evictAfterNanos = TimeUnit.MILLISECONDS.toNanos(evictAfterMs);
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * 从系统属性读取配置，没有设置的使用默认值
+     */
+    public static SlowConsumerPolicy fromSystemProperties() {
+        return new SlowConsumerPolicy(
+                Long.getLong("chat.slow.highWatermark", 256 * 1024L),
+                Long.getLong("chat.slow.lowWatermark", 64 * 1024L),
+                Long.getLong("chat.slow.noticeMs", 1000L),
+                Long.getLong("chat.slow.evictMs", 10_000L),
+                Long.getLong("chat.slow.maxBytes", 4L << 20)
+        );
+    }
+
+    void onLagging() {
+        laggingCount.increment();
+    }
+
+    void onRecovered() {
+        recoveredCount.increment();
+    }
+
+    void onSkipped() {
+        skippedMessages.increment();
+    }
+
+    /**
+     * 记录一次断开事件
+     * @param client    客户端名称
+     * @param reason    断开原因
+     */
+    void onEvicted(String client, String reason) {
+        evictions.increment();
+        String event = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()) + " " + client + "：" + reason;
+        EventLog.warn("慢消费者被断开 {}：{}", client, reason);
+        recentEvictions.addFirst(event);
+        while (recentEvictions.size() > MAX_EVENTS) {
+            recentEvictions.pollLast();
+        }
+    }
+
+    public long getHighWatermark() {
+        return highWatermark;
+    }
+
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public long getNoticeAfterNanos() {
+        return noticeAfterNanos;
+    }
+
+    public long getEvictAfterNanos() {
+        return evictAfterNanos;
+    }
+
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    public long getLaggingCount() {
+        return laggingCount.sum();
+    }
+
+    public long getRecoveredCount() {
+        return recoveredCount.sum();
+    }
+
+    public long getSkippedMessages() {
+        return skippedMessages.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * 最近的断开事件（时间、客户端、原因），新的在前
+     */
+    public List<String> getRecentEvictions() {
+        return new ArrayList<>(recentEvictions);
+    }
+
+    @Override
+    public String toString() {
+        return "lagging=" + getLaggingCount() + ", recovered=" + getRecoveredCount()
+                + ", skippedMessages=" + getSkippedMessages() + ", evictions=" + getEvictions();
+    }
+}
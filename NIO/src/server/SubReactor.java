@@ -0,0 +1,818 @@
+package server;
+
+import buffer.BufferPool;
+import log.EventLog;
+import metrics.ChatMetrics;
+import metrics.Histogram;
+import protocol.Frame;
+import protocol.FrameDecoder;
+import protocol.FrameHandler;
+import store.LogRegion;
+import store.RoomLog;
+import timer.TimingWheel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 从 Reactor（worker）
+ * 每个 SubReactor 独占一个 Selector 和一个线程，负责分配给它的客户端的读写，
+ * 读写缓冲区也是每个 SubReactor 私有的，不会在线程之间共享。
+ * 其他线程只能通过 {@link #execute(Runnable)} 把任务投递进来，由本线程执行。
+ * 每个 SubReactor 还有一个时间轮，负责本线程所有连接的心跳和空闲超时，
+ * 每个连接只有一个反复使用的定时任务，读写数据时只更新时间戳，到期时再根据时间戳决定发 PING、断开还是重新排期。
+ * 读取有预算：每个连接每一轮最多读 readBudgetBytes 字节、处理 readBudgetFrames 个帧，用完就轮到下一个连接，
+ * 一个发得很快的客户端不会一直占着线程，让同一个 worker 上的其他连接等着。
+ * 用完预算的连接记下来，下一轮不阻塞在 select 上，直接接着读；socket 里剩下的数据 select 还会报告可读，
+ * 但已经读进解码器、超出帧预算的完整帧不会再触发可读事件，所以不能只靠 OP_READ。
+ * 入站限速（{@link RateLimits}）在解码出帧时扣令牌，超出限制就暂停解码、取消 OP_READ，
+ * 由时间轮在令牌补足后恢复，暂停期间数据留在内核里，背压传回发送者的 TCP 窗口。
+ * <pre>
+ * -Dchat.nio.readBudgetBytes=65536     每个连接每一轮最多读的字节数
+ * -Dchat.nio.readBudgetFrames=64       每个连接每一轮最多处理的帧数
+ * </pre>
+ *
+ * @author Hedon Wang
+ * @create 2026-10-17 10:12 AM
+ */
+public class SubReactor implements Runnable, FrameHandler<Connection> {
+
+    private static final String QUIT = "quit";
+    private static final int BUFFER = 1024;
+    private static final int MAX_QUEUE_DEPTH = 1024;       // 每个连接发送队列的最大消息数
+    static final int MAX_GATHER = 64;                       // 一次聚集写最多的消息数
+    private static final int TIMING_WHEEL_SIZE = 512;       // 时间轮的槽数
+    private static final int READ_BUDGET_BYTES = Integer.getInteger("chat.nio.readBudgetBytes", 64 * 1024);
+    private static final int READ_BUDGET_FRAMES = Integer.getInteger("chat.nio.readBudgetFrames", 64);
+
+    private final ChatServer chatServer;
+    private final int index;
+    private final EventLoopSelector selector;
+    private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();   // 其他线程投递过来的任务
+    private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final ByteBuffer rBuffer = BufferPool.DEFAULT.allocate(BUFFER);
+    private final Charset charset = Charset.forName("UTF-8");
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER];     // 聚集写用的数组，所有连接共用
+    private final List<Connection> pendingFlushes = new ArrayList<>();          // 攒着消息等合并写的连接
+    private final Histogram batchSizes;                                         // 每次聚集写的消息数
+    private final ChatMetrics metrics;
+    private final IdleConfig idleConfig;
+    private final TimingWheel timingWheel;                                      // 心跳、空闲超时和限速恢复
+    private final RateLimits rateLimits;                                        // 入站限速
+
+    private long nextFlushDeadline;                 // pendingFlushes 中最早的合并窗口到期时间
+    private List<Connection> pendingReads = new ArrayList<>();      // 本轮用完了读预算，下一轮接着读的连接
+    private List<Connection> resumingReads = new ArrayList<>();     // 上一轮留下来，本轮接着读的连接
+    private long round;                                             // 事件循环的轮数
+    private final LongAdder readBudgetExhausted = new LongAdder();  // 用完读预算的次数
+
+    private volatile Thread thread;
+
+    public SubReactor(ChatServer chatServer, int index) throws IOException {
+        this.chatServer = chatServer;
+        this.index = index;
+        this.selector = new EventLoopSelector("nio-worker-" + index);
+        this.batchSizes = chatServer.getBatchSizes();
+        this.metrics = chatServer.getMetrics();
+        this.idleConfig = chatServer.getIdleConfig();
+        this.rateLimits = chatServer.getRateLimits();
+        this.timingWheel = new TimingWheel(idleConfig.getTickMs(), TIMING_WHEEL_SIZE);
+    }
+
+    /**
+     * 从 Reactor 主循环
+     */
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                // 还有待执行的任务、没读完的连接时不能阻塞在 select 上；有攒着的消息时最多等到最早的合并窗口到期
+                int ready;
+                if (!taskQueue.isEmpty() || !pendingReads.isEmpty()) {
+                    ready = selector.selectNow();
+                } else if (!pendingFlushes.isEmpty()) {
+                    long waitMillis = TimeUnit.NANOSECONDS.toMillis(nextFlushDeadline - System.nanoTime());
+                    // select 的超时只精确到毫秒，不到 1 毫秒的窗口用 selectNow 轮询
+                    if (waitMillis > 0) {
+                        ready = selector.select(waitMillis);
+                    } else {
+                        ready = selector.selectNow();
+                    }
+                } else if (!timingWheel.isEmpty()) {
+                    // 最多阻塞到时间轮的下一个 tick
+                    ready = selector.select(timingWheel.millisToNextTick(System.nanoTime()));
+                } else {
+                    ready = selector.select(0);
+                }
+                // 上一轮没读完的连接本轮接着读，本轮新用完预算的记到另一个列表里
+                round++;
+                List<Connection> resuming = pendingReads;
+                pendingReads = resumingReads;
+                resumingReads = resuming;
+                // 处理所有被触发的事件，按下标遍历就绪数组，不分配迭代器
+                for (int i = 0; i < ready; i++) {
+                    SelectionKey selectionKey = selector.readyKey(i);
+                    try {
+                        handles(selectionKey);
+                    } catch (IOException e) {
+                        // 单个客户端出错不能影响同一个 worker 上的其他客户端
+                        closeClient(selectionKey);
+                    }
+                }
+                // 清空之前的事件集
+                selector.clearReady();
+                resumeReads();
+                // 处理投递过来的任务（注册新连接、转发消息等）
+                runTasks();
+                // 合并窗口到期的连接写出攒着的消息
+                flushPending();
+                // 推进时间轮，处理到期的心跳和空闲超时
+                timingWheel.advance(System.nanoTime());
+            }
+        } catch (IOException e) {
+            EventLog.error("worker {} 异常退出", index, e);
+        } catch (ClosedSelectorException e) {
+            // 服务端关闭，正常退出
+        } finally {
+            for (Connection connection : connections) {
+                connection.clear();
+            }
+            closeResource(selector);
+            BufferPool.DEFAULT.free(rBuffer);
+        }
+    }
+
+    /**
+     * 投递任务到本 worker 的线程中执行
+     */
+    public void execute(Runnable task) {
+        taskQueue.offer(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * 将 acceptor 接收到的客户端交给本 worker
+     */
+    public void register(final SocketChannel client) {
+        execute(() -> {
+            try {
+                // 为客户端 channel 注册 READ 事件，并绑定对应的 Connection
+                SelectionKey key = selector.register(client, SelectionKey.OP_READ, null);
+                Connection connection = new Connection(this, client, key, MAX_QUEUE_DEPTH, chatServer.getSlowConsumers());
+                key.attach(connection);
+                connections.add(connection);
+                metrics.getConnectionsOpened().increment();
+                EventLog.info("{}已连接", connection.getName());
+                if (idleConfig.isEnabled()) {
+                    connection.setIdleTimeout(new TimingWheel.Timeout(() -> checkIdle(connection)));
+                    scheduleIdleCheck(connection, 0, -1);
+                }
+                // 新连接默认进入大厅
+                joinRoom(connection, chatServer.getRooms().acquire(Frame.DEFAULT_ROOM));
+            } catch (IOException e) {
+                EventLog.warn("worker {} 注册新连接失败", index, e);
+                closeResource(client);
+            }
+        });
+    }
+
+    /**
+     * 连接开始攒消息，窗口到期后由事件循环写出去
+     * 只能在本 worker 线程中调用
+     */
+    void scheduleFlush(Connection connection) {
+        if (pendingFlushes.isEmpty()) {
+            nextFlushDeadline = System.nanoTime() + Connection.COALESCE_DELAY_NANOS;
+        }
+        pendingFlushes.add(connection);
+    }
+
+    /**
+     * 写出合并窗口已经到期的连接，没到期的留着，并算出最早的到期时间
+     */
+    private void flushPending() {
+        if (pendingFlushes.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        long earliest = 0;
+        int kept = 0;
+        for (int i = 0; i < pendingFlushes.size(); i++) {
+            Connection connection = pendingFlushes.get(i);
+            SelectionKey key = connection.getSelectionKey();
+            if (!key.isValid()) {
+                continue;
+            }
+            long deadline;
+            try {
+                deadline = connection.flushIfDue(now);
+            } catch (IOException e) {
+                closeClient(key);
+                continue;
+            }
+            if (deadline != 0) {
+                pendingFlushes.set(kept++, connection);
+                if (earliest == 0 || deadline - earliest < 0) {
+                    earliest = deadline;
+                }
+            }
+        }
+        pendingFlushes.subList(kept, pendingFlushes.size()).clear();
+        nextFlushDeadline = earliest;
+    }
+
+    /**
+     * 空闲检查到期：读超时、写超时就断开连接，读空闲超过心跳间隔就发一个 PING，否则重新排期
+     * 读写数据时不会重新排期，所以到期时要根据时间戳重新判断
+     */
+    private void checkIdle(Connection connection) {
+        SelectionKey key = connection.getSelectionKey();
+        if (!key.isValid()) {
+            return;
+        }
+        long now = System.nanoTime();
+        long readIdleMs = TimeUnit.NANOSECONDS.toMillis(now - connection.getLastReadNanos());
+        long writeStallNanos = connection.getWriteStallNanos(now);
+        long writeStallMs = writeStallNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(writeStallNanos);
+        if (idleConfig.getReadTimeoutMs() > 0 && readIdleMs >= idleConfig.getReadTimeoutMs()) {
+            EventLog.info("{}读超时（{} 毫秒没有收到数据），断开连接", connection.getName(), readIdleMs);
+            closeClient(key);
+            return;
+        }
+        if (idleConfig.getWriteTimeoutMs() > 0 && writeStallMs >= idleConfig.getWriteTimeoutMs()) {
+            EventLog.info("{}写超时（{} 毫秒没有写出数据），断开连接", connection.getName(), writeStallMs);
+            closeClient(key);
+            return;
+        }
+        if (idleConfig.getHeartbeatMs() > 0 && readIdleMs >= idleConfig.getHeartbeatMs() && !connection.isPingSent()) {
+            connection.setPingSent(true);
+            try {
+                SharedBuffer ping = SharedBuffer.frame(Frame.PING, charset, "");
+                try {
+                    connection.send(ping);
+                } finally {
+                    ping.release();
+                }
+            } catch (IOException e) {
+                closeClient(key);
+                return;
+            }
+        }
+        scheduleIdleCheck(connection, readIdleMs, writeStallMs);
+    }
+
+    /**
+     * 按心跳、读超时、写超时中最早到期的那个安排下一次空闲检查
+     */
+    private void scheduleIdleCheck(Connection connection, long readIdleMs, long writeStallMs) {
+        long delay = idleConfig.nextCheckMillis(readIdleMs, writeStallMs, connection.isPingSent());
+        timingWheel.schedule(connection.getIdleTimeout(), delay);
+    }
+
+    /**
+     * 执行投递过来的任务
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = taskQueue.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                EventLog.error("{} 执行投递的任务失败", Thread.currentThread().getName(), e);
+            }
+        }
+    }
+
+    /**
+     * 处理被触发的事件
+     */
+    private void handles(SelectionKey selectionKey) throws IOException {
+        Connection connection = (Connection) selectionKey.attachment();
+        // WRITE 事件 —— 之前没写完的数据现在可以继续写了
+        if (selectionKey.isValid() && selectionKey.isWritable()) {
+            connection.flush();
+        }
+        // READ 事件 —— 即客户端发来信息，需要转发给其他客户端
+        if (selectionKey.isValid() && selectionKey.isReadable()) {
+            receive(connection);
+        }
+    }
+
+    /**
+     * 解码出一个完整帧后的回调
+     */
+    @Override
+    public void onFrame(byte type, ByteBuffer payload, Connection connection) throws IOException {
+        // 客户端已经退出，同一次读到的后续帧直接丢弃
+        if (!connection.getSelectionKey().isValid()) {
+            return;
+        }
+        metrics.getMessagesIn().increment();
+        throttle(connection, type, payload.remaining());
+        String text = String.valueOf(charset.decode(payload));
+        switch (type) {
+            case Frame.TEXT:
+                onText(connection, text);
+                break;
+            case Frame.JOIN:
+                joinRoom(connection, text);
+                break;
+            case Frame.LEAVE:
+                Room room = chatServer.getRooms().get(text);
+                if (room == null || !leaveRoom(connection, room)) {
+                    sendNotice(connection, "你不在房间 [" + text + "] 中");
+                }
+                break;
+            case Frame.NICK:
+                changeNickname(connection, text);
+                break;
+            case Frame.MSG:
+                onDirectMessage(connection, text);
+                break;
+            case Frame.PING:
+                // 原样回复，客户端可以用来测往返时延
+                SharedBuffer pong = SharedBuffer.frame(Frame.PONG, charset, text);
+                try {
+                    connection.send(pong);
+                } finally {
+                    pong.release();
+                }
+                break;
+            case Frame.PONG:
+                // 读到数据时已经重置了空闲计时，这里不需要处理
+                break;
+            default:
+                throw new ProtocolException("未知的帧类型：" + type);
+        }
+    }
+
+    /**
+     * 按连接和当前房间的限速扣令牌，超出时暂停解码，本帧照常处理，读完本轮之后停止读取这个连接
+     */
+    private void throttle(Connection connection, byte type, int bytes) {
+        Room room = type == Frame.TEXT ? connection.getCurrentRoom() : null;
+        long delayNanos = rateLimits.acquire(connection.getRateLimiter(), room == null ? null : room.getRateLimiter(), bytes);
+        if (delayNanos > 0) {
+            connection.getDecoder().pause();
+            connection.setThrottleNanos(delayNanos);
+        }
+    }
+
+    /**
+     * 超出限速：取消 OP_READ，等令牌补足之后由时间轮恢复读取
+     */
+    private void pauseReading(final Connection connection) {
+        connection.setReadInterest(false);
+        TimingWheel.Timeout timeout = connection.getThrottleTimeout();
+        if (timeout == null) {
+            timeout = new TimingWheel.Timeout(() -> resumeReading(connection));
+            connection.setThrottleTimeout(timeout);
+        }
+        long delayMillis = TimeUnit.NANOSECONDS.toMillis(connection.getThrottleNanos() + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+        timingWheel.schedule(timeout, delayMillis);
+    }
+
+    /**
+     * 令牌补足，恢复读取：先处理留在解码器里的帧，再接着读 socket
+     * 暂停期间没有读数据不算读空闲，空闲计时从头开始
+     */
+    private void resumeReading(Connection connection) {
+        SelectionKey key = connection.getSelectionKey();
+        if (!key.isValid()) {
+            return;
+        }
+        connection.getDecoder().resume();
+        connection.setReadInterest(true);
+        connection.onRead(System.nanoTime());
+        try {
+            receive(connection);
+        } catch (IOException e) {
+            closeClient(key);
+        }
+    }
+
+    /**
+     * 设置或修改昵称，昵称被占用时保留原来的昵称
+     */
+    private void changeNickname(Connection connection, String nickname) throws IOException {
+        if (!NicknameRegistry.isValid(nickname)) {
+            sendNotice(connection, "昵称不能为空、不能包含空白字符，且不超过 " + NicknameRegistry.MAX_LENGTH + " 个字符");
+        } else if (isRemoteNickname(nickname)) {
+            sendNotice(connection, "昵称 " + nickname + " 已被占用");
+        } else if (chatServer.getNicknames().register(nickname, connection, connection.getNickname())) {
+            String oldNickname = connection.getNickname();
+            connection.setNickname(nickname);
+            if (chatServer.getCluster() != null) {
+                chatServer.getCluster().nicknameChanged(oldNickname);
+                chatServer.getCluster().nicknameChanged(nickname);
+            }
+            sendNotice(connection, "昵称已设置为：" + nickname);
+        } else {
+            sendNotice(connection, "昵称 " + nickname + " 已被占用");
+        }
+    }
+
+    /**
+     * 昵称是否被集群中其他节点的客户端占用
+     */
+    private boolean isRemoteNickname(String nickname) {
+        return chatServer.getCluster() != null && chatServer.getCluster().isRemoteNickname(nickname);
+    }
+
+    /**
+     * 私聊：按昵称查到接收者，只投递给它一个人，接收者在其他节点上时转发给那个节点
+     */
+    private void onDirectMessage(Connection connection, String text) throws IOException {
+        int space = text.indexOf(' ');
+        if (space <= 0) {
+            throw new ProtocolException("私聊格式错误：" + text);
+        }
+        String nickname = text.substring(0, space);
+        Connection target = chatServer.getNicknames().get(nickname);
+        if (target == null && !isRemoteNickname(nickname)) {
+            sendNotice(connection, "用户 " + nickname + " 不在线");
+            return;
+        }
+        final SharedBuffer fwdMsg = SharedBuffer.frame(Frame.TEXT, charset,
+                "[私聊] " + connection.getName() + ": " + text.substring(space + 1));
+        if (target == null) {
+            boolean sent;
+            try {
+                sent = chatServer.getCluster().sendDirect(nickname, fwdMsg);
+            } finally {
+                fwdMsg.release();
+            }
+            if (!sent) {
+                sendNotice(connection, "用户 " + nickname + " 所在的节点暂时不可达");
+            }
+            return;
+        }
+        // 接收者可能属于其他 worker，投递到它的线程里发送
+        final SubReactor worker = target.getWorker();
+        worker.execute(() -> worker.deliver(target, fwdMsg));
+    }
+
+    /**
+     * 将已经编码好的消息发给单个连接
+     * 调用方需要为本次调用持有 fwdMsg 的一个引用，发送结束后由本方法释放
+     * 只能在本 worker 线程中调用
+     */
+    void deliver(Connection target, SharedBuffer fwdMsg) {
+        try {
+            SelectionKey key = target.getSelectionKey();
+            if (key.isValid()) {
+                try {
+                    target.send(fwdMsg);
+                } catch (IOException e) {
+                    closeClient(key);
+                }
+            }
+        } finally {
+            fwdMsg.release();
+        }
+    }
+
+    /**
+     * 聊天消息：发往发送者的当前房间
+     */
+    private void onText(Connection connection, String fwdMsg) throws IOException {
+        EventLog.message("{}: {}", connection.getName(), fwdMsg);
+
+        Room room = connection.getCurrentRoom();
+        if (room == null) {
+            sendNotice(connection, "你不在任何房间中，请先用 /join 房间名 加入房间");
+        } else {
+            // 编码一次，写入房间的消息日志，再交给 ChatServer 分发给房间成员所在的 worker 转发
+            SharedBuffer frame = SharedBuffer.frame(Frame.TEXT, charset,
+                    "[" + room.getName() + "] " + connection.getName() + ": " + fwdMsg);
+            long offset = room.getLog() != null ? room.getLog().append(frame.duplicate()) : -1;
+            chatServer.publish(room, connection, frame, offset, true);
+        }
+
+        // 判断用户是否准备退出
+        if (readyToQuit(fwdMsg)) {
+            closeClient(connection.getSelectionKey());
+            EventLog.info("{}已断开", connection.getName());
+        }
+    }
+
+    /**
+     * 按房间名加入房间，名称不合法或者房间数已达上限时只回复提示
+     */
+    private void joinRoom(Connection connection, String name) throws IOException {
+        if (!RoomRegistry.isValidName(name)) {
+            sendNotice(connection, "房间名不能为空，只能包含字母、数字、下划线和连字符，且不超过 " + RoomRegistry.MAX_NAME_LENGTH + " 个字符");
+            return;
+        }
+        Room room = chatServer.getRooms().acquire(name);
+        if (room == null) {
+            sendNotice(connection, "房间数已达上限，无法创建房间 [" + name + "]");
+            return;
+        }
+        joinRoom(connection, room);
+    }
+
+    /**
+     * 加入房间并通知房间里的其他成员，同时更新房间 -> 成员、连接 -> 房间两个索引
+     * 房间已经用 {@link RoomRegistry#acquire} 占用，已经在房间中时放开这次占用
+     */
+    private void joinRoom(Connection connection, Room room) throws IOException {
+        if (connection.switchRoom(room)) {
+            chatServer.getRooms().release(room);
+        } else {
+            connection.joinRoom(room, room.join(index, connection));
+            if (chatServer.getCluster() != null) {
+                chatServer.getCluster().roomChanged(room);
+            }
+            chatServer.publish(room, connection, SharedBuffer.frame(Frame.TEXT, charset,
+                    "[" + room.getName() + "] " + connection.getName() + "加入了房间"), -1, false);
+            replayHistory(connection, room);
+        }
+        sendNotice(connection, "当前房间：[" + room.getName() + "]");
+    }
+
+    /**
+     * 回放房间最近的历史消息，再无缝衔接实时消息
+     * 必须在加入房间之后调用：此后分配到偏移的消息，发送者一定能看到这个新成员，会实时转发过来；
+     * 所以此时的 nextOffset 就是分界点，之前的消息从日志回放，实时转发过来的直接丢弃，之后的只走实时转发。
+     */
+    private void replayHistory(final Connection connection, final Room room) {
+        final RoomLog log = room.getLog();
+        if (log == null) {
+            return;
+        }
+        final long end = log.nextOffset();
+        connection.setReplayCursor(room, end);
+        final long start = log.replayStart(end);
+        if (start >= end) {
+            return;
+        }
+        final Connection.PendingReplay pending = connection.beginReplay();
+        // 分界点之前的消息可能还在日志写线程的队列里，写进文件之后再回到本线程发送
+        log.awaitWritten(end, () -> execute(() -> {
+            SelectionKey key = connection.getSelectionKey();
+            if (!key.isValid()) {
+                return;
+            }
+            LogRegion region = null;
+            try {
+                // 写入失败或等待超时时放弃回放，只收实时消息
+                if (log.getWrittenOffset() >= end) {
+                    region = log.read(start, end);
+                }
+            } catch (IOException e) {
+                EventLog.warn("读取房间 {} 的历史消息失败，只收实时消息", room.getName(), e);
+            }
+            try {
+                connection.replay(pending, region);
+            } catch (IOException e) {
+                closeClient(key);
+            }
+        }));
+    }
+
+    /**
+     * 离开房间并通知房间里的其他成员
+     * @return  之前在房间中返回 true
+     */
+    private boolean leaveRoom(Connection connection, Room room) throws IOException {
+        int slot = connection.leaveRoom(room);
+        if (slot < 0) {
+            return false;
+        }
+        if (room.leave(index, slot, connection)) {
+            chatServer.getRooms().release(room);
+        }
+        chatServer.publish(room, connection, SharedBuffer.frame(Frame.TEXT, charset,
+                "[" + room.getName() + "] " + connection.getName() + "离开了房间"), -1, false);
+        if (chatServer.getCluster() != null) {
+            chatServer.getCluster().roomChanged(room);
+        }
+        Room current = connection.getCurrentRoom();
+        sendNotice(connection, "已离开房间 [" + room.getName() + "]，当前房间："
+                + (current == null ? "无" : "[" + current.getName() + "]"));
+        return true;
+    }
+
+    /**
+     * 给单个客户端发送一条系统提示
+     */
+    private void sendNotice(Connection connection, String msg) throws IOException {
+        SharedBuffer notice = SharedBuffer.frame(Frame.TEXT, charset, msg);
+        try {
+            connection.send(notice);
+        } finally {
+            notice.release();
+        }
+    }
+
+    /**
+     * 将已经编码好的消息转发给本 worker 管理的、除发送者之外的房间成员
+     * 按槽位遍历，转发过程中有成员被关闭、离开，它的槽位变空，跳过即可
+     * offset 是消息在房间日志中的偏移（没有写入日志时为 -1），小于成员回放结束偏移的消息已经回放过，跳过
+     * critical 为 false 的消息（上下线提示）不会发给积压超过高水位的成员
+     * 调用方需要为本次调用持有 fwdMsg 的一个引用，转发结束后由本方法释放
+     * 只能在本 worker 线程中调用
+     */
+    void forwardToRoom(Room room, Connection sender, SharedBuffer fwdMsg, long offset, boolean critical) {
+        try {
+            for (int slot = 0, end = room.highWater(index); slot < end; slot++) {
+                Connection connection = room.member(index, slot);
+                // 跳过空槽，不转发给自身；已经包含在回放中的也不转发
+                if (connection == null || connection == sender) {
+                    continue;
+                }
+                SelectionKey key = connection.getSelectionKey();
+                if (key.isValid() && (offset < 0 || offset >= connection.getReplayCursor(room))) {
+                    try {
+                        // 放入该连接的发送队列，写不完的部分等 OP_WRITE
+                        connection.send(fwdMsg, critical);
+                    } catch (IOException e) {
+                        closeClient(key);
+                    }
+                }
+            }
+        } finally {
+            metrics.recordForward(fwdMsg.getCreatedNanos());
+            fwdMsg.release();
+        }
+    }
+
+    /**
+     * 接着读上一轮用完预算的连接，本轮已经因为可读事件读过的跳过
+     */
+    private void resumeReads() {
+        for (int i = 0; i < resumingReads.size(); i++) {
+            Connection connection = resumingReads.get(i);
+            SelectionKey key = connection.getSelectionKey();
+            if (!key.isValid() || connection.getReadRound() == round) {
+                continue;
+            }
+            try {
+                receive(connection);
+            } catch (IOException e) {
+                closeClient(key);
+            }
+        }
+        resumingReads.clear();
+    }
+
+    /**
+     * 接收客户端发来的信息，交给该连接的解码器拆成完整的帧
+     * 最多读 READ_BUDGET_BYTES 字节、处理 READ_BUDGET_FRAMES 个帧，用完预算时放进 pendingReads，下一轮接着读
+     * 超出限速时停止读取，等时间轮恢复
+     */
+    private void receive(Connection connection) throws IOException {
+        FrameDecoder decoder = connection.getDecoder();
+        if (decoder.isPaused()) {
+            return;
+        }
+        connection.setReadRound(round);
+        SocketChannel client = connection.getChannel();
+        // 先处理上一轮超出帧预算、留在解码器里的完整帧
+        int frames = decoder.decodePending(this, connection, READ_BUDGET_FRAMES);
+        int bytes = 0;
+        int read = 0;
+        while (frames < READ_BUDGET_FRAMES && bytes < READ_BUDGET_BYTES && !decoder.isPaused()
+                && connection.getSelectionKey().isValid()) {
+            rBuffer.clear();
+            rBuffer.limit(Math.min(rBuffer.capacity(), READ_BUDGET_BYTES - bytes));
+            // 将 channel 数据读到 rBuffer
+            read = client.read(rBuffer);
+            if (read <= 0) {
+                break;
+            }
+            bytes += read;
+            metrics.getBytesIn().add(read);
+            connection.onRead(System.nanoTime());
+            // 将 rBuffer 的写模式转为读模式，解码完整的帧，半个帧和超出帧预算的帧留在解码器里
+            rBuffer.flip();
+            frames += decoder.decode(rBuffer, this, connection, READ_BUDGET_FRAMES - frames);
+        }
+
+        if (read < 0) {
+            // 读到 EOF -> 客户端异常 -> 退出客户端
+            closeClient(connection.getSelectionKey());
+        } else if (decoder.isPaused()) {
+            if (connection.getSelectionKey().isValid()) {
+                pauseReading(connection);
+            }
+        } else if ((frames >= READ_BUDGET_FRAMES || bytes >= READ_BUDGET_BYTES) && connection.getSelectionKey().isValid()) {
+            // 预算用完了，可能还有数据没读，先让给其他连接
+            pendingReads.add(connection);
+            readBudgetExhausted.increment();
+        }
+    }
+
+    /**
+     * 关闭客户端
+     */
+    private void closeClient(SelectionKey selectionKey) {
+        Connection connection = (Connection) selectionKey.attachment();
+        if (connection != null && connections.remove(connection)) {
+            metrics.getConnectionsClosed().increment();
+            // 从所有加入的房间中移除
+            for (Map.Entry<Room, Integer> joined : connection.getRooms().entrySet()) {
+                Room room = joined.getKey();
+                if (room.leave(index, joined.getValue(), connection)) {
+                    chatServer.getRooms().release(room);
+                }
+                if (chatServer.getCluster() != null) {
+                    chatServer.getCluster().roomChanged(room);
+                }
+            }
+            connection.getRooms().clear();
+            // 取消空闲检查
+            if (connection.getIdleTimeout() != null) {
+                timingWheel.cancel(connection.getIdleTimeout());
+            }
+            // 取消限速恢复
+            if (connection.getThrottleTimeout() != null) {
+                timingWheel.cancel(connection.getThrottleTimeout());
+            }
+            // 释放昵称
+            chatServer.getNicknames().unregister(connection.getNickname(), connection);
+            if (chatServer.getCluster() != null) {
+                chatServer.getCluster().nicknameChanged(connection.getNickname());
+            }
+            connection.clear();
+        }
+        selectionKey.cancel();
+        closeResource(selectionKey.channel());
+    }
+
+    /**
+     * 关闭 worker
+     */
+    public void shutdown() {
+        closeResource(selector);
+    }
+
+    /**
+     * 判断客户端是否准备退出
+     */
+    private boolean readyToQuit(String msg) {
+        return QUIT.equals(msg);
+    }
+
+    /**
+     * 释放资源
+     */
+    private void closeResource(Closeable closable) {
+        if (closable != null) {
+            try {
+                closable.close();
+            } catch (IOException e) {
+                EventLog.warn("关闭 {} 失败", closable.toString(), e);
+            }
+        }
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    ByteBuffer[] getGatherBuffers() {
+        return gatherBuffers;
+    }
+
+    Histogram getBatchSizes() {
+        return batchSizes;
+    }
+
+    ChatMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 用完读预算的次数
+     */
+    public long getReadBudgetExhausted() {
+        return readBudgetExhausted.sum();
+    }
+
+    /**
+     * 本 worker 管理的所有连接，可在其他线程中读取各连接的发送队列统计
+     */
+    public Collection<Connection> getConnections() {
+        return Collections.unmodifiableSet(connections);
+    }
+}
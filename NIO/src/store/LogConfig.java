@@ -0,0 +1,117 @@
+package store;
+
+import java.io.File;
+
+/**
+ * 消息日志的配置
+ * 可以通过系统属性修改：
+ * <pre>
+ * -Dchat.log.enabled=true              是否开启消息日志
+ * -Dchat.log.dir=chat-log              日志目录，每个房间一个子目录
+ * -Dchat.log.segmentBytes=8388608      单个分段的最大字节数，写满后滚动
+ * -Dchat.log.segmentMinutes=60         分段最长使用时间，超过后滚动
+ * -Dchat.log.retentionBytes=1073741824 每个房间最多保留的字节数，不大于 0 表示不限制
+ * -Dchat.log.retentionMinutes=10080    最多保留多长时间的消息，不大于 0 表示不限制
+ * -Dchat.log.flushIntervalMs=50        两次刷盘（fsync）的最小间隔，0 表示每批都刷盘
+ * -Dchat.log.queueCapacity=65536       待写入消息队列的容量，满了之后丢弃
+ * -Dchat.replay.messages=50            加入房间时回放的最近消息数，0 表示不回放
+ * -Dchat.replay.minutes=0              只回放最近多长时间的消息，不大于 0 表示不按时间限制
+ * </pre>
+ *
+ * @author Hedon Wang
+ * @create 2026-10-19 4:00 PM
+ */
+public class LogConfig {
+
+    private static final long MINUTE = 60 * 1000L;
+
+    private final boolean enabled;
+    private final File directory;
+    private final int segmentBytes;
+    private final long segmentMs;
+    private final long retentionBytes;
+    private final long retentionMs;
+    private final long flushIntervalMs;
+    private final int queueCapacity;
+    private final int replayMessages;
+    private final long replayMs;
+
+    public LogConfig(boolean enabled, File directory, int segmentBytes, long segmentMs,
+                     long retentionBytes, long retentionMs, long flushIntervalMs, int queueCapacity,
+                     int replayMessages, long replayMs) {
+        if (segmentBytes <= 0) {
+            throw new IllegalArgumentException("segmentBytes 必须大于 0：" + segmentBytes);
+        }
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity 必须大于 0：" + queueCapacity);
+        }
+        this.enabled = enabled;
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.segmentMs = segmentMs;
+        this.retentionBytes = retentionBytes;
+        this.retentionMs = retentionMs;
+        this.flushIntervalMs = flushIntervalMs;
+        this.queueCapacity = queueCapacity;
+        this.replayMessages = replayMessages;
+        this.replayMs = replayMs;
+    }
+
+    /**
+     * 从系统属性读取配置，没有设置的使用默认值
+     */
+    public static LogConfig fromSystemProperties() {
+        return new LogConfig(
+                Boolean.parseBoolean(System.getProperty("chat.log.enabled", "true")),
+                new File(System.getProperty("chat.log.dir", "chat-log")),
+                Integer.getInteger("chat.log.segmentBytes", 8 << 20),
+                Long.getLong("chat.log.segmentMinutes", 60L) * MINUTE,
+                Long.getLong("chat.log.retentionBytes", 1L << 30),
+                Long.getLong("chat.log.retentionMinutes", 7 * 24 * 60L) * MINUTE,
+                Long.getLong("chat.log.flushIntervalMs", 50L),
+                Integer.getInteger("chat.log.queueCapacity", 1 << 16),
+                Integer.getInteger("chat.replay.messages", 50),
+                Long.getLong("chat.replay.minutes", 0L) * MINUTE
+        );
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public int getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    public long getSegmentMs() {
+        return segmentMs;
+    }
+
+    public long getRetentionBytes() {
+        return retentionBytes;
+    }
+
+    public long getRetentionMs() {
+        return retentionMs;
+    }
+
+    public long getFlushIntervalMs() {
+        return flushIntervalMs;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public int getReplayMessages() {
+        return replayMessages;
+    }
+
+    public long getReplayMs() {
+        return replayMs;
+    }
+}
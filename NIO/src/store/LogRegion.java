@@ -0,0 +1,92 @@
+package store;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 日志中一段连续的消息在文件中的位置，可能跨越多个分段
+ * 分段里存的就是帧的线上格式，所以可以用 {@link FileChannel#transferTo} 直接从页缓存发到 socket，
+ * 数据不经过 Java 堆。目标是非阻塞 channel 时可能一次写不完，记住进度，下次接着写。
+ * 只能由一个线程使用。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-20 10:00 AM
+ */
+public class LogRegion {
+
+    private final FileChannel[] channels;
+    private final long[] positions;
+    private final long[] remaining;
+    private final long startOffset;
+    private final long endOffset;
+    private int index;                      // 正在写的分段
+    private long totalRemaining;
+
+    LogRegion(FileChannel[] channels, long[] positions, long[] remaining, long startOffset, long endOffset) {
+        this.channels = channels;
+        this.positions = positions;
+        this.remaining = remaining;
+        this.startOffset = startOffset;
+        this.endOffset = endOffset;
+        for (long bytes : remaining) {
+            totalRemaining += bytes;
+        }
+    }
+
+    /**
+     * 尽量多地写到 target
+     * 分段在回放过程中被保留策略删除时跳过这一段
+     * @return              本次写出的字节数
+     * @throws IOException  写 target 时可能抛出 IOException
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        long total = 0;
+        while (index < channels.length) {
+            long written;
+            try {
+                written = channels[index].transferTo(positions[index], remaining[index], target);
+            } catch (ClosedChannelException e) {
+                if (channels[index].isOpen()) {
+                    throw e;
+                }
+                // 分段已经被删除
+                totalRemaining -= remaining[index];
+                remaining[index] = 0;
+                index++;
+                continue;
+            }
+            positions[index] += written;
+            remaining[index] -= written;
+            totalRemaining -= written;
+            total += written;
+            if (remaining[index] == 0) {
+                index++;
+            } else if (written == 0) {
+                // 目标写不进去了
+                break;
+            }
+        }
+        return total;
+    }
+
+    public boolean isDone() {
+        return index == channels.length;
+    }
+
+    /**
+     * 还没写出的字节数
+     */
+    public long remaining() {
+        return totalRemaining;
+    }
+
+    public long getStartOffset() {
+        return startOffset;
+    }
+
+    public long getEndOffset() {
+        return endOffset;
+    }
+}
@@ -0,0 +1,364 @@
+package store;
+
+import log.EventLog;
+import protocol.Frame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 日志分段
+ * 一个分段对应两个文件，文件名是分段第一条消息的偏移：
+ * 1. xxx.log：消息按帧的线上格式（长度 + 类型 + 负载）首尾相接，通过 MappedByteBuffer 写入，
+ *    回放时可以直接把文件内容发给客户端，不需要重新编码
+ * 2. xxx.index：稀疏索引，每写入 {@link #INDEX_INTERVAL} 字节记一条（相对偏移、文件位置、时间戳），各 16 字节
+ * 只有活跃分段持有映射，由写线程追加；封存后只读，通过 FileChannel 按位置读取。
+ * 已写入的字节数、消息数和索引条目数都是 volatile 的，其他线程可以并发地查找和读取已经写入的部分。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-19 4:00 PM
+ */
+public class LogSegment {
+
+    static final int INDEX_INTERVAL = 4096;             // 每写入这么多字节记一条索引
+    private static final int INDEX_ENTRY_SIZE = 16;     // 相对偏移 4B + 文件位置 4B + 时间戳 8B
+
+    private final long baseOffset;
+    private final File logFile;
+    private final File indexFile;
+    private final FileChannel channel;
+    private final FileChannel indexChannel;
+    private final int capacity;
+
+    private MappedByteBuffer mmap;                      // 活跃分段的映射，只由写线程访问，封存后为 null
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);    // 写索引用，只由写线程访问
+    private int lastIndexedPosition;                    // 最后一条索引的文件位置，只由写线程访问
+
+    // 稀疏索引：先写数组元素，再写 indexSize；读的时候先读 indexSize，再读数组
+    private volatile int[] indexOffsets = new int[16];
+    private volatile int[] indexPositions = new int[16];
+    private volatile long[] indexTimestamps = new long[16];
+    private volatile int indexSize;
+
+    private volatile int size;                          // 已写入的字节数
+    private volatile int count;                         // 已写入的消息数
+    private volatile long firstTimestamp;               // 第一条消息的时间
+    private volatile long lastTimestamp;                // 最后一条消息的时间
+
+    private LogSegment(File directory, long baseOffset, int capacity, boolean active) throws IOException {
+        this.baseOffset = baseOffset;
+        this.logFile = new File(directory, fileName(baseOffset, ".log"));
+        this.indexFile = new File(directory, fileName(baseOffset, ".index"));
+        this.channel = new RandomAccessFile(logFile, "rw").getChannel();
+        this.indexChannel = new RandomAccessFile(indexFile, "rw").getChannel();
+        this.capacity = active ? Math.max(capacity, (int) channel.size()) : (int) channel.size();
+        if (active) {
+            mmap = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+        }
+    }
+
+    /**
+     * 新建一个活跃分段
+     */
+    static LogSegment create(File directory, long baseOffset, int capacity) throws IOException {
+        return new LogSegment(directory, baseOffset, capacity, true);
+    }
+
+    /**
+     * 打开已有的分段：加载索引，再从最后一条索引开始扫描，找到实际写入的末尾
+     * @param active    是否作为活跃分段继续追加
+     */
+    static LogSegment open(File directory, long baseOffset, int capacity, boolean active) throws IOException {
+        LogSegment segment = new LogSegment(directory, baseOffset, capacity, active);
+        try {
+            segment.recover();
+        } catch (IOException e) {
+            segment.close();
+            throw e;
+        }
+        return segment;
+    }
+
+    /**
+     * 追加一条消息，只能由写线程调用
+     * @return  剩余空间不够时返回 false，需要滚动到新的分段
+     */
+    boolean append(byte[] record, long timestamp) throws IOException {
+        int position = size;
+        if (record.length > capacity - position) {
+            return false;
+        }
+        if (count == 0 || position - lastIndexedPosition >= INDEX_INTERVAL) {
+            addIndexEntry(count, position, timestamp, true);
+        }
+        mmap.position(position);
+        mmap.put(record);
+        if (count == 0) {
+            firstTimestamp = timestamp;
+        }
+        lastTimestamp = timestamp;
+        count++;
+        size = position + record.length;
+        return true;
+    }
+
+    /**
+     * 把已写入的数据和索引刷到磁盘
+     */
+    void flush() throws IOException {
+        if (mmap != null) {
+            mmap.force();
+        }
+        indexChannel.force(false);
+    }
+
+    /**
+     * 封存：刷盘后不再追加，释放映射
+     */
+    void seal() throws IOException {
+        flush();
+        mmap = null;
+    }
+
+    /**
+     * 查找某个偏移的消息在文件中的位置：在稀疏索引中二分找到不大于它的最后一条，再往后逐帧跳过
+     * 可以在任意线程中调用
+     * @param offset    绝对偏移，范围是 [baseOffset, nextOffset()]，等于 nextOffset() 时返回已写入的末尾
+     */
+    public int positionOf(long offset) throws IOException {
+        int relative = (int) (offset - baseOffset);
+        int entries = indexSize;
+        int[] offsets = indexOffsets;
+        int[] positions = indexPositions;
+        if (relative < 0 || relative > count) {
+            throw new IllegalArgumentException("偏移 " + offset + " 不在分段 " + baseOffset + " 中");
+        }
+        if (relative == count) {
+            return size;
+        }
+        int low = 0;
+        int high = entries - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (offsets[mid] <= relative) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int position = positions[low];
+        ByteBuffer header = ByteBuffer.allocate(Frame.MAX_HEADER_SIZE);
+        for (int i = offsets[low]; i < relative; i++) {
+            position += frameLengthAt(position, header);
+        }
+        return position;
+    }
+
+    /**
+     * 不早于 timestamp 的消息的大致起始偏移
+     * 索引是稀疏的，返回的是最后一条早于 timestamp 的索引的偏移，可能多出不超过 {@link #INDEX_INTERVAL} 字节的旧消息，但不会漏掉
+     * 可以在任意线程中调用
+     */
+    public long offsetForTime(long timestamp) {
+        int entries = indexSize;
+        int[] offsets = indexOffsets;
+        long[] timestamps = indexTimestamps;
+        int found = 0;
+        for (int i = entries - 1; i >= 0; i--) {
+            if (timestamps[i] < timestamp) {
+                found = i;
+                break;
+            }
+        }
+        return entries == 0 ? baseOffset : baseOffset + offsets[found];
+    }
+
+    /**
+     * 从文件位置 position 读出一帧的总长度
+     */
+    private int frameLengthAt(int position, ByteBuffer header) throws IOException {
+        header.clear();
+        header.limit(Math.min(header.capacity(), size - position));
+        while (header.hasRemaining() && channel.read(header, position + header.position()) > 0) {
+            // 读满帧头
+        }
+        header.flip();
+        int length = frameLength(header, 0, false);
+        if (length < 0) {
+            throw new IOException("分段 " + logFile + " 在位置 " + position + " 处的数据已损坏");
+        }
+        return length;
+    }
+
+    /**
+     * 解析 buffer 中 index 处的帧头，返回整帧的长度，数据不是合法帧时返回 -1
+     * @param whole     是否要求整帧都在 buffer 中
+     */
+    private static int frameLength(ByteBuffer buffer, int index, boolean whole) {
+        int payloadLength = 0;
+        int shift = 0;
+        int i = index;
+        while (true) {
+            if (i >= buffer.limit() || shift > 28) {
+                return -1;
+            }
+            byte b = buffer.get(i++);
+            payloadLength |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        // 类型为 0 说明是还没写入的区域
+        if (payloadLength < 0 || payloadLength > Frame.MAX_PAYLOAD_SIZE || i >= buffer.limit() || buffer.get(i) == 0) {
+            return -1;
+        }
+        int length = i + 1 - index + payloadLength;
+        return whole && index + length > buffer.limit() ? -1 : length;
+    }
+
+    /**
+     * 恢复：加载索引文件，从最后一条有效索引开始逐帧扫描到第一个不合法的位置
+     */
+    private void recover() throws IOException {
+        // 加载索引
+        int entries = (int) (indexChannel.size() / INDEX_ENTRY_SIZE);
+        ByteBuffer index = ByteBuffer.allocate(entries * INDEX_ENTRY_SIZE);
+        while (index.hasRemaining() && indexChannel.read(index, index.position()) > 0) {
+            // 读满整个索引文件
+        }
+        index.flip();
+        for (int i = 0; i < entries; i++) {
+            addIndexEntry(index.getInt(), index.getInt(), index.getLong(), false);
+        }
+
+        // 扫描数据
+        ByteBuffer data = mmap != null ? mmap : channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        while (true) {
+            int start = indexSize == 0 ? 0 : indexPositions[indexSize - 1];
+            int relative = indexSize == 0 ? 0 : indexOffsets[indexSize - 1];
+            int position = start;
+            int length;
+            while ((length = frameLength(data, position, true)) > 0) {
+                position += length;
+                relative++;
+            }
+            if (position > start || indexSize == 0) {
+                size = position;
+                count = relative;
+                break;
+            }
+            // 最后一条索引指向的位置没有数据（索引写了但数据没落盘），丢掉它重新扫描
+            indexSize--;
+        }
+        // 截掉多余的索引，后续追加的索引接在后面
+        if (count == 0) {
+            indexSize = 0;
+        }
+        indexChannel.truncate((long) indexSize * INDEX_ENTRY_SIZE);
+        if (indexSize == 0 && count > 0) {
+            // 索引文件丢了，至少补上第一条
+            addIndexEntry(0, 0, logFile.lastModified(), true);
+        }
+        lastIndexedPosition = indexSize == 0 ? 0 : indexPositions[indexSize - 1];
+        long modified = logFile.lastModified();
+        firstTimestamp = indexSize == 0 ? modified : indexTimestamps[0];
+        lastTimestamp = Math.max(modified, indexSize == 0 ? 0 : indexTimestamps[indexSize - 1]);
+    }
+
+    /**
+     * 增加一条索引，persist 为 true 时同时写入索引文件
+     */
+    private void addIndexEntry(int relativeOffset, int position, long timestamp, boolean persist) throws IOException {
+        int entries = indexSize;
+        if (entries == indexOffsets.length) {
+            int[] offsets = new int[entries * 2];
+            int[] positions = new int[entries * 2];
+            long[] timestamps = new long[entries * 2];
+            System.arraycopy(indexOffsets, 0, offsets, 0, entries);
+            System.arraycopy(indexPositions, 0, positions, 0, entries);
+            System.arraycopy(indexTimestamps, 0, timestamps, 0, entries);
+            indexOffsets = offsets;
+            indexPositions = positions;
+            indexTimestamps = timestamps;
+        }
+        indexOffsets[entries] = relativeOffset;
+        indexPositions[entries] = position;
+        indexTimestamps[entries] = timestamp;
+        if (persist) {
+            indexEntry.clear();
+            indexEntry.putInt(relativeOffset).putInt(position).putLong(timestamp).flip();
+            while (indexEntry.hasRemaining()) {
+                indexChannel.write(indexEntry, (long) entries * INDEX_ENTRY_SIZE + indexEntry.position());
+            }
+        }
+        lastIndexedPosition = position;
+        indexSize = entries + 1;
+    }
+
+    /**
+     * 关闭文件，映射由 GC 回收
+     */
+    void close() {
+        mmap = null;
+        closeQuietly(channel);
+        closeQuietly(indexChannel);
+    }
+
+    /**
+     * 关闭并删除文件，保留策略淘汰分段时调用
+     */
+    void delete() {
+        close();
+        if (!logFile.delete() || !indexFile.delete()) {
+            EventLog.warn("删除日志分段失败：{}", logFile.getPath());
+        }
+    }
+
+    private void closeQuietly(FileChannel fileChannel) {
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            EventLog.warn("关闭日志分段失败：{}", logFile.getPath(), e);
+        }
+    }
+
+    static String fileName(long baseOffset, String suffix) {
+        return String.format("%020d%s", baseOffset, suffix);
+    }
+
+    public long getBaseOffset() {
+        return baseOffset;
+    }
+
+    /**
+     * 下一条写入的消息的偏移
+     */
+    public long nextOffset() {
+        return baseOffset + count;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    FileChannel getChannel() {
+        return channel;
+    }
+}
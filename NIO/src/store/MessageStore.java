@@ -0,0 +1,274 @@
+package store;
+
+import log.EventLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 消息日志：每个房间一个追加写的 {@link RoomLog}
+ * 所有房间共用一个写线程和一个有界队列，IO 线程追加消息时只做一次小的内存复制和一次入队，不碰磁盘；
+ * 写线程把队列里的消息成批写进内存映射的分段，并且组提交：一批消息（以及刷盘间隔内的多批消息）只刷一次盘。
+ * 写线程同时负责分段的按时间滚动和保留策略，以及关闭已经释放的日志：
+ * {@link #open} 和 {@link #release} 成对调用，没有人使用的日志在消息都写完之后关闭，
+ * 所以打开的日志数不超过正在使用的房间数，房间名再多也不会耗尽文件句柄。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-19 4:00 PM
+ */
+public class MessageStore implements Runnable {
+
+    private static final int MAX_BATCH = 1024;                  // 写线程一次最多取出的消息数
+    private static final long MAINTENANCE_INTERVAL_MS = 1000;   // 检查滚动和保留策略的间隔
+
+    private final LogConfig config;
+    private final BlockingQueue<Record> queue;
+    private final ConcurrentHashMap<String, RoomLog> logs = new ConcurrentHashMap<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    // 统计
+    private final LongAdder appended = new LongAdder();         // 已写入分段的消息数
+    private final LongAdder dropped = new LongAdder();          // 因队列已满而丢弃的消息数
+    private final LongAdder flushes = new LongAdder();          // 刷盘次数
+    private final LongAdder batches = new LongAdder();          // 写线程处理的批数
+
+    public MessageStore(LogConfig config) throws IOException {
+        File directory = config.getDirectory();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("无法创建日志目录：" + directory);
+        }
+        this.config = config;
+        this.queue = new ArrayBlockingQueue<>(config.getQueueCapacity());
+        this.writer = new Thread(this, "message-store-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        EventLog.info("消息日志目录：{}", directory.getAbsolutePath());
+    }
+
+    /**
+     * 获取房间的日志，不存在时创建，已有的分段会被加载
+     * 每次打开都要对应一次 {@link #release}；已经释放、还没关闭的日志会被重新使用
+     */
+    public RoomLog open(String room) throws IOException {
+        try {
+            return logs.compute(room, (key, log) -> {
+                if (log == null) {
+                    try {
+                        log = new RoomLog(key, new File(config.getDirectory(), directoryName(key)), config, this);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                log.retain();
+                return log;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * 不再使用房间的日志，没有人使用之后由写线程关闭
+     */
+    public void release(RoomLog log) {
+        logs.computeIfPresent(log.getRoom(), (key, current) -> {
+            if (current == log) {
+                current.release();
+            }
+            return current;
+        });
+    }
+
+    /**
+     * 房间名转成安全的目录名，避免 ".."、"/" 等字符
+     */
+    private static String directoryName(String room) {
+        try {
+            return URLEncoder.encode(room, "UTF-8").replace(".", "%2E").replace("*", "%2A");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 放入写入队列，队列满时返回 false
+     */
+    boolean enqueue(Record record) {
+        if (running && queue.offer(record)) {
+            return true;
+        }
+        dropped.increment();
+        return false;
+    }
+
+    /**
+     * 写线程主循环
+     */
+    @Override
+    public void run() {
+        List<Record> batch = new ArrayList<>(MAX_BATCH);
+        Set<RoomLog> dirty = Collections.newSetFromMap(new IdentityHashMap<>());
+        long lastFlush = System.currentTimeMillis();
+        long lastMaintenance = lastFlush;
+        try {
+            while (running || !queue.isEmpty()) {
+                // 有没刷盘的数据时最多等到下一次该刷盘的时候
+                long timeout = dirty.isEmpty() ? MAINTENANCE_INTERVAL_MS
+                        : Math.max(0, config.getFlushIntervalMs() - (System.currentTimeMillis() - lastFlush));
+                Record first = queue.poll(timeout, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    int written = 0;
+                    for (Record record : batch) {
+                        if (record.log.isFailed()) {
+                            dropped.increment();
+                            continue;
+                        }
+                        try {
+                            record.log.write(record);
+                            dirty.add(record.log);
+                            written++;
+                        } catch (IOException e) {
+                            EventLog.error("写入房间 {} 的消息日志失败，之后的消息不再写入", record.log.getRoom(), e);
+                            dropped.increment();
+                            // 这条消息的偏移已经分配出去了，之后的消息都会错位，整个日志停止写入
+                            record.log.fail();
+                        }
+                    }
+                    appended.add(written);
+                    batches.increment();
+                    batch.clear();
+                    // 写入之后就可以被读到了，不用等刷盘
+                    for (RoomLog log : dirty) {
+                        log.notifyWaiters();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                // 组提交：刷盘间隔内写入的所有消息只刷一次盘
+                if (!dirty.isEmpty() && now - lastFlush >= config.getFlushIntervalMs()) {
+                    flush(dirty);
+                    lastFlush = now;
+                }
+                if (now - lastMaintenance >= MAINTENANCE_INTERVAL_MS) {
+                    for (RoomLog log : logs.values()) {
+                        try {
+                            log.maintain(now);
+                        } catch (IOException e) {
+                            EventLog.warn("维护房间 {} 的消息日志失败", log.getRoom(), e);
+                        }
+                        log.expireWaiters(now);
+                        // 还没刷盘的日志等下一轮
+                        if (!dirty.contains(log)) {
+                            logs.computeIfPresent(log.getRoom(),
+                                    (key, current) -> current == log && current.isReleased() && current.closeIfIdle() ? null : current);
+                        }
+                    }
+                    lastMaintenance = now;
+                }
+            }
+        } catch (InterruptedException e) {
+            // 关闭，正常退出
+        } finally {
+            flush(dirty);
+        }
+    }
+
+    /**
+     * 刷盘并清空 dirty
+     */
+    private void flush(Set<RoomLog> dirty) {
+        for (RoomLog log : dirty) {
+            try {
+                log.flush();
+            } catch (IOException e) {
+                EventLog.warn("房间 {} 的消息日志刷盘失败", log.getRoom(), e);
+            }
+        }
+        if (!dirty.isEmpty()) {
+            flushes.increment();
+            dirty.clear();
+        }
+    }
+
+    /**
+     * 停止接收新消息，等写线程把队列里剩下的消息写完、刷盘后关闭所有分段
+     */
+    public void close() {
+        running = false;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (RoomLog log : logs.values()) {
+            log.close();
+        }
+    }
+
+    public long getAppended() {
+        return appended.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getFlushes() {
+        return flushes.sum();
+    }
+
+    /**
+     * 平均每批写入的消息数
+     */
+    public double getAverageBatchSize() {
+        long count = batches.sum();
+        return count == 0 ? 0 : (double) getAppended() / count;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    @Override
+    public String toString() {
+        return "MessageStore{rooms=" + logs.size()
+                + ", appended=" + getAppended()
+                + ", dropped=" + getDropped()
+                + ", flushes=" + getFlushes()
+                + ", averageBatchSize=" + String.format("%.2f", getAverageBatchSize())
+                + ", queueDepth=" + getQueueDepth() + "}";
+    }
+
+    /**
+     * 队列中的一条待写入的消息
+     */
+    static final class Record {
+        final RoomLog log;
+        final long offset;
+        final byte[] data;
+        final long timestamp;
+
+        Record(RoomLog log, long offset, byte[] data, long timestamp) {
+            this.log = log;
+            this.offset = offset;
+            this.data = data;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package store;
+
+import log.EventLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+/**
+ * 一个房间的消息日志，由若干个 {@link LogSegment} 组成，只有最后一个分段可以追加
+ * 每条消息有一个从 0 开始连续递增的偏移。
+ * 1. 追加：调用方线程只分配偏移、复制一份帧数据放进 {@link MessageStore} 的队列，真正的写入和刷盘由写线程完成
+ * 2. 滚动：分段写满或者用了太久之后封存，新建一个分段
+ * 3. 保留：超过大小或时间上限的旧分段整个删除
+ * 4. 回放：按偏移找到文件中的位置，得到一个可以零拷贝发送的 {@link LogRegion}
+ * 5. 关闭：房间没人之后由 {@link MessageStore} 释放，写线程把它的消息都写完之后关闭，不再占用文件句柄和映射
+ * 分段数组是写时复制的，只由写线程替换，其他线程可以随时读取。
+ *
+ * @author Hedon Wang
+ * @create 2026-10-19 4:00 PM
+ */
+public class RoomLog {
+
+    private static final long WAIT_TIMEOUT_MS = 10_000;            // 等待消息写入分段的最长时间
+
+    private final String room;
+    private final File directory;
+    private final LogConfig config;
+    private final MessageStore store;
+
+    private final ReentrantLock appendLock = new ReentrantLock();  // 分配偏移和入队要一起完成，保证队列里同一个房间的消息按偏移排列
+    private long nextOffset;                                        // 下一条消息的偏移，只在持有 appendLock 时访问
+    private boolean closed;                                         // 已经关闭或者写入失败，不再接收消息，只在持有 appendLock 时访问
+    private boolean failed;                                         // 写入失败过，只由写线程访问
+    private int refs;                                               // 打开的次数，只在 MessageStore 的 logs.compute 中访问
+
+    private volatile LogSegment[] segments;                         // 所有分段，按偏移从小到大排列
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();   // 等待消息写入分段的回调
+
+    RoomLog(String room, File directory, LogConfig config, MessageStore store) throws IOException {
+        this.room = room;
+        this.directory = directory;
+        this.config = config;
+        this.store = store;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("无法创建日志目录：" + directory);
+        }
+        this.segments = load();
+        this.nextOffset = activeSegment().nextOffset();
+    }
+
+    /**
+     * 加载目录中已有的分段，最后一个作为活跃分段，没有的话新建一个
+     */
+    private LogSegment[] load() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".log"));
+        long[] baseOffsets = new long[files == null ? 0 : files.length];
+        for (int i = 0; i < baseOffsets.length; i++) {
+            String name = files[i].getName();
+            baseOffsets[i] = Long.parseLong(name.substring(0, name.length() - ".log".length()));
+        }
+        Arrays.sort(baseOffsets);
+        if (baseOffsets.length == 0) {
+            return new LogSegment[]{LogSegment.create(directory, 0, config.getSegmentBytes())};
+        }
+        LogSegment[] loaded = new LogSegment[baseOffsets.length];
+        for (int i = 0; i < baseOffsets.length; i++) {
+            boolean active = i == baseOffsets.length - 1;
+            loaded[i] = LogSegment.open(directory, baseOffsets[i], config.getSegmentBytes(), active);
+        }
+        return loaded;
+    }
+
+    /**
+     * 追加一条消息，可以在任意线程中调用，不做任何磁盘 IO
+     * @param frame     编码好的完整帧，只读取 position 到 limit 之间的数据，不修改 frame 的位置
+     * @return          分配给这条消息的偏移；写入队列已满或者日志已经关闭时丢弃并返回 -1
+     */
+    public long append(ByteBuffer frame) {
+        byte[] record = new byte[frame.remaining()];
+        frame.duplicate().get(record);
+        long timestamp = System.currentTimeMillis();
+        appendLock.lock();
+        try {
+            // 房间已经没人了，日志被写线程关闭，还拿着旧房间的调用方（比如集群线程）的消息不再持久化；
+            // 写入失败过的日志也一样，房间照常使用，只是不再持久化
+            if (closed) {
+                return -1;
+            }
+            long offset = nextOffset;
+            if (!store.enqueue(new MessageStore.Record(this, offset, record, timestamp))) {
+                return -1;
+            }
+            nextOffset = offset + 1;
+            return offset;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * 下一条追加的消息将分配到的偏移
+     * 在持有 appendLock 时读取：调用之前发生的事情（比如加入房间），对之后分配到偏移的消息的发送者都可见
+     */
+    public long nextOffset() {
+        appendLock.lock();
+        try {
+            return nextOffset;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * 在持有 appendLock 时取得下一条消息的偏移，并以它为参数执行 action
+     * action 执行期间不会有新消息分配到偏移：偏移小于它的消息都已经分配，不小于它的消息都在 action 之后分配
+     * @return  执行 action 时的 nextOffset
+     */
+    public long atOffset(LongConsumer action) {
+        appendLock.lock();
+        try {
+            action.accept(nextOffset);
+            return nextOffset;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * 回放到 endOffset 为止的历史消息时的起始偏移：最多 replayMessages 条，并且不早于 replayMs 之前
+     */
+    public long replayStart(long endOffset) {
+        long start = Math.max(getStartOffset(), endOffset - config.getReplayMessages());
+        if (config.getReplayMs() > 0) {
+            start = Math.max(start, offsetForTime(System.currentTimeMillis() - config.getReplayMs()));
+        }
+        return Math.min(start, endOffset);
+    }
+
+    /**
+     * 偏移 offset 之前的消息都写入分段之后执行 callback
+     * 已经写入时在当前线程中立即执行，否则在写线程中执行，callback 不能阻塞
+     * 写入失败或者等了 WAIT_TIMEOUT_MS 还没写入时也会执行，不会一直挂着：
+     * 这时 {@link #getWrittenOffset()} 仍然小于 offset，callback 要检查，放弃回放
+     */
+    public void awaitWritten(long offset, Runnable callback) {
+        if (getWrittenOffset() >= offset) {
+            callback.run();
+            return;
+        }
+        Waiter waiter = new Waiter(offset, System.currentTimeMillis() + WAIT_TIMEOUT_MS, callback);
+        waiters.offer(waiter);
+        // 入队的同时写线程可能刚好写完，再检查一次
+        if (getWrittenOffset() >= offset && waiters.remove(waiter)) {
+            callback.run();
+        }
+    }
+
+    /**
+     * 执行已经满足条件的回调，只能由写线程调用
+     */
+    void notifyWaiters() {
+        if (waiters.isEmpty()) {
+            return;
+        }
+        long written = getWrittenOffset();
+        for (Waiter waiter : waiters) {
+            if (waiter.offset <= written && waiters.remove(waiter)) {
+                waiter.run();
+            }
+        }
+    }
+
+    /**
+     * 执行等待超时的回调，只能由写线程调用
+     */
+    void expireWaiters(long now) {
+        for (Waiter waiter : waiters) {
+            if (waiter.deadline <= now && waiters.remove(waiter)) {
+                waiter.run();
+            }
+        }
+    }
+
+    /**
+     * 写入失败，之后的偏移永远等不到，执行所有的回调
+     */
+    private void failWaiters() {
+        Waiter waiter;
+        while ((waiter = waiters.poll()) != null) {
+            waiter.run();
+        }
+    }
+
+    /**
+     * [startOffset, endOffset) 之间的消息在文件中的位置，已经被删除的部分跳过
+     * endOffset 之前的消息必须都已经写入分段（见 {@link #awaitWritten}）
+     */
+    public LogRegion read(long startOffset, long endOffset) throws IOException {
+        LogSegment[] current = segments;
+        int count = 0;
+        for (LogSegment segment : current) {
+            if (segment.getBaseOffset() < endOffset && segment.nextOffset() > startOffset) {
+                count++;
+            }
+        }
+        FileChannel[] channels = new FileChannel[count];
+        long[] positions = new long[count];
+        long[] lengths = new long[count];
+        int i = 0;
+        for (LogSegment segment : current) {
+            if (segment.getBaseOffset() < endOffset && segment.nextOffset() > startOffset) {
+                int from = segment.positionOf(Math.max(startOffset, segment.getBaseOffset()));
+                int to = segment.positionOf(Math.min(endOffset, segment.nextOffset()));
+                channels[i] = segment.getChannel();
+                positions[i] = from;
+                lengths[i] = to - from;
+                i++;
+            }
+        }
+        return new LogRegion(channels, positions, lengths, startOffset, endOffset);
+    }
+
+    /**
+     * 写入一条消息，活跃分段写满时滚动，只能由写线程调用
+     * 消息在分段中的位置就是它的偏移，所以只能按偏移顺序一条不差地写；对不上时抛出 IOException，由调用方 {@link #fail}
+     */
+    void write(MessageStore.Record record) throws IOException {
+        LogSegment active = activeSegment();
+        if (record.offset != active.nextOffset()) {
+            throw new IOException("房间 " + room + " 的消息偏移 " + record.offset + " 与日志末尾 " + active.nextOffset() + " 不一致");
+        }
+        if (!active.append(record.data, record.timestamp)) {
+            active = roll(record.data.length);
+            active.append(record.data, record.timestamp);
+        }
+    }
+
+    /**
+     * 写入失败：已经分配了偏移、还没写入的消息都作废，只能由写线程调用
+     * 把 nextOffset 退回到已写入的位置并且不再接收新消息，已写入的历史照常回放，
+     * 之后的 {@link #awaitWritten} 不会等一个永远写不到的偏移，没人使用时也能照常关闭；
+     * 房间没人、日志关闭之后重新打开，就又可以写了
+     */
+    void fail() {
+        failed = true;
+        appendLock.lock();
+        try {
+            closed = true;
+            nextOffset = getWrittenOffset();
+        } finally {
+            appendLock.unlock();
+        }
+        // 等待作废消息的回放不会再等到了，让它们放弃回放，改为只收实时消息
+        failWaiters();
+    }
+
+    /**
+     * 是否写入失败过，失败之后队列里剩下的消息直接丢弃，只能由写线程调用
+     */
+    boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * 刷盘，只能由写线程调用
+     */
+    void flush() throws IOException {
+        activeSegment().flush();
+    }
+
+    /**
+     * 按时间滚动活跃分段，并按保留策略删除旧分段，只能由写线程调用
+     */
+    void maintain(long now) throws IOException {
+        LogSegment active = activeSegment();
+        if (active.getCount() > 0 && config.getSegmentMs() > 0 && now - active.getFirstTimestamp() >= config.getSegmentMs()) {
+            roll(0);
+        }
+        LogSegment[] current = segments;
+        int expired = 0;
+        long totalBytes = 0;
+        for (LogSegment segment : current) {
+            totalBytes += segment.size();
+        }
+        // 活跃分段永远保留
+        while (expired < current.length - 1) {
+            LogSegment oldest = current[expired];
+            boolean tooLarge = config.getRetentionBytes() > 0 && totalBytes > config.getRetentionBytes();
+            boolean tooOld = config.getRetentionMs() > 0 && now - oldest.getLastTimestamp() > config.getRetentionMs();
+            if (!tooLarge && !tooOld) {
+                break;
+            }
+            totalBytes -= oldest.size();
+            expired++;
+        }
+        if (expired > 0) {
+            segments = Arrays.copyOfRange(current, expired, current.length);
+            for (int i = 0; i < expired; i++) {
+                current[i].delete();
+            }
+        }
+    }
+
+    /**
+     * 封存活跃分段，新建一个分段接着写
+     * @param minCapacity   新分段至少要能放下的字节数
+     */
+    private LogSegment roll(int minCapacity) throws IOException {
+        LogSegment active = activeSegment();
+        active.seal();
+        LogSegment next = LogSegment.create(directory, active.nextOffset(), Math.max(config.getSegmentBytes(), minCapacity));
+        LogSegment[] current = segments;
+        LogSegment[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = next;
+        segments = updated;
+        return next;
+    }
+
+    /**
+     * 找到包含某个偏移的分段，偏移已经被删除时返回最早的分段，超出已写入的范围时返回活跃分段
+     */
+    public LogSegment segmentFor(long offset) {
+        LogSegment[] current = segments;
+        for (int i = current.length - 1; i > 0; i--) {
+            if (current[i].getBaseOffset() <= offset) {
+                return current[i];
+            }
+        }
+        return current[0];
+    }
+
+    /**
+     * 不早于 timestamp 的消息的大致起始偏移
+     */
+    public long offsetForTime(long timestamp) {
+        LogSegment[] current = segments;
+        for (LogSegment segment : current) {
+            if (segment.getCount() > 0 && segment.getLastTimestamp() >= timestamp) {
+                return segment.offsetForTime(timestamp);
+            }
+        }
+        return getWrittenOffset();
+    }
+
+    /**
+     * 没有人再使用时关闭：追加的消息都已经写入、没有等待中的回放，只能由写线程在 logs.compute 中调用
+     * 关闭之后 {@link #append} 都返回 -1，一条消息都没有的日志连同目录一起删除
+     * @return  关闭了返回 true
+     */
+    boolean closeIfIdle() {
+        appendLock.lock();
+        try {
+            if (nextOffset != getWrittenOffset() || !waiters.isEmpty()) {
+                return false;
+            }
+            closed = true;
+        } finally {
+            appendLock.unlock();
+        }
+        if (size() > 0) {
+            close();
+            return true;
+        }
+        for (LogSegment segment : segments) {
+            segment.delete();
+        }
+        if (!directory.delete()) {
+            EventLog.warn("删除日志目录失败：{}", directory.getPath());
+        }
+        return true;
+    }
+
+    /**
+     * 关闭所有分段，只能在写线程退出后或者 {@link #closeIfIdle} 中调用
+     */
+    void close() {
+        for (LogSegment segment : segments) {
+            try {
+                segment.flush();
+            } catch (IOException e) {
+                EventLog.warn("房间 {} 的日志分段刷盘失败", room, e);
+            }
+            segment.close();
+        }
+    }
+
+    private LogSegment activeSegment() {
+        LogSegment[] current = segments;
+        return current[current.length - 1];
+    }
+
+    public String getRoom() {
+        return room;
+    }
+
+    /**
+     * 打开次数加一，只能在 MessageStore 的 logs.compute 中调用
+     */
+    void retain() {
+        refs++;
+    }
+
+    /**
+     * 打开次数减一，只能在 MessageStore 的 logs.compute 中调用
+     */
+    void release() {
+        refs--;
+    }
+
+    /**
+     * 还有没有人在使用，只能在 MessageStore 的 logs.compute 中调用
+     */
+    boolean isReleased() {
+        return refs == 0;
+    }
+
+    /**
+     * 还保留着的最早一条消息的偏移
+     */
+    public long getStartOffset() {
+        return segments[0].getBaseOffset();
+    }
+
+    /**
+     * 已经写入分段（可以读到）的下一条消息的偏移
+     */
+    public long getWrittenOffset() {
+        return activeSegment().nextOffset();
+    }
+
+    /**
+     * 所有分段的总字节数
+     */
+    public long size() {
+        long total = 0;
+        for (LogSegment segment : segments) {
+            total += segment.size();
+        }
+        return total;
+    }
+
+    /**
+     * 等待消息写入分段的回调
+     */
+    private static final class Waiter {
+        final long offset;
+        final long deadline;
+        final Runnable callback;
+
+        Waiter(long offset, long deadline, Runnable callback) {
+            this.offset = offset;
+            this.deadline = deadline;
+            this.callback = callback;
+        }
+
+        void run() {
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                EventLog.error("等待偏移 {} 写入的回调失败", offset, e);
+            }
+        }
+    }
+}